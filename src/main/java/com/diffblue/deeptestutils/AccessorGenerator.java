@@ -0,0 +1,593 @@
+package com.diffblue.deeptestutils;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Modifier;
+import java.util.HashSet;
+
+import javassist.CannotCompileException;
+import javassist.ClassClassPath;
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtConstructor;
+import javassist.CtField;
+import javassist.CtNewMethod;
+import javassist.LoaderClassPath;
+import javassist.NotFoundException;
+
+// Copyright 2016-2018 Diffblue limited. All rights reserved.
+
+/**
+ * <code>AccessorGenerator</code> uses javassist to generate a
+ * {@link ClassAccessor} for a class that reads and writes its fields directly,
+ * with a <code>switch</code> on the field number, instead of going through
+ * reflection. The JIT can inline such accesses.
+ * <p>
+ * The generated class is defined in the package and class loader of the
+ * class whose fields it accesses. It accesses the fields that other classes
+ * of that package could access by name. Java offers no way to make a class
+ * defined at run time a nestmate of an existing class, so it accesses
+ * private fields, and fields it cannot name for other reasons, at their
+ * offset with <code>sun.misc.Unsafe</code>, after checking the type of the
+ * object, when the JVM provides it. Static fields, final fields when
+ * writing, values whose type does not match the field, and inaccessible
+ * fields on JVMs without <code>Unsafe</code> are left to the reflective
+ * accessor passed to {@link #generate(ClassLayout, ClassAccessor)}.
+ * <p>
+ * The accessor of a class is defined once per class loader: when the
+ * layout of the class is built again, e.g. after being reclaimed, the class
+ * defined before is instantiated again, as the layout numbers the fields of
+ * the class the same way. Classes that cannot be compiled against, as
+ * javassist finds no class file for them or for the types of their fields,
+ * and classes next to which no class can be defined keep using reflection;
+ * any other failure is a bug, and is thrown.
+ * <p>
+ * It also generates the {@link FinalFieldWriter.StaticPut} classes, which
+ * write static final fields with <code>Unsafe</code>.
+ *
+ * @author <a href="http://diffblue.com">Diffblue</a>
+ */
+final class AccessorGenerator {
+
+  /**
+   * Suffix appended to the name of a class to name its generated accessor.
+   */
+  private static final String SUFFIX = "$$DeeptestUtilsAccessor";
+
+  /**
+   * Name of the class extended by generated writers of static fields.
+   */
+  private static final String STATIC_PUT =
+      FinalFieldWriter.StaticPut.class.getName();
+
+  /**
+   * The primitive types, each followed by the types that widen to it.
+   */
+  private static final Class<?>[][] WIDENING = {
+    {boolean.class},
+    {byte.class},
+    {char.class},
+    {short.class, byte.class},
+    {int.class, char.class, short.class, byte.class},
+    {long.class, int.class, char.class, short.class, byte.class},
+    {float.class, long.class, int.class, char.class, short.class,
+     byte.class},
+    {double.class, float.class, long.class, int.class, char.class,
+     short.class, byte.class},
+  };
+
+  /**
+   * Name of the accessor interface, as used in generated source code.
+   */
+  private static final String ACCESSOR = ClassAccessor.class.getName();
+
+  /**
+   * Name of the <code>Unsafe</code> class, as used in generated source code.
+   */
+  private static final String UNSAFE = "sun.misc.Unsafe";
+
+  /**
+   * Private constructor to prevent instantiation of the utility class.
+   */
+  private AccessorGenerator() {
+  }
+
+  /**
+   * Generates an accessor for a class.
+   *
+   * @param layout the <code>ClassLayout</code> of the class
+   * @param fallback the <code>ClassAccessor</code> the generated accessor
+   *     delegates to for fields it cannot access directly
+   * @return the generated <code>ClassAccessor</code>, or null if none could be
+   *     generated for the class
+   */
+  static ClassAccessor generate(final ClassLayout layout,
+                                final ClassAccessor fallback) {
+    Class<?> type = layout.getType();
+    if (!canGenerate(type)) {
+      return null;
+    }
+    Object unsafe = UnsafeAccess.getUnsafe();
+    Class<?> defined = defined(type);
+    if (defined != null) {
+      return newInstance(defined, fallback, type, unsafe);
+    }
+    HashSet<Class<?>> referenced = new HashSet<Class<?>>();
+    StringBuilder getCases = new StringBuilder();
+    StringBuilder setCases = new StringBuilder();
+    for (int id : layout.getInstanceFieldIds()) {
+      Field f = layout.getAccessor(id).getField();
+      if (!canRead(type, f)) {
+        long offset = -1;
+        if (unsafe != null) {
+          offset = UnsafeAccess.objectFieldOffset(f);
+        }
+        if (offset != -1) {
+          appendUnsafeCases(type, f, id, offset, getCases, setCases);
+        }
+        continue;
+      }
+      referenced.add(f.getDeclaringClass());
+      String owner = sourceName(f.getDeclaringClass());
+      String access = "((" + owner + ") $2)." + f.getName();
+      getCases.append("case ").append(id).append(": if ($2 instanceof ")
+          .append(owner).append(") return ($w) ").append(access)
+          .append("; break;\n");
+      Class<?> fieldType = layout.getFieldType(id);
+      if (canWrite(type, f)) {
+        referenced.add(fieldType);
+        setCases.append("case ").append(id).append(": if ($2 instanceof ")
+            .append(owner).append(" && ").append(valueCheck(fieldType))
+            .append(") { ").append(access).append(" = ")
+            .append(valueConversion(fieldType))
+            .append("; return; } break;\n");
+      }
+    }
+    if (getCases.length() == 0) {
+      return null;
+    }
+    ClassPool pool = new ClassPool(true);
+    pool.insertClassPath(new ClassClassPath(ClassAccessor.class));
+    pool.insertClassPath(new LoaderClassPath(type.getClassLoader()));
+    for (Class<?> c : referenced) {
+      while (c.isArray()) {
+        c = c.getComponentType();
+      }
+      if (!c.isPrimitive() && pool.find(c.getName()) == null) {
+        // Nothing to compile against, e.g. a class generated at run time.
+        return null;
+      }
+    }
+    CtClass accessorClass = pool.makeClass(type.getName() + SUFFIX);
+    try {
+      build(pool, accessorClass, unsafe != null, getCases, setCases);
+      try {
+        defined = pool.toClass(accessorClass, type, type.getClassLoader(),
+                               type.getProtectionDomain());
+      } catch (CannotCompileException e) {
+        // Defined by another thread meanwhile, or refused by the loader.
+        defined = defined(type);
+      } catch (LinkageError e) {
+        defined = defined(type);
+      }
+      if (defined == null) {
+        return null;
+      }
+    } finally {
+      accessorClass.detach();
+    }
+    return newInstance(defined, fallback, type, unsafe);
+  }
+
+  /**
+   * Generates a {@link FinalFieldWriter.StaticPut} that stores values of a
+   * type with the <code>Unsafe</code> method for that type, accepting the
+   * same boxed values as reflection would for a field of that type. It is
+   * defined next to <code>StaticPut</code>, once per type.
+   *
+   * @param type a primitive type, or <code>Object</code> for references
+   * @param unsafe the <code>sun.misc.Unsafe</code> instance
+   * @return the <code>StaticPut</code>, or null if it cannot be defined
+   */
+  static FinalFieldWriter.StaticPut generateStaticPut(final Class<?> type,
+                                                      final Object unsafe) {
+    StringBuilder body = new StringBuilder();
+    if (type.isPrimitive()) {
+      String typeName = type.getName();
+      String store = "unsafe.put" + Character.toUpperCase(typeName.charAt(0))
+          + typeName.substring(1) + "Volatile($1, $2, (" + typeName + ") ";
+      for (Class<?>[] widening : WIDENING) {
+        if (widening[0] != type) {
+          continue;
+        }
+        for (Class<?> source : widening) {
+          String boxed = wrapper(source).getName();
+          body.append("if ($3 instanceof ").append(boxed).append(") { ")
+              .append(store).append("((").append(boxed).append(") $3).")
+              .append(source.getName()).append("Value()); return true; }\n");
+        }
+      }
+      body.append("return false;");
+    } else {
+      body.append("unsafe.putObjectVolatile($1, $2, $3); return true;");
+    }
+    Class<?> defined;
+    ClassPool pool = new ClassPool(true);
+    pool.insertClassPath(new ClassClassPath(FinalFieldWriter.class));
+    CtClass putClass =
+        pool.makeClass(STATIC_PUT + "$$" + type.getSimpleName());
+    try {
+      try {
+        putClass.setSuperclass(pool.get(STATIC_PUT));
+        putClass.setModifiers(javassist.Modifier.FINAL);
+        putClass.addField(CtField.make(
+            "private final " + UNSAFE + " unsafe;", putClass));
+        CtConstructor constructor = new CtConstructor(
+            new CtClass[] {pool.get("java.lang.Object")}, putClass);
+        constructor.setBody("{ this.unsafe = (" + UNSAFE + ") $1; }");
+        putClass.addConstructor(constructor);
+        putClass.addMethod(CtNewMethod.make(
+            "boolean put(Object base, long offset, Object value) {\n" + body
+            + " }", putClass));
+      } catch (NotFoundException e) {
+        throw new DeeptestUtilsRuntimeException(e.getMessage(), e);
+      } catch (CannotCompileException e) {
+        throw new DeeptestUtilsRuntimeException(e.getMessage(), e);
+      }
+      try {
+        defined = pool.toClass(putClass, FinalFieldWriter.class,
+                               FinalFieldWriter.class.getClassLoader(),
+                               FinalFieldWriter.class.getProtectionDomain());
+      } catch (CannotCompileException e) {
+        // Refused by the class loader: no Unsafe writes.
+        return null;
+      } catch (LinkageError e) {
+        return null;
+      }
+    } finally {
+      putClass.detach();
+    }
+    try {
+      Constructor<?> constructor =
+          defined.getDeclaredConstructor(Object.class);
+      constructor.setAccessible(true);
+      return (FinalFieldWriter.StaticPut) constructor.newInstance(unsafe);
+    } catch (NoSuchMethodException e) {
+      throw new DeeptestUtilsRuntimeException(e.getMessage(), e);
+    } catch (InstantiationException e) {
+      throw new DeeptestUtilsRuntimeException(e.getMessage(), e);
+    } catch (IllegalAccessException e) {
+      throw new DeeptestUtilsRuntimeException(e.getMessage(), e);
+    } catch (InvocationTargetException e) {
+      throw new DeeptestUtilsRuntimeException(e.getMessage(), e.getCause());
+    }
+  }
+
+  /**
+   * Returns the accessor of a class defined before in its class loader.
+   *
+   * @param type the <code>Class</code> whose fields are accessed
+   * @return the accessor <code>Class</code>, or null if there is none
+   */
+  private static Class<?> defined(final Class<?> type) {
+    ClassLoader loader = type.getClassLoader();
+    try {
+      Class<?> c = Class.forName(type.getName() + SUFFIX, false, loader);
+      if (c.getClassLoader() != loader
+          || !ClassAccessor.class.isAssignableFrom(c)) {
+        return null;
+      }
+      return c;
+    } catch (ClassNotFoundException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Adds the fields, constructor and methods of an accessor to its class.
+   *
+   * @param pool the <code>ClassPool</code> of the class
+   * @param accessorClass the accessor <code>CtClass</code>
+   * @param hasUnsafe whether the accessor gets an <code>Unsafe</code>
+   * @param getCases the cases of the <code>get</code> switch
+   * @param setCases the cases of the <code>set</code> switch
+   */
+  private static void build(final ClassPool pool, final CtClass accessorClass,
+                            final boolean hasUnsafe,
+                            final StringBuilder getCases,
+                            final StringBuilder setCases) {
+    try {
+      CtClass accessorInterface = pool.get(ACCESSOR);
+      accessorClass.addInterface(accessorInterface);
+      accessorClass.setModifiers(javassist.Modifier.PUBLIC
+                                 | javassist.Modifier.FINAL);
+      accessorClass.addField(CtField.make(
+          "private final " + ACCESSOR + " fallback;", accessorClass));
+      accessorClass.addField(CtField.make(
+          "private final Class type;", accessorClass));
+      String unsafeInit = "";
+      if (hasUnsafe) {
+        accessorClass.addField(CtField.make(
+            "private final " + UNSAFE + " unsafe;", accessorClass));
+        unsafeInit = " this.unsafe = (" + UNSAFE + ") $3;";
+      }
+      CtClass objectClass = pool.get("java.lang.Object");
+      CtConstructor constructor = new CtConstructor(
+          new CtClass[] {accessorInterface, pool.get("java.lang.Class"),
+                         objectClass}, accessorClass);
+      constructor.setBody("{ this.fallback = $1; this.type = $2;"
+                          + unsafeInit + " }");
+      accessorClass.addConstructor(constructor);
+      accessorClass.addMethod(CtNewMethod.make(
+          "public int fieldId(String name) {"
+          + " return fallback.fieldId($1); }", accessorClass));
+      accessorClass.addMethod(CtNewMethod.make(
+          "public Object get(int fieldId, Object target) {"
+          + " switch ($1) {\n" + getCases + "default: break; }"
+          + " return fallback.get($1, $2); }", accessorClass));
+      String setSwitch = "";
+      if (setCases.length() != 0) {
+        setSwitch = " switch ($1) {\n" + setCases + "default: break; }";
+      }
+      accessorClass.addMethod(CtNewMethod.make(
+          "public void set(int fieldId, Object target, Object value) {"
+          + setSwitch + " fallback.set($1, $2, $3); }", accessorClass));
+    } catch (NotFoundException e) {
+      throw new DeeptestUtilsRuntimeException(e.getMessage(), e);
+    } catch (CannotCompileException e) {
+      throw new DeeptestUtilsRuntimeException(e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Creates an instance of a generated accessor.
+   *
+   * @param accessor the generated accessor <code>Class</code>
+   * @param fallback the <code>ClassAccessor</code> it delegates to
+   * @param type the <code>Class</code> whose fields are accessed
+   * @param unsafe the <code>Unsafe</code> instance, or null
+   * @return the <code>ClassAccessor</code>
+   */
+  private static ClassAccessor newInstance(final Class<?> accessor,
+                                           final ClassAccessor fallback,
+                                           final Class<?> type,
+                                           final Object unsafe) {
+    try {
+      return (ClassAccessor) accessor
+          .getConstructor(ClassAccessor.class, Class.class, Object.class)
+          .newInstance(fallback, type, unsafe);
+    } catch (NoSuchMethodException e) {
+      throw new DeeptestUtilsRuntimeException(e.getMessage(), e);
+    } catch (InstantiationException e) {
+      throw new DeeptestUtilsRuntimeException(e.getMessage(), e);
+    } catch (IllegalAccessException e) {
+      throw new DeeptestUtilsRuntimeException(e.getMessage(), e);
+    } catch (InvocationTargetException e) {
+      throw new DeeptestUtilsRuntimeException(e.getMessage(), e.getCause());
+    }
+  }
+
+  /**
+   * Appends the cases reading and writing an instance field at its offset,
+   * through <code>Unsafe</code>, to the switches of a generated accessor.
+   * The object must be an instance of the class of the accessor, so that
+   * the offset is valid.
+   *
+   * @param type the <code>Class</code> next to which the code is defined
+   * @param f the instance <code>Field</code> to access
+   * @param id the number of the field
+   * @param offset the offset of the field
+   * @param getCases the cases of the <code>get</code> switch
+   * @param setCases the cases of the <code>set</code> switch
+   */
+  private static void appendUnsafeCases(final Class<?> type, final Field f,
+                                        final int id, final long offset,
+                                        final StringBuilder getCases,
+                                        final StringBuilder setCases) {
+    Class<?> fieldType = f.getType();
+    String kind = "Object";
+    if (fieldType.isPrimitive()) {
+      String name = fieldType.getName();
+      kind = Character.toUpperCase(name.charAt(0)) + name.substring(1);
+    }
+    if (Modifier.isVolatile(f.getModifiers())) {
+      kind += "Volatile";
+    }
+    String location = "$2, " + offset + "L";
+    getCases.append("case ").append(id)
+        .append(": if (type.isInstance($2)) return ($w) unsafe.get")
+        .append(kind).append("(").append(location).append("); break;\n");
+    if (canWrite(type, f)) {
+      setCases.append("case ").append(id)
+          .append(": if (type.isInstance($2) && ")
+          .append(valueCheck(fieldType)).append(") { unsafe.put")
+          .append(kind).append("(").append(location).append(", ")
+          .append(valueConversion(fieldType))
+          .append("); return; } break;\n");
+    }
+  }
+
+  /**
+   * Checks whether an accessor can be defined next to a class.
+   *
+   * @param type the <code>Class</code> whose fields are accessed
+   * @return true if a class accessing the fields can be defined in the same
+   *     package and class loader
+   */
+  private static boolean canGenerate(final Class<?> type) {
+    ClassLoader loader = type.getClassLoader();
+    if (loader == null || type.isInterface() || type.isArray()
+        || type.getName().startsWith("java.")) {
+      return false;
+    }
+    try {
+      return Class.forName(ACCESSOR, false, loader) == ClassAccessor.class;
+    } catch (ClassNotFoundException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Checks whether generated code can read an instance field by name.
+   *
+   * @param type the <code>Class</code> next to which the code is defined
+   * @param f the instance <code>Field</code> to read
+   * @return true if the code can read the field by name
+   */
+  private static boolean canRead(final Class<?> type, final Field f) {
+    int modifiers = f.getModifiers();
+    if (Modifier.isPrivate(modifiers)
+        || !isIdentifier(f.getName())
+        || !isAccessible(type, f.getDeclaringClass())) {
+      return false;
+    }
+    return Modifier.isPublic(modifiers)
+        || samePackage(type, f.getDeclaringClass());
+  }
+
+  /**
+   * Checks whether generated code can write a field.
+   *
+   * @param type the <code>Class</code> next to which the code is defined
+   * @param f a <code>Field</code> the code can read, by name or offset
+   * @return true if the code can also write the field directly
+   */
+  private static boolean canWrite(final Class<?> type, final Field f) {
+    if (Modifier.isFinal(f.getModifiers())) {
+      return false;
+    }
+    Class<?> fieldType = f.getType();
+    while (fieldType.isArray()) {
+      fieldType = fieldType.getComponentType();
+    }
+    return fieldType.isPrimitive() || isAccessible(type, fieldType);
+  }
+
+  /**
+   * Checks whether code in the package of a class can refer to another class.
+   *
+   * @param type the <code>Class</code> next to which the code is defined
+   * @param other the <code>Class</code> referred to
+   * @return true if the code can refer to <code>other</code>
+   */
+  private static boolean isAccessible(final Class<?> type,
+                                      final Class<?> other) {
+    return Modifier.isPublic(other.getModifiers()) || samePackage(type, other);
+  }
+
+  /**
+   * Checks whether two classes are in the same runtime package.
+   *
+   * @param a a <code>Class</code>
+   * @param b another <code>Class</code>
+   * @return true if both classes have the same package and class loader
+   */
+  private static boolean samePackage(final Class<?> a, final Class<?> b) {
+    return a.getClassLoader() == b.getClassLoader()
+        && packageName(a).equals(packageName(b));
+  }
+
+  /**
+   * Returns the name of the package of a class.
+   *
+   * @param c a <code>Class</code> that is not an array
+   * @return the name of its package, empty for the default package
+   */
+  private static String packageName(final Class<?> c) {
+    String name = c.getName();
+    int lastSeparator = name.lastIndexOf('.');
+    if (lastSeparator == -1) {
+      return "";
+    }
+    return name.substring(0, lastSeparator);
+  }
+
+  /**
+   * Checks whether a field name can be used in source code.
+   *
+   * @param name the name of the field
+   * @return true if the name is a Java identifier
+   */
+  private static boolean isIdentifier(final String name) {
+    if (name.length() == 0
+        || !Character.isJavaIdentifierStart(name.charAt(0))) {
+      return false;
+    }
+    for (int i = 1; i < name.length(); ++i) {
+      if (!Character.isJavaIdentifierPart(name.charAt(i))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns the name of a type as used in javassist source code.
+   *
+   * @param c the <code>Class</code> to name
+   * @return the name of the class, with <code>[]</code> for each array
+   *     dimension
+   */
+  private static String sourceName(final Class<?> c) {
+    if (c.isArray()) {
+      return sourceName(c.getComponentType()) + "[]";
+    }
+    return c.getName();
+  }
+
+  /**
+   * Returns the source code checking that the value <code>$3</code> can be
+   * stored in a field without conversion.
+   *
+   * @param fieldType the type of the field
+   * @return a boolean expression in javassist source code
+   */
+  private static String valueCheck(final Class<?> fieldType) {
+    if (fieldType.isPrimitive()) {
+      return "$3 instanceof " + wrapper(fieldType).getName();
+    }
+    return "($3 == null || $3 instanceof " + sourceName(fieldType) + ")";
+  }
+
+  /**
+   * Returns the source code converting the value <code>$3</code> to the type
+   * of a field.
+   *
+   * @param fieldType the type of the field
+   * @return an expression in javassist source code
+   */
+  private static String valueConversion(final Class<?> fieldType) {
+    if (fieldType.isPrimitive()) {
+      return "((" + wrapper(fieldType).getName() + ") $3)."
+          + fieldType.getName() + "Value()";
+    }
+    return "(" + sourceName(fieldType) + ") $3";
+  }
+
+  /**
+   * Returns the wrapper class of a primitive type.
+   *
+   * @param primitive the primitive <code>Class</code>
+   * @return the corresponding wrapper <code>Class</code>
+   */
+  private static Class<?> wrapper(final Class<?> primitive) {
+    if (primitive == boolean.class) {
+      return Boolean.class;
+    } else if (primitive == byte.class) {
+      return Byte.class;
+    } else if (primitive == char.class) {
+      return Character.class;
+    } else if (primitive == short.class) {
+      return Short.class;
+    } else if (primitive == int.class) {
+      return Integer.class;
+    } else if (primitive == long.class) {
+      return Long.class;
+    } else if (primitive == float.class) {
+      return Float.class;
+    } else {
+      return Double.class;
+    }
+  }
+}
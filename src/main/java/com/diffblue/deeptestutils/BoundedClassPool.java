@@ -0,0 +1,184 @@
+package com.diffblue.deeptestutils;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.LoaderClassPath;
+
+// Copyright 2016-2018 Diffblue limited. All rights reserved.
+
+/**
+ * <code>BoundedClassPool</code> is a javassist <code>ClassPool</code> that
+ * keeps at most a fixed number of <code>CtClass</code> objects, evicting the
+ * least recently used ones. An evicted class is read again from its class
+ * file the next time it is needed, so eviction only costs time, whereas
+ * <code>ClassPool.getDefault()</code> keeps every class it has ever read for
+ * the lifetime of the JVM.
+ * <p>
+ * There is one pool per class loader, see {@link #of(ClassLoader)}, which
+ * finds classes through that class loader. The capacity of each pool is read
+ * from the system property <code>deeptestutils.classPoolCapacity</code>.
+ *
+ * @author <a href="http://diffblue.com">Diffblue</a>
+ */
+final class BoundedClassPool extends ClassPool {
+
+  /**
+   * Number of classes kept by a pool, unless set by the system property.
+   */
+  private static final int DEFAULT_CAPACITY = 500;
+
+  /**
+   * Number of classes kept by a pool.
+   */
+  private static final int CAPACITY = Integer.getInteger(
+      "deeptestutils.classPoolCapacity", DEFAULT_CAPACITY);
+
+  /**
+   * The pools, by class loader, guarded by itself.
+   */
+  private static final WeakHashMap<ClassLoader, BoundedClassPool> POOLS =
+      new WeakHashMap<ClassLoader, BoundedClassPool>();
+
+  /**
+   * Number of classes evicted from all pools.
+   */
+  private static final AtomicLong EVICTIONS = new AtomicLong();
+
+  /**
+   * The cached classes, least recently used first, guarded by itself.
+   */
+  private final LruCache cache = new LruCache();
+
+  /**
+   * Creates a new <code>BoundedClassPool</code> instance.
+   *
+   * @param loader the <code>ClassLoader</code> to find classes with, or null
+   *     for the bootstrap class loader
+   */
+  private BoundedClassPool(final ClassLoader loader) {
+    super(null);
+    if (loader != null) {
+      appendClassPath(new LoaderClassPath(loader));
+    }
+    appendSystemPath();
+  }
+
+  /**
+   * Returns the pool of a class loader, creating it on first use.
+   *
+   * @param loader the <code>ClassLoader</code>, or null for the bootstrap
+   *     class loader
+   * @return the <code>BoundedClassPool</code> of the class loader
+   */
+  static BoundedClassPool of(final ClassLoader loader) {
+    synchronized (POOLS) {
+      BoundedClassPool pool = POOLS.get(loader);
+      if (pool == null) {
+        pool = new BoundedClassPool(loader);
+        POOLS.put(loader, pool);
+      }
+      return pool;
+    }
+  }
+
+  /**
+   * Creates a pool that is not shared, and not counted by
+   * {@link #statistics()}, for a task that drops it when done.
+   *
+   * @param loader the <code>ClassLoader</code> to find classes with, or null
+   *     for the bootstrap class loader
+   * @return a new <code>BoundedClassPool</code>
+   */
+  static BoundedClassPool newPool(final ClassLoader loader) {
+    return new BoundedClassPool(loader);
+  }
+
+  /**
+   * Returns statistics on the pools.
+   *
+   * @return a new <code>ClassPoolStatistics</code>
+   */
+  static ClassPoolStatistics statistics() {
+    ArrayList<BoundedClassPool> pools;
+    synchronized (POOLS) {
+      pools = new ArrayList<BoundedClassPool>(POOLS.values());
+    }
+    int classes = 0;
+    for (BoundedClassPool pool : pools) {
+      synchronized (pool.cache) {
+        classes += pool.cache.size();
+      }
+    }
+    return new ClassPoolStatistics(pools.size(), classes, CAPACITY,
+                                   EVICTIONS.get());
+  }
+
+  @Override
+  protected CtClass getCached(final String classname) {
+    CtClass c;
+    synchronized (cache) {
+      c = cache.get(classname);
+    }
+    if (c == null) {
+      // Primitive types are cached by the super class.
+      return super.getCached(classname);
+    }
+    return c;
+  }
+
+  @Override
+  protected void cacheCtClass(final String classname, final CtClass c,
+                              final boolean dynamic) {
+    synchronized (cache) {
+      cache.put(classname, c);
+    }
+  }
+
+  @Override
+  protected CtClass removeCached(final String classname) {
+    synchronized (cache) {
+      return cache.remove(classname);
+    }
+  }
+
+  /**
+   * <code>LruCache</code> maps class names to classes, in access order, and
+   * drops the least recently used class when it holds more than
+   * <code>CAPACITY</code> classes.
+   */
+  private static final class LruCache extends LinkedHashMap<String, CtClass> {
+
+    /**
+     * Serialization version.
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Load factor of the map.
+     */
+    private static final float LOAD_FACTOR = 0.75f;
+
+    /**
+     * Creates a new, empty <code>LruCache</code> instance.
+     */
+    LruCache() {
+      super(CAPACITY, LOAD_FACTOR, true);
+    }
+
+    @Override
+    protected boolean removeEldestEntry(
+        final Map.Entry<String, CtClass> eldest) {
+      if (size() <= CAPACITY) {
+        return false;
+      }
+      EVICTIONS.incrementAndGet();
+      return true;
+    }
+  }
+}
@@ -0,0 +1,48 @@
+package com.diffblue.deeptestutils;
+
+// Copyright 2016-2018 Diffblue limited. All rights reserved.
+
+/**
+ * <code>ClassAccessor</code> reads and writes the fields of instances of one
+ * class, bypassing their access modifiers. Fields are identified by a number
+ * obtained once from {@link #fieldId(String)}, so that repeated accesses do
+ * not need to look the field up by name.
+ * <p>
+ * Accessors are obtained from {@link Reflector#accessorFor(Class)}.
+ *
+ * @author <a href="http://diffblue.com">Diffblue</a>
+ */
+public interface ClassAccessor {
+
+  /**
+   * Returns the number identifying a named field of the class or of one of
+   * its superclasses.
+   *
+   * @param name the name of the field as <code>String</code> value
+   * @return the number of the field, or -1 if there is no field with that
+   *     name
+   */
+  int fieldId(String name);
+
+  /**
+   * Reads a field.
+   *
+   * @param fieldId the number of the field, as returned by
+   *     {@link #fieldId(String)}
+   * @param target the <code>Object</code> whose field is read, or null for a
+   *     static field
+   * @return the value of the field, boxed if it is primitive
+   */
+  Object get(int fieldId, Object target);
+
+  /**
+   * Writes a field.
+   *
+   * @param fieldId the number of the field, as returned by
+   *     {@link #fieldId(String)}
+   * @param target the <code>Object</code> whose field is written, or null
+   *     for a static field
+   * @param value the new value, unboxed if the field is primitive
+   */
+  void set(int fieldId, Object target, Object value);
+}
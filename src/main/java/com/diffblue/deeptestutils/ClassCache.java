@@ -0,0 +1,321 @@
+package com.diffblue.deeptestutils;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Copyright 2016-2018 Diffblue limited. All rights reserved.
+
+/**
+ * <code>ClassCache</code> caches values computed for classes, by class loader
+ * and class name, without keeping class loaders alive.
+ * <p>
+ * Values for classes of the class loader of deeptest-utils, of its
+ * ancestors and of the bootstrap class loader are held strongly: these
+ * class loaders live as long as the cache. Values for classes of any other
+ * class loader, such as the one PowerMock creates for each test class, are
+ * held through soft references, in a map keyed weakly by the class loader.
+ * Looking them up takes no lock; the entries of unreachable class loaders
+ * are purged when a map is created for another one.
+ * A value may refer to its class, and so to its class loader: once the class
+ * loader is otherwise unreachable, the value is reclaimed when memory runs
+ * low, and the class loader with it. Until then it is reused.
+ *
+ * @param <V> the type of the cached values
+ * @author <a href="http://diffblue.com">Diffblue</a>
+ */
+final class ClassCache<V> {
+
+  /**
+   * The class loader of deeptest-utils and its ancestors, which live as long
+   * as any cache.
+   */
+  private static final ClassLoader[] PERMANENT_LOADERS = permanentLoaders();
+
+  /**
+   * The values for classes of the bootstrap class loader, by class name.
+   */
+  private final ConcurrentHashMap<String, V> bootstrap =
+      new ConcurrentHashMap<String, V>();
+
+  /**
+   * The values for classes of each of <code>PERMANENT_LOADERS</code>, by
+   * class name, in the same order.
+   */
+  private final ArrayList<ConcurrentHashMap<String, V>> permanent =
+      new ArrayList<ConcurrentHashMap<String, V>>();
+
+  /**
+   * The values for classes of other class loaders, by class name, keyed by
+   * {@link LoaderKey}.
+   */
+  private final ConcurrentHashMap<LoaderKey,
+      ConcurrentHashMap<String, SoftReference<V>>> others =
+          new ConcurrentHashMap<LoaderKey,
+              ConcurrentHashMap<String, SoftReference<V>>>();
+
+  /**
+   * The keys of <code>others</code> whose class loader was reclaimed.
+   */
+  private final ReferenceQueue<ClassLoader> reclaimed =
+      new ReferenceQueue<ClassLoader>();
+
+  /**
+   * <code>LoaderKey</code> refers weakly to a class loader, and compares it
+   * by identity while it is reachable.
+   */
+  private static final class LoaderKey extends WeakReference<ClassLoader> {
+
+    /**
+     * The identity hash code of the class loader.
+     */
+    private final int hash;
+
+    /**
+     * Creates a key for a class loader.
+     *
+     * @param loader the <code>ClassLoader</code>
+     * @param queue the queue to register with once the class loader is
+     *     reclaimed, or null for a key only used to look up
+     */
+    LoaderKey(final ClassLoader loader,
+              final ReferenceQueue<ClassLoader> queue) {
+      super(loader, queue);
+      hash = System.identityHashCode(loader);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      if (o == this) {
+        return true;
+      }
+      if (!(o instanceof LoaderKey)) {
+        return false;
+      }
+      ClassLoader loader = get();
+      return loader != null && loader == ((LoaderKey) o).get();
+    }
+  }
+
+  /**
+   * Creates a new, empty <code>ClassCache</code> instance.
+   */
+  ClassCache() {
+    for (int i = 0; i < PERMANENT_LOADERS.length; ++i) {
+      permanent.add(new ConcurrentHashMap<String, V>());
+    }
+  }
+
+  /**
+   * Returns the class loader of deeptest-utils and its ancestors, except
+   * for the bootstrap class loader.
+   *
+   * @return the <code>ClassLoader</code>s, nearest first
+   */
+  private static ClassLoader[] permanentLoaders() {
+    ArrayList<ClassLoader> loaders = new ArrayList<ClassLoader>();
+    for (ClassLoader l = ClassCache.class.getClassLoader(); l != null;
+         l = l.getParent()) {
+      loaders.add(l);
+    }
+    return loaders.toArray(new ClassLoader[loaders.size()]);
+  }
+
+  /**
+   * Returns the value cached for a class.
+   *
+   * @param c the <code>Class</code>
+   * @return the value, or null if there is none
+   */
+  V get(final Class<?> c) {
+    return get(c.getClassLoader(), c.getName());
+  }
+
+  /**
+   * Returns the value cached for a class name in a class loader.
+   *
+   * @param loader the <code>ClassLoader</code>, null for the bootstrap class
+   *     loader
+   * @param name the name of the class
+   * @return the value, or null if there is none
+   */
+  V get(final ClassLoader loader, final String name) {
+    ConcurrentHashMap<String, V> strong = strongValues(loader);
+    if (strong != null) {
+      return strong.get(name);
+    }
+    ConcurrentHashMap<String, SoftReference<V>> soft =
+        softValues(loader, false);
+    if (soft == null) {
+      return null;
+    }
+    SoftReference<V> ref = soft.get(name);
+    if (ref == null) {
+      return null;
+    }
+    return ref.get();
+  }
+
+  /**
+   * Caches a value for a class, unless there is one already.
+   *
+   * @param c the <code>Class</code>
+   * @param value the value to cache, not null
+   * @return the value cached for the class: <code>value</code>, or the one
+   *     cached before
+   */
+  V putIfAbsent(final Class<?> c, final V value) {
+    return putIfAbsent(c.getClassLoader(), c.getName(), value);
+  }
+
+  /**
+   * Caches a value for a class name in a class loader, unless there is one
+   * already.
+   *
+   * @param loader the <code>ClassLoader</code>, null for the bootstrap class
+   *     loader
+   * @param name the name of the class
+   * @param value the value to cache, not null
+   * @return the value cached for the class: <code>value</code>, or the one
+   *     cached before
+   */
+  V putIfAbsent(final ClassLoader loader, final String name, final V value) {
+    ConcurrentHashMap<String, V> strong = strongValues(loader);
+    if (strong != null) {
+      V previous = strong.putIfAbsent(name, value);
+      if (previous != null) {
+        return previous;
+      }
+      return value;
+    }
+    ConcurrentHashMap<String, SoftReference<V>> soft =
+        softValues(loader, true);
+    SoftReference<V> created = new SoftReference<V>(value);
+    while (true) {
+      SoftReference<V> ref = soft.putIfAbsent(name, created);
+      if (ref == null) {
+        return value;
+      }
+      V previous = ref.get();
+      if (previous != null) {
+        return previous;
+      }
+      if (soft.replace(name, ref, created)) {
+        return value;
+      }
+    }
+  }
+
+  /**
+   * Caches a value for a class, replacing any value cached before.
+   *
+   * @param c the <code>Class</code>
+   * @param value the value to cache, not null
+   */
+  void put(final Class<?> c, final V value) {
+    ConcurrentHashMap<String, V> strong = strongValues(c.getClassLoader());
+    if (strong != null) {
+      strong.put(c.getName(), value);
+    } else {
+      softValues(c.getClassLoader(), true)
+          .put(c.getName(), new SoftReference<V>(value));
+    }
+  }
+
+  /**
+   * Removes the value cached for a class, if any.
+   *
+   * @param c the <code>Class</code>
+   */
+  void remove(final Class<?> c) {
+    ConcurrentHashMap<String, V> strong = strongValues(c.getClassLoader());
+    if (strong != null) {
+      strong.remove(c.getName());
+      return;
+    }
+    ConcurrentHashMap<String, SoftReference<V>> soft =
+        softValues(c.getClassLoader(), false);
+    if (soft != null) {
+      soft.remove(c.getName());
+    }
+  }
+
+  /**
+   * Removes the value cached for a class name in a class loader, if it is
+   * the given one.
+   *
+   * @param loader the <code>ClassLoader</code>, null for the bootstrap class
+   *     loader
+   * @param name the name of the class
+   * @param value the value to remove
+   */
+  void remove(final ClassLoader loader, final String name, final V value) {
+    ConcurrentHashMap<String, V> strong = strongValues(loader);
+    if (strong != null) {
+      strong.remove(name, value);
+      return;
+    }
+    ConcurrentHashMap<String, SoftReference<V>> soft =
+        softValues(loader, false);
+    if (soft != null) {
+      SoftReference<V> ref = soft.get(name);
+      if (ref != null && ref.get() == value) {
+        soft.remove(name, ref);
+      }
+    }
+  }
+
+  /**
+   * Returns the strongly held values of a class loader.
+   *
+   * @param loader the <code>ClassLoader</code>, null for the bootstrap class
+   *     loader
+   * @return the values by class name, or null if the class loader is not a
+   *     permanent one
+   */
+  private ConcurrentHashMap<String, V> strongValues(final ClassLoader loader) {
+    if (loader == null) {
+      return bootstrap;
+    }
+    for (int i = 0; i < PERMANENT_LOADERS.length; ++i) {
+      if (PERMANENT_LOADERS[i] == loader) {
+        return permanent.get(i);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns the softly held values of a class loader.
+   *
+   * @param loader the <code>ClassLoader</code>, not a permanent one
+   * @param create whether to create the map if there is none
+   * @return the values by class name, or null if there are none and
+   *     <code>create</code> is false
+   */
+  private ConcurrentHashMap<String, SoftReference<V>> softValues(
+      final ClassLoader loader, final boolean create) {
+    ConcurrentHashMap<String, SoftReference<V>> values =
+        others.get(new LoaderKey(loader, null));
+    if (values != null || !create) {
+      return values;
+    }
+    for (Object key = reclaimed.poll(); key != null; key = reclaimed.poll()) {
+      others.remove(key);
+    }
+    values = new ConcurrentHashMap<String, SoftReference<V>>();
+    ConcurrentHashMap<String, SoftReference<V>> previous =
+        others.putIfAbsent(new LoaderKey(loader, reclaimed), values);
+    if (previous != null) {
+      return previous;
+    }
+    return values;
+  }
+}
@@ -0,0 +1,271 @@
+package com.diffblue.deeptestutils;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+// Copyright 2016-2018 Diffblue limited. All rights reserved.
+
+/**
+ * <code>ClassLayout</code> indexes the fields of a class, including those
+ * inherited from its superclasses, by name. Fields declared in a subclass
+ * hide fields of the same name declared in a superclass, just as in the
+ * search done by <code>Class.getDeclaredField</code> up the class
+ * hierarchy.
+ * <p>
+ * Layouts are computed once per class and cached in a {@link ClassCache},
+ * which does not keep the class loaders of the classes alive, so that
+ * looking up a field is a single hash probe. Each field is bound
+ * to a {@link FieldAccessor} once, after it has been made accessible, and is
+ * numbered. A layout extends the layout of the superclass: inherited fields,
+ * including hidden ones, keep their accessors and numbers, and the fields
+ * declared by the class are numbered after them. The declared types of the
+ * fields, and which of them are static, are also recorded once.
+ *
+ * @author <a href="http://diffblue.com">Diffblue</a>
+ */
+final class ClassLayout {
+
+  /**
+   * Cache of the layouts computed so far.
+   */
+  private static final ClassCache<ClassLayout> LAYOUTS =
+      new ClassCache<ClassLayout>();
+
+  /**
+   * The class described by this layout.
+   */
+  private final Class<?> type;
+
+  /**
+   * Mapping from field names to the numbers of the fields visible in the
+   * class.
+   */
+  private final HashMap<String, Integer> ids;
+
+  /**
+   * Accessors of all fields of the class and its superclasses, indexed by
+   * field number.
+   */
+  private final FieldAccessor[] accessors;
+
+  /**
+   * Declared types of all fields of the class and its superclasses, indexed
+   * by field number.
+   */
+  private final Class<?>[] types;
+
+  /**
+   * Numbers of the instance fields of the class and its superclasses, in
+   * increasing order.
+   */
+  private final int[] instanceIds;
+
+  /**
+   * Accessors of the static fields of the class and its superclasses.
+   */
+  private final FieldAccessor[] staticAccessors;
+
+  /**
+   * Accessor used for field accesses by number.
+   */
+  private final TieredClassAccessor classAccessor;
+
+  /**
+   * The write plan most recently used on the class, reused as long as
+   * callers keep writing field lists of the same shape.
+   */
+  private volatile WritePlan lastWritePlan;
+
+  /**
+   * Creates the layout of a class, reusing the layout of its superclass.
+   *
+   * @param c the <code>Class</code> to describe
+   */
+  private ClassLayout(final Class<?> c) {
+    type = c;
+    Class<?> superclass = c.getSuperclass();
+    Field[] declared = c.getDeclaredFields();
+    FieldAccessor[] inherited;
+    if (superclass == null) {
+      ids = new HashMap<String, Integer>();
+      inherited = new FieldAccessor[0];
+    } else {
+      ClassLayout parent = of(superclass);
+      ids = new HashMap<String, Integer>(parent.ids);
+      inherited = parent.accessors;
+    }
+    accessors = new FieldAccessor[inherited.length + declared.length];
+    System.arraycopy(inherited, 0, accessors, 0, inherited.length);
+    for (int i = 0; i < declared.length; ++i) {
+      int id = inherited.length + i;
+      makeAccessible(declared[i]);
+      accessors[id] = new FieldAccessor(declared[i]);
+      ids.put(declared[i].getName(), id);
+    }
+    types = new Class<?>[accessors.length];
+    ArrayList<Integer> instances = new ArrayList<Integer>();
+    ArrayList<FieldAccessor> statics = new ArrayList<FieldAccessor>();
+    for (int id = 0; id < accessors.length; ++id) {
+      Field f = accessors[id].getField();
+      types[id] = f.getType();
+      if (Modifier.isStatic(f.getModifiers())) {
+        statics.add(accessors[id]);
+      } else {
+        instances.add(id);
+      }
+    }
+    instanceIds = new int[instances.size()];
+    for (int i = 0; i < instanceIds.length; ++i) {
+      instanceIds[i] = instances.get(i);
+    }
+    staticAccessors = statics.toArray(new FieldAccessor[statics.size()]);
+    classAccessor = new TieredClassAccessor(this);
+  }
+
+  /**
+   * Returns the layout of a class, computing it on first use.
+   *
+   * @param c the <code>Class</code> to describe, must not be null
+   * @return the <code>ClassLayout</code> of the class
+   */
+  static ClassLayout of(final Class<?> c) {
+    ClassLayout layout = LAYOUTS.get(c);
+    if (layout == null) {
+      layout = LAYOUTS.putIfAbsent(c, new ClassLayout(c));
+    }
+    return layout;
+  }
+
+  /**
+   * The type accessor.
+   *
+   * @return the <code>Class</code> described by this layout
+   */
+  Class<?> getType() {
+    return type;
+  }
+
+  /**
+   * Returns the accessor of a named field of the class or of one of its
+   * superclasses.
+   *
+   * @param name the name of the field as <code>String</code> value
+   * @return the <code>FieldAccessor</code> of the field, or null if there is
+   *     no field with that name
+   */
+  FieldAccessor getAccessor(final String name) {
+    Integer id = ids.get(name);
+    if (id == null) {
+      return null;
+    }
+    return accessors[id];
+  }
+
+  /**
+   * Returns the number of a named field of the class or of one of its
+   * superclasses.
+   *
+   * @param name the name of the field as <code>String</code> value
+   * @return the number of the field, or -1 if there is no field with that
+   *     name
+   */
+  int getFieldId(final String name) {
+    Integer id = ids.get(name);
+    if (id == null) {
+      return -1;
+    }
+    return id;
+  }
+
+  /**
+   * Returns the accessor of a field by number.
+   *
+   * @param id the number of the field
+   * @return the <code>FieldAccessor</code> of the field
+   */
+  FieldAccessor getAccessor(final int id) {
+    return accessors[id];
+  }
+
+  /**
+   * Returns the number of fields of the class and its superclasses, including
+   * hidden fields. Fields are numbered from 0 to this number, exclusive.
+   *
+   * @return the number of fields
+   */
+  int getFieldCount() {
+    return accessors.length;
+  }
+
+  /**
+   * Returns the declared type of a field by number.
+   *
+   * @param id the number of the field
+   * @return the <code>Class</code> of the field
+   */
+  Class<?> getFieldType(final int id) {
+    return types[id];
+  }
+
+  /**
+   * Returns the numbers of the instance fields of the class and its
+   * superclasses, including hidden fields. The array must not be modified.
+   *
+   * @return the numbers of the instance fields, in increasing order
+   */
+  int[] getInstanceFieldIds() {
+    return instanceIds;
+  }
+
+  /**
+   * Returns the accessors of the static fields of the class and its
+   * superclasses, including hidden fields. The array must not be modified.
+   *
+   * @return the <code>FieldAccessor</code>s of the static fields
+   */
+  FieldAccessor[] getStaticAccessors() {
+    return staticAccessors;
+  }
+
+  /**
+   * Returns the accessor giving access to the fields of the class by number.
+   *
+   * @return the <code>ClassAccessor</code> of the class
+   */
+  ClassAccessor getClassAccessor() {
+    return classAccessor;
+  }
+
+  /**
+   * Returns a plan that writes the fields of a field list to instances of the
+   * class.
+   *
+   * @param values the <code>FieldList</code> to write
+   * @return a <code>WritePlan</code> matching <code>values</code>
+   */
+  WritePlan getWritePlan(final FieldList values) {
+    WritePlan plan = lastWritePlan;
+    if (plan == null || !plan.matches(values)) {
+      plan = new WritePlan(this, values);
+      lastWritePlan = plan;
+    }
+    return plan;
+  }
+
+  /**
+   * Suppresses the Java language access checks of a field. Fields for which
+   * this is refused, e.g. by a security manager, are still indexed and fail
+   * with an <code>IllegalAccessException</code> when they are used.
+   *
+   * @param f the <code>Field</code> to make accessible
+   */
+  private static void makeAccessible(final Field f) {
+    try {
+      f.setAccessible(true);
+    } catch (RuntimeException e) {
+      // Leave the field inaccessible.
+    }
+  }
+}
@@ -0,0 +1,91 @@
+package com.diffblue.deeptestutils;
+
+// Copyright 2016-2018 Diffblue limited. All rights reserved.
+
+/**
+ * <code>ClassPoolStatistics</code> describes the javassist class pools used
+ * by {@link Reflector} at one point in time, see
+ * {@link Reflector#getClassPoolStatistics()}.
+ *
+ * @author <a href="http://diffblue.com">Diffblue</a>
+ */
+public final class ClassPoolStatistics {
+
+  /**
+   * Number of pools, one per class loader.
+   */
+  private final int poolCount;
+
+  /**
+   * Number of classes cached by all pools.
+   */
+  private final int cachedClassCount;
+
+  /**
+   * Maximum number of classes cached by each pool.
+   */
+  private final int capacity;
+
+  /**
+   * Number of classes evicted from all pools so far.
+   */
+  private final long evictionCount;
+
+  /**
+   * Creates a new <code>ClassPoolStatistics</code> instance.
+   *
+   * @param pools the number of pools
+   * @param classes the number of cached classes
+   * @param maxClasses the maximum number of classes per pool
+   * @param evictions the number of evicted classes
+   */
+  ClassPoolStatistics(final int pools, final int classes,
+                      final int maxClasses, final long evictions) {
+    poolCount = pools;
+    cachedClassCount = classes;
+    capacity = maxClasses;
+    evictionCount = evictions;
+  }
+
+  /**
+   * The pool count accessor.
+   *
+   * @return the number of pools, one per class loader
+   */
+  public int getPoolCount() {
+    return poolCount;
+  }
+
+  /**
+   * The cached class count accessor.
+   *
+   * @return the number of classes cached by all pools
+   */
+  public int getCachedClassCount() {
+    return cachedClassCount;
+  }
+
+  /**
+   * The capacity accessor.
+   *
+   * @return the maximum number of classes cached by each pool
+   */
+  public int getCapacity() {
+    return capacity;
+  }
+
+  /**
+   * The eviction count accessor.
+   *
+   * @return the number of classes evicted from all pools so far
+   */
+  public long getEvictionCount() {
+    return evictionCount;
+  }
+
+  @Override
+  public String toString() {
+    return poolCount + " pools, " + cachedClassCount + " classes cached of "
+        + capacity + " per pool, " + evictionCount + " evicted";
+  }
+}
@@ -0,0 +1,276 @@
+package com.diffblue.deeptestutils;
+
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Array;
+import java.util.HashMap;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Copyright 2016-2018 Diffblue limited. All rights reserved.
+
+/**
+ * <code>ClassResolver</code> resolves type names, as accepted by
+ * {@link Reflector#forName(String)}, in one class loader, and caches the
+ * result by name. A repeated name costs a single hash lookup.
+ * <p>
+ * Resolvers are shared per class loader, see {@link #of(ClassLoader)}. The
+ * cache refers to classes weakly so that it does not keep their class
+ * loaders alive.
+ *
+ * @author <a href="http://diffblue.com">Diffblue</a>
+ */
+final class ClassResolver {
+
+  /**
+   * The primitive types by name.
+   */
+  private static final HashMap<String, Class<?>> PRIMITIVES =
+      new HashMap<String, Class<?>>();
+
+  static {
+    PRIMITIVES.put("boolean", boolean.class);
+    PRIMITIVES.put("byte", byte.class);
+    PRIMITIVES.put("char", char.class);
+    PRIMITIVES.put("short", short.class);
+    PRIMITIVES.put("int", int.class);
+    PRIMITIVES.put("long", long.class);
+    PRIMITIVES.put("float", float.class);
+    PRIMITIVES.put("double", double.class);
+  }
+
+  /**
+   * The class loader of <code>Reflector</code>, which
+   * <code>Class.forName(String)</code> would use.
+   */
+  private static final ClassLoader DEFAULT_LOADER =
+      Reflector.class.getClassLoader();
+
+  /**
+   * Resolver for <code>DEFAULT_LOADER</code>.
+   */
+  private static final ClassResolver DEFAULT =
+      new ClassResolver(DEFAULT_LOADER);
+
+  /**
+   * Resolvers for other class loaders, guarded by itself.
+   */
+  private static final WeakHashMap<ClassLoader, ClassResolver> RESOLVERS =
+      new WeakHashMap<ClassLoader, ClassResolver>();
+
+  /**
+   * The class loader used to load classes, null for the bootstrap class
+   * loader. It is referred to weakly, as the resolver is a value of
+   * <code>RESOLVERS</code>, which is keyed by the class loader.
+   */
+  private final WeakReference<ClassLoader> loader;
+
+  /**
+   * The classes resolved so far, by the name they were requested with.
+   */
+  private final ConcurrentHashMap<String, WeakReference<Class<?>>> cache =
+      new ConcurrentHashMap<String, WeakReference<Class<?>>>();
+
+  /**
+   * Creates a new <code>ClassResolver</code> instance.
+   *
+   * @param l the <code>ClassLoader</code> to load classes with
+   */
+  private ClassResolver(final ClassLoader l) {
+    loader = new WeakReference<ClassLoader>(l);
+  }
+
+  /**
+   * Returns the resolver of the class loader of <code>Reflector</code>.
+   *
+   * @return the default <code>ClassResolver</code>
+   */
+  static ClassResolver getDefault() {
+    return DEFAULT;
+  }
+
+  /**
+   * Returns the resolver of a class loader.
+   *
+   * @param l the <code>ClassLoader</code>, null for the bootstrap class
+   *     loader
+   * @return the <code>ClassResolver</code> of the class loader
+   */
+  static ClassResolver of(final ClassLoader l) {
+    if (l == DEFAULT_LOADER) {
+      return DEFAULT;
+    }
+    synchronized (RESOLVERS) {
+      ClassResolver resolver = RESOLVERS.get(l);
+      if (resolver == null) {
+        resolver = new ClassResolver(l);
+        RESOLVERS.put(l, resolver);
+      }
+      return resolver;
+    }
+  }
+
+  /**
+   * Returns the class of a type name, loading and initializing it if needed.
+   *
+   * @param name a primitive type, a binary class name, or either followed by
+   *     <code>[]</code> for each array dimension, whitespace being ignored;
+   *     or a JVM field descriptor
+   * @return the <code>Class</code> object
+   * @throws ClassNotFoundException if the class cannot be found
+   */
+  Class<?> resolve(final String name) throws ClassNotFoundException {
+    WeakReference<Class<?>> ref = cache.get(name);
+    if (ref != null) {
+      Class<?> c = ref.get();
+      if (c != null) {
+        return c;
+      }
+    }
+    Class<?> c = parse(name);
+    cache.put(name, new WeakReference<Class<?>>(c));
+    return c;
+  }
+
+  /**
+   * Parses a type name.
+   *
+   * @param name the type name, see {@link #resolve(String)}
+   * @return the <code>Class</code> object
+   * @throws ClassNotFoundException if the class cannot be found
+   */
+  private Class<?> parse(final String name) throws ClassNotFoundException {
+    int start = 0;
+    int end = name.length();
+    while (start < end && Character.isWhitespace(name.charAt(start))) {
+      ++start;
+    }
+    while (end > start && Character.isWhitespace(name.charAt(end - 1))) {
+      --end;
+    }
+    if (start < end && (name.charAt(start) == '['
+        || name.charAt(start) == 'L' && name.charAt(end - 1) == ';')) {
+      return parseDescriptor(name, start, end);
+    }
+    int dimensions = 0;
+    while (true) {
+      while (end > start && Character.isWhitespace(name.charAt(end - 1))) {
+        --end;
+      }
+      if (end - start < 2 || name.charAt(end - 1) != ']') {
+        break;
+      }
+      int open = end - 1;
+      while (open > start && Character.isWhitespace(name.charAt(open - 1))) {
+        --open;
+      }
+      if (open == start || name.charAt(open - 1) != '[') {
+        break;
+      }
+      end = open - 1;
+      ++dimensions;
+    }
+    String element = stripWhitespace(name, start, end);
+    Class<?> c = PRIMITIVES.get(element);
+    if (c == null) {
+      c = Class.forName(element, true, loader.get());
+    }
+    if (dimensions == 0) {
+      return c;
+    }
+    return Array.newInstance(c, new int[dimensions]).getClass();
+  }
+
+  /**
+   * Parses a JVM field descriptor, such as <code>[[I</code> or
+   * <code>Ljava/lang/String;</code>.
+   *
+   * @param name the <code>String</code> containing the descriptor
+   * @param start the index of the first character of the descriptor
+   * @param end the index after the last character of the descriptor
+   * @return the <code>Class</code> object
+   * @throws ClassNotFoundException if the descriptor is malformed or the
+   *     class cannot be found
+   */
+  private Class<?> parseDescriptor(final String name, final int start,
+                                   final int end)
+      throws ClassNotFoundException {
+    int elementStart = start;
+    while (elementStart < end && name.charAt(elementStart) == '[') {
+      ++elementStart;
+    }
+    int dimensions = elementStart - start;
+    Class<?> c = null;
+    if (elementStart == end - 1) {
+      c = primitiveDescriptor(name.charAt(elementStart));
+    } else if (end - elementStart > 2 && name.charAt(elementStart) == 'L'
+        && name.charAt(end - 1) == ';') {
+      c = Class.forName(
+          name.substring(elementStart + 1, end - 1).replace('/', '.'),
+          true, loader.get());
+    }
+    if (c == null) {
+      throw new ClassNotFoundException(name);
+    }
+    if (dimensions == 0) {
+      return c;
+    }
+    return Array.newInstance(c, new int[dimensions]).getClass();
+  }
+
+  /**
+   * Returns the primitive type of a descriptor character.
+   *
+   * @param descriptor the descriptor character, e.g. <code>I</code>
+   * @return the primitive <code>Class</code>, or null if the character does
+   *     not describe a primitive type
+   */
+  private static Class<?> primitiveDescriptor(final char descriptor) {
+    switch (descriptor) {
+      case 'Z':
+        return boolean.class;
+      case 'B':
+        return byte.class;
+      case 'C':
+        return char.class;
+      case 'S':
+        return short.class;
+      case 'I':
+        return int.class;
+      case 'J':
+        return long.class;
+      case 'F':
+        return float.class;
+      case 'D':
+        return double.class;
+      default:
+        return null;
+    }
+  }
+
+  /**
+   * Returns part of a string without its whitespace.
+   *
+   * @param s the <code>String</code>
+   * @param start the index of the first character of the part
+   * @param end the index after the last character of the part
+   * @return the part of <code>s</code>, without whitespace
+   */
+  private static String stripWhitespace(final String s, final int start,
+                                        final int end) {
+    int i = start;
+    while (i < end && !Character.isWhitespace(s.charAt(i))) {
+      ++i;
+    }
+    if (i == end) {
+      return s.substring(start, end);
+    }
+    StringBuilder b = new StringBuilder(end - start);
+    for (i = start; i < end; ++i) {
+      char ch = s.charAt(i);
+      if (!Character.isWhitespace(ch)) {
+        b.append(ch);
+      }
+    }
+    return b.toString();
+  }
+}
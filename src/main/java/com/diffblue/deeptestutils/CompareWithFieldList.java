@@ -2,9 +2,16 @@ package com.diffblue.deeptestutils;
 
 import java.io.FileNotFoundException;
 import java.io.PrintStream;
-import java.lang.reflect.Field;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 // Copyright 2016-2018 Diffblue limited. All rights reserved.
 
@@ -23,6 +30,20 @@ public final class CompareWithFieldList {
   private CompareWithFieldList() {
   }
 
+  /**
+   * Default number of elements or fields from which an array or a field list
+   * is compared in parallel, by {@link #compareInParallel(Object, Object)}.
+   */
+  private static final int DEFAULT_PARALLEL_THRESHOLD = 1024;
+
+  /**
+   * Number of elements or fields from which an array or a field list is
+   * compared in parallel, set by the system property
+   * <code>deeptestutils.parallelThreshold</code>.
+   */
+  private static final int PARALLEL_THRESHOLD = Integer.getInteger(
+      "deeptestutils.parallelThreshold", DEFAULT_PARALLEL_THRESHOLD);
+
   /**
    * Output stream for debugging.
    */
@@ -59,22 +80,51 @@ public final class CompareWithFieldList {
   }
 
   /**
-   * Returns a named field of a class.
+   * Returns the accessor of a named field of a class or of one of its
+   * superclasses.
    *
    * @param cls the <code>Class</code> to look at
    * @param name the name of the field as <code>String</code> value
-   * @return the <code>Field</code> value
+   * @return the <code>FieldAccessor</code> of the field, or null if the class
+   *     is null or has no field with that name
    */
-  private static Field getField(final Class cls, final String name) {
-    Class currentClass = cls;
-    while (cls != null) {
-      try {
-        return currentClass.getDeclaredField(name);
-      } catch (NoSuchFieldException e) {
-        currentClass = currentClass.getSuperclass();
-      }
+  private static FieldAccessor getField(final Class cls, final String name) {
+    if (cls == null) {
+      return null;
+    }
+    return ClassLayout.of(cls).getAccessor(name);
+  }
+
+  /**
+   * Checks whether a value is a boxed primitive.
+   *
+   * @param value the <code>Object</code> to check, not null
+   * @return true if <code>value</code> boxes a primitive
+   */
+  static boolean isPrimitive(final Object value) {
+    return primitives.contains(value.getClass());
+  }
+
+  /**
+   * Checks whether debugging output is enabled, by the environment variable
+   * <code>CWFL_OUTPUT_FILE</code>.
+   *
+   * @return true if {@link #debug} prints
+   */
+  static boolean isDebugging() {
+    return debugOut != null;
+  }
+
+  /**
+   * Prints a line of debugging output, if enabled.
+   *
+   * @param format the format of the line, as by <code>printf</code>
+   * @param args the arguments of the format
+   */
+  static void debug(final String format, final Object... args) {
+    if (debugOut != null) {
+      debugOut.printf(format, args);
     }
-    return null;
   }
 
   /**
@@ -85,7 +135,7 @@ public final class CompareWithFieldList {
    * @param prefix the difference prefix to get the error message as
    *   <code>String</code>
    */
-  private static void fail(
+  static void fail(
       final Object actual,
       final Object expected,
       final String prefix) {
@@ -111,6 +161,20 @@ public final class CompareWithFieldList {
       fieldStr + "Expected " + expectedStr + " got " + actualStr);
   }
 
+  /**
+   * Throws an exception with detailed error message.
+   *
+   * @param actual the original <code>Object</code>
+   * @param expected the <code>Object</code> compared to that differs
+   * @param path the path of <code>actual</code> from the root object
+   */
+  static void fail(
+      final Object actual,
+      final Object expected,
+      final FieldPath path) {
+    fail(actual, expected, path.toString());
+  }
+
   /**
    * Compares an object to either another object or a field
    * list. Returns on success, throws on error.
@@ -127,30 +191,149 @@ public final class CompareWithFieldList {
       final Object real,
       final String prefix,
       final HashMap<Object, Object> objectStack) {
+    ComparisonContext context = ComparisonContext.acquire(prefix);
+    try {
+      for (Map.Entry<Object, Object> entry : objectStack.entrySet()) {
+        context.start(entry.getKey(), entry.getValue());
+      }
+      compare(primitiveOrFieldList, real, context);
+    } finally {
+      context.release();
+    }
+  }
+
+  /**
+   * Compares an object to either another object or a field
+   * list. Returns on success, throws on error.
+   * <p>
+   * Arrays and field lists are compared depth first, through the work stack
+   * of the context rather than by recursion, so that graphs of any depth
+   * compare in bounded native stack.
+   *
+   * @param primitiveOrFieldList the <code>Object</code> to compare to
+   * @param real the <code>Object</code> to compare
+   * @param context the <code>ComparisonContext</code> holding the path of
+   *     <code>real</code> from the root object, the arrays and field lists
+   *     being compared by parents of this call, used in checking cyclic data
+   *     structures, and those already found equal to real objects
+   */
+  private static void compare(
+      final Object primitiveOrFieldList,
+      final Object real,
+      final ComparisonContext context) {
+    if (visit(primitiveOrFieldList, real, context)) {
+      run(context);
+    }
+  }
+
+  /**
+   * Compares the children of the arrays and field lists on the work stack
+   * of a context, depth first, until the stack is empty. Returns on
+   * success, throws on error.
+   *
+   * @param context the <code>ComparisonContext</code> of the comparison
+   */
+  private static void run(final ComparisonContext context) {
+    FieldPath path = context.getPath();
+    WorkStack stack = context.getStack();
+    while (!stack.isEmpty()) {
+      if (context.isAbandoned()) {
+        throw new CancellationException();
+      }
+      Object parent = stack.getExpected();
+      Object parentReal = stack.getReal();
+      int i = stack.next();
+      if (i == -1) {
+        stack.pop();
+        context.finish(parent, parentReal);
+        if (!stack.isEmpty()) {
+          path.pop();
+        }
+        continue;
+      }
+      if (!visitChild(parent, parentReal, i, context)) {
+        path.pop();
+      }
+    }
+  }
+
+  /**
+   * Pushes an element or field of an array or field list to the path, and
+   * compares it as {@link #visit} does.
+   *
+   * @param parent the expected array or <code>FieldList</code>
+   * @param parentReal the real array or object compared to
+   *     <code>parent</code>
+   * @param index the index of the element or field
+   * @param context the <code>ComparisonContext</code> of the comparison
+   * @return true if a frame was pushed to compare the elements or fields of
+   *     the child
+   */
+  private static boolean visitChild(
+      final Object parent,
+      final Object parentReal,
+      final int index,
+      final ComparisonContext context) {
+    if (parent instanceof FieldList) {
+      FieldValue v = ((FieldList) parent).getFields().get(index);
+      FieldAccessor field = getField(parentReal.getClass(), v.getName());
+      if (field == null) {
+        throw new RuntimeException(
+          "Real object of class " + parentReal.getClass().getName()
+          + " did not have expected field " + v.getName());
+      }
+      context.getPath().push(v.getName());
+      return visit(v.getValue(), field.get(parentReal), context);
+    }
+    context.getPath().push(index);
+    return visit(((Object[]) parent)[index], ((Object[]) parentReal)[index],
+                 context);
+  }
+
+  /**
+   * Compares an object to either another object or a field list, except
+   * for the elements or fields of arrays and field lists, which are left
+   * on the work stack of the context. Returns on success, throws on error.
+   *
+   * @param primitiveOrFieldList the <code>Object</code> to compare to
+   * @param real the <code>Object</code> to compare
+   * @param context the <code>ComparisonContext</code> of the comparison
+   * @return true if a frame was pushed to compare the elements or fields
+   */
+  private static boolean visit(
+      final Object primitiveOrFieldList,
+      final Object real,
+      final ComparisonContext context) {
+    FieldPath path = context.getPath();
 
     if (real == null) {
       if (primitiveOrFieldList == null) {
         if (debugOut != null) {
-          debugOut.printf("%s null as expected\n", prefix);
+          debugOut.printf("%s null as expected\n", path);
         }
-        return;
+        return false;
       }
-      fail(real, primitiveOrFieldList, prefix);
+      fail(real, primitiveOrFieldList, path);
     }
     if (real.equals(primitiveOrFieldList)) {
       if (debugOut != null) {
-        debugOut.printf("%s = %s as expected\n", prefix, real.toString());
+        debugOut.printf("%s = %s as expected\n", path, real.toString());
       }
-      return;
+      return false;
     }
     if (primitiveOrFieldList == null) {
-      fail(real, primitiveOrFieldList, prefix);
+      fail(real, primitiveOrFieldList, path);
     }
     if (primitives.contains(primitiveOrFieldList.getClass())) {
-      fail(real, primitiveOrFieldList, prefix);
+      fail(real, primitiveOrFieldList, path);
     }
-
-    Object previousReal = objectStack.get(primitiveOrFieldList);
+    if (PrimitiveArrays.isPrimitiveArray(primitiveOrFieldList)
+        || (primitiveOrFieldList instanceof Object[]
+            && PrimitiveArrays.isPrimitiveArray(real))) {
+      PrimitiveArrays.compare(primitiveOrFieldList, real, path);
+      return false;
+    }
+    Object previousReal = context.getInProgress(primitiveOrFieldList);
     if (previousReal != null) {
       if (previousReal != real) {
         throw new UnexpectedValueException(
@@ -158,31 +341,30 @@ public final class CompareWithFieldList {
       } else {
         if (debugOut != null) {
           debugOut.printf(
-              "%s is a cyclic back-pointer of expected shape\n", prefix);
+              "%s is a cyclic back-pointer of expected shape\n", path);
         }
-        return;
+        context.reachBack(primitiveOrFieldList);
+        return false;
       }
     }
+    if (context.hasPassed(primitiveOrFieldList, real)) {
+      return false;
+    }
 
     // Note field-list-to-object-or-array correspondence for later
     // cyclic structure checks:
-    objectStack.put(primitiveOrFieldList, real);
+    context.start(primitiveOrFieldList, real);
 
     if (primitiveOrFieldList.getClass().isArray()) {
       if (!real.getClass().isArray()) {
-        fail(real, primitiveOrFieldList, prefix);
+        fail(real, primitiveOrFieldList, path);
       }
       Object[] lhsArray = (Object[]) primitiveOrFieldList;
       Object[] rhsArray = (Object[]) real;
       if (lhsArray.length != rhsArray.length) {
-        fail(real, primitiveOrFieldList, prefix);
+        fail(real, primitiveOrFieldList, path);
       }
-      for (int i = 0; i < lhsArray.length; ++i) {
-        String newPrefix = prefix + "[" + i + "]";
-        compare(lhsArray[i], rhsArray[i], newPrefix, objectStack);
-      }
-      objectStack.remove(primitiveOrFieldList);
-      return;
+      return expand(lhsArray, rhsArray, lhsArray.length, context);
     }
     if (!(primitiveOrFieldList instanceof FieldList)) {
       throw new RuntimeException(
@@ -190,25 +372,153 @@ public final class CompareWithFieldList {
     }
 
     FieldList rhs = (FieldList) primitiveOrFieldList;
-    for (FieldValue v : rhs.getFields()) {
-      Field field = getField(real.getClass(), v.getName());
-      if (field == null) {
-        throw new RuntimeException(
-          "Real object of class " + real.getClass().getName()
-          + " did not have expected field " + v.getName());
+    return expand(rhs, real, rhs.getFields().size(), context);
+  }
+
+  /**
+   * Pushes a frame to compare the elements or fields of an array or field
+   * list, or compares them in parallel if the comparison is parallel, the
+   * array or field list is wide and the calling thread is not a worker.
+   *
+   * @param expected the expected array or <code>FieldList</code>, started
+   * @param real the real array or object compared to <code>expected</code>
+   * @param children the number of elements or fields
+   * @param context the <code>ComparisonContext</code> of the comparison
+   * @return true if a frame was pushed
+   */
+  private static boolean expand(
+      final Object expected,
+      final Object real,
+      final int children,
+      final ComparisonContext context) {
+    if (context.isParallel() && children >= PARALLEL_THRESHOLD
+        && Workers.parallelism() > 1 && !Workers.isWorker()) {
+      compareChildrenInParallel(expected, real, children, context);
+      context.finish(expected, real);
+      return false;
+    }
+    context.getStack().push(expected, real, null, children);
+    return true;
+  }
+
+  /**
+   * Compares the elements or fields of an array or field list on the
+   * {@link Workers} pool, in one chunk of consecutive children per worker.
+   * Each chunk is compared in order, in its own context, seeded with the
+   * nodes being compared by the caller for cyclic structure checks; the
+   * back-pointers to these nodes that the chunks reach are recorded in the
+   * context of the caller, as if compared there. The
+   * failure reported is the one of the first chunk that fails, which is the
+   * first failure in traversal order. Returns on success, throws on error.
+   * <p>
+   * Once a chunk fails, the chunks after it stop at their next step, as
+   * their result would not be reported; the chunks before it go on, as one
+   * of them may fail earlier in traversal order. Once the caller returns or
+   * throws, all chunks stop, so that none keeps a worker busy.
+   *
+   * @param expected the expected array or <code>FieldList</code>
+   * @param real the real array or object compared to <code>expected</code>
+   * @param children the number of elements or fields
+   * @param context the <code>ComparisonContext</code> of the comparison
+   */
+  private static void compareChildrenInParallel(
+      final Object expected,
+      final Object real,
+      final int children,
+      final ComparisonContext context) {
+    final String root = context.getPath().toString();
+    final Object[][] ancestors = context.copyInProgress();
+    int chunks = Workers.parallelism();
+    int chunkSize = (children + chunks - 1) / chunks;
+    ExecutorService executor = Workers.executor();
+    final AtomicInteger firstFailure = new AtomicInteger(Integer.MAX_VALUE);
+    ArrayList<Future<Integer>> pending = new ArrayList<Future<Integer>>();
+    for (int start = 0; start < children; start += chunkSize) {
+      final int from = start;
+      final int to = Math.min(start + chunkSize, children);
+      final int index = pending.size();
+      pending.add(executor.submit(new Callable<Integer>() {
+        @Override
+        public Integer call() {
+          ComparisonContext chunk = ComparisonContext.acquire(root);
+          try {
+            chunk.setChunk(firstFailure, index);
+            for (Object[] ancestor : ancestors) {
+              chunk.start(ancestor[0], ancestor[1]);
+            }
+            for (int i = from; i < to; ++i) {
+              if (chunk.isAbandoned()) {
+                throw new CancellationException();
+              }
+              if (visitChild(expected, real, i, chunk)) {
+                run(chunk);
+              }
+              chunk.getPath().pop();
+            }
+            return chunk.getReach();
+          } catch (RuntimeException e) {
+            failed(firstFailure, index);
+            throw e;
+          } catch (Error e) {
+            failed(firstFailure, index);
+            throw e;
+          } finally {
+            chunk.release();
+          }
+        }
+      }));
+    }
+    try {
+      for (Future<Integer> chunk : pending) {
+        context.dependsOn(await(chunk));
       }
-      field.setAccessible(true);
-      Object realval;
-      try {
-        realval = field.get(real);
-      } catch (IllegalAccessException e) {
-        // Should be impossible.
-        throw new RuntimeException(e);
+    } finally {
+      // Stop the chunks still running, whose results are not needed.
+      firstFailure.set(-1);
+      for (Future<Integer> chunk : pending) {
+        chunk.cancel(false);
+      }
+    }
+  }
+
+  /**
+   * Records the failure of a chunk of a parallel comparison, unless an
+   * earlier chunk failed already.
+   *
+   * @param firstFailure the index of the first chunk that failed
+   * @param index the index of the chunk that failed
+   */
+  private static void failed(final AtomicInteger firstFailure,
+                             final int index) {
+    int first = firstFailure.get();
+    while (index < first && !firstFailure.compareAndSet(first, index)) {
+      first = firstFailure.get();
+    }
+  }
+
+  /**
+   * Waits for a chunk of a parallel comparison, rethrowing its failure.
+   *
+   * @param chunk the <code>Future</code> of the chunk
+   * @return the depth of the outermost node being compared by the caller
+   *     that the chunk reached through back-pointers
+   */
+  private static int await(final Future<Integer> chunk) {
+    try {
+      return chunk.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new DeeptestUtilsRuntimeException(e.getMessage(), e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
       }
-      String newPrefix = prefix + "." + v.getName();
-      compare(v.getValue(), realval, newPrefix, objectStack);
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new DeeptestUtilsRuntimeException(cause.getMessage(), cause);
     }
-    objectStack.remove(primitiveOrFieldList);
   }
 
   /**
@@ -221,8 +531,37 @@ public final class CompareWithFieldList {
   public static void compare(
       final Object primitiveOrFieldList,
       final Object real) {
-    HashMap<Object, Object> objectStack =
-        new HashMap<Object, Object>();
-    compare(primitiveOrFieldList, real, "", objectStack);
+    ComparisonContext context = ComparisonContext.acquire("");
+    try {
+      compare(primitiveOrFieldList, real, context);
+    } finally {
+      context.release();
+    }
+  }
+
+  /**
+   * Compares an object to either another object or a field list, as
+   * {@link #compare(Object, Object)} does, comparing the elements or fields
+   * of wide arrays and field lists in parallel on a pool of one thread per
+   * processor. Returns on success, throws on error.
+   * <p>
+   * Arrays and field lists are wide from 1024 elements or fields, or from
+   * the value of the system property
+   * <code>deeptestutils.parallelThreshold</code>. The failure reported is
+   * the first in traversal order, as for <code>compare</code>.
+   *
+   * @param primitiveOrFieldList the <code>Object</code> to compare to
+   * @param real the <code>Object</code> to compare
+   */
+  public static void compareInParallel(
+      final Object primitiveOrFieldList,
+      final Object real) {
+    ComparisonContext context = ComparisonContext.acquire("");
+    try {
+      context.setParallel(true);
+      compare(primitiveOrFieldList, real, context);
+    } finally {
+      context.release();
+    }
   }
 }
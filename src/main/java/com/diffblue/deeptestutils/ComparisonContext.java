@@ -0,0 +1,383 @@
+package com.diffblue.deeptestutils;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Copyright 2016-2018 Diffblue limited. All rights reserved.
+
+/**
+ * <code>ComparisonContext</code> holds the state of one deep comparison, see
+ * {@link CompareWithFieldList} and {@link CompiledExpectation}: the path of
+ * the value being compared, the expected nodes being compared with their
+ * real objects, to check cyclic structures, and the pairs of expected node
+ * and real object found equal so far.
+ * <p>
+ * Remembering the pairs that passed makes a comparison linear in the size
+ * of the graphs, even when sub-graphs are shared, e.g. diamond shaped. A
+ * pair is only remembered if its comparison did not go through a cyclic
+ * back-pointer to a node still being compared: whether such a pair passes
+ * depends on the real object that node is bound to, which may differ the
+ * next time the pair is reached. The context also holds the
+ * {@link WorkStack} of the comparison.
+ * Expected nodes are arrays, field lists or compiled nodes, all compared by
+ * identity. Contexts are reused by the thread that owns them.
+ *
+ * @author <a href="http://diffblue.com">Diffblue</a>
+ */
+final class ComparisonContext {
+
+  /**
+   * Number of pairs above which a context is dropped rather than reused, so
+   * that one large comparison does not hold its memory forever.
+   */
+  private static final int MAX_RETAINED = 4096;
+
+  /**
+   * The context of each thread.
+   */
+  private static final ThreadLocal<ComparisonContext> CONTEXTS =
+      new ThreadLocal<ComparisonContext>();
+
+  /**
+   * The path of the value being compared.
+   */
+  private final FieldPath path = new FieldPath("");
+
+  /**
+   * The expected nodes whose children are being compared.
+   */
+  private final WorkStack stack = new WorkStack();
+
+  /**
+   * The expected nodes being compared, by node.
+   */
+  private final IdentityHashMap<Object, Open> inProgress =
+      new IdentityHashMap<Object, Open>();
+
+  /**
+   * The expected nodes being compared, outermost first.
+   */
+  private final ArrayList<Open> open = new ArrayList<Open>();
+
+  /**
+   * The real objects found equal to each expected node: either the only
+   * one, or a <code>Reals</code>.
+   */
+  private final IdentityHashMap<Object, Object> passed =
+      new IdentityHashMap<Object, Object>();
+
+  /**
+   * Whether the context is used by a comparison.
+   */
+  private boolean inUse;
+
+  /**
+   * Whether wide arrays and field lists are compared in parallel.
+   */
+  private boolean parallel;
+
+  /**
+   * The index of the first chunk of a parallel comparison that failed, if
+   * the context compares a chunk, otherwise null.
+   */
+  private AtomicInteger firstFailure;
+
+  /**
+   * The index of the chunk the context compares.
+   */
+  private int chunk;
+
+  /**
+   * Returns an unused context of the calling thread, to be released when
+   * the comparison is done.
+   *
+   * @param root the path of the root of the comparison
+   * @return a <code>ComparisonContext</code> in use
+   */
+  static ComparisonContext acquire(final String root) {
+    ComparisonContext context = CONTEXTS.get();
+    if (context == null) {
+      context = new ComparisonContext();
+      CONTEXTS.set(context);
+    } else if (context.inUse) {
+      // A comparison within a comparison, e.g. from an equals method.
+      context = new ComparisonContext();
+    }
+    context.inUse = true;
+    context.path.reset(root);
+    return context;
+  }
+
+  /**
+   * Ends the comparison using the context.
+   */
+  void release() {
+    if (passed.size() > MAX_RETAINED || inProgress.size() > MAX_RETAINED
+        || stack.capacity() > MAX_RETAINED) {
+      if (CONTEXTS.get() == this) {
+        CONTEXTS.remove();
+      }
+    } else {
+      passed.clear();
+      inProgress.clear();
+      open.clear();
+      stack.clear();
+    }
+    inUse = false;
+    parallel = false;
+    firstFailure = null;
+  }
+
+  /**
+   * The path accessor.
+   *
+   * @return the path of the value being compared
+   */
+  FieldPath getPath() {
+    return path;
+  }
+
+  /**
+   * The work stack accessor.
+   *
+   * @return the expected nodes whose children are being compared
+   */
+  WorkStack getStack() {
+    return stack;
+  }
+
+  /**
+   * Checks whether wide arrays and field lists are compared in parallel.
+   *
+   * @return true if the comparison is parallel
+   */
+  boolean isParallel() {
+    return parallel;
+  }
+
+  /**
+   * Sets whether wide arrays and field lists are compared in parallel.
+   *
+   * @param isParallel true if the comparison is parallel
+   */
+  void setParallel(final boolean isParallel) {
+    parallel = isParallel;
+  }
+
+  /**
+   * Makes the context compare a chunk of a parallel comparison.
+   *
+   * @param failure the index of the first chunk that failed, shared by the
+   *     chunks of the comparison
+   * @param index the index of the chunk
+   */
+  void setChunk(final AtomicInteger failure, final int index) {
+    firstFailure = failure;
+    chunk = index;
+  }
+
+  /**
+   * Checks whether the chunk compared by the context is no longer needed:
+   * an earlier chunk failed, so its own result would not be reported.
+   *
+   * @return true if the comparison should stop
+   */
+  boolean isAbandoned() {
+    return firstFailure != null && firstFailure.get() < chunk;
+  }
+
+  /**
+   * Returns the expected nodes being compared, with their real objects, to
+   * compare children on other threads. Starting them in the same order in
+   * another context gives them the same depths.
+   *
+   * @return the pairs of expected node and real object, outermost first
+   */
+  Object[][] copyInProgress() {
+    Object[][] pairs = new Object[open.size()][];
+    for (int i = 0; i < pairs.length; ++i) {
+      Open node = open.get(i);
+      pairs[i] = new Object[] {node.expected, node.real };
+    }
+    return pairs;
+  }
+
+  /**
+   * Returns the real object an expected node is being compared with.
+   *
+   * @param expected the expected node
+   * @return the real <code>Object</code>, or null if the node is not being
+   *     compared
+   */
+  Object getInProgress(final Object expected) {
+    Open node = inProgress.get(expected);
+    if (node == null) {
+      return null;
+    }
+    return node.real;
+  }
+
+  /**
+   * Records that the children of the innermost node being compared reached
+   * a node being compared through a back-pointer, so that the nodes in
+   * between are not remembered as passed.
+   *
+   * @param expected the expected node reached, being compared
+   */
+  void reachBack(final Object expected) {
+    dependsOn(inProgress.get(expected).depth);
+  }
+
+  /**
+   * Returns the depth of the outermost node being compared that the children
+   * of the innermost one reached through back-pointers.
+   *
+   * @return the depth, or the depth of the innermost node if none was
+   *     reached above it
+   */
+  int getReach() {
+    return open.get(open.size() - 1).reach;
+  }
+
+  /**
+   * Records that the children of the innermost node being compared reached
+   * a node being compared at a depth.
+   *
+   * @param depth the depth of the node reached, as returned by
+   *     {@link #getReach()}
+   */
+  void dependsOn(final int depth) {
+    Open innermost = open.get(open.size() - 1);
+    innermost.reach = Math.min(innermost.reach, depth);
+  }
+
+  /**
+   * Records that an expected node is being compared with a real object.
+   *
+   * @param expected the expected node
+   * @param real the real <code>Object</code>
+   */
+  void start(final Object expected, final Object real) {
+    Open node = new Open(expected, real, open.size());
+    open.add(node);
+    inProgress.put(expected, node);
+  }
+
+  /**
+   * Records that an expected node was found equal to a real object. The
+   * pair is remembered unless its children reached a node being compared
+   * outside it, in which case the node that contains it is marked instead.
+   * The node is the innermost being compared.
+   *
+   * @param expected the expected node
+   * @param real the real <code>Object</code>
+   */
+  void finish(final Object expected, final Object real) {
+    Open node = open.remove(open.size() - 1);
+    inProgress.remove(expected);
+    if (node.reach < node.depth) {
+      dependsOn(node.reach);
+      return;
+    }
+    Object reals = passed.get(expected);
+    if (reals == null) {
+      passed.put(expected, real);
+    } else if (reals instanceof Reals) {
+      ((Reals) reals).add(real);
+    } else if (reals != real) {
+      Reals set = new Reals();
+      set.add(reals);
+      set.add(real);
+      passed.put(expected, set);
+    }
+  }
+
+  /**
+   * Checks whether an expected node was found equal to a real object.
+   *
+   * @param expected the expected node
+   * @param real the real <code>Object</code>
+   * @return true if the pair passed before in this comparison
+   */
+  boolean hasPassed(final Object expected, final Object real) {
+    Object reals = passed.get(expected);
+    if (reals == real) {
+      return true;
+    }
+    return reals instanceof Reals && ((Reals) reals).contains(real);
+  }
+
+  /**
+   * <code>Open</code> is an expected node being compared.
+   */
+  private static final class Open {
+
+    /**
+     * The expected node.
+     */
+    private final Object expected;
+
+    /**
+     * The real object compared to the node.
+     */
+    private final Object real;
+
+    /**
+     * The number of nodes being compared outside this one.
+     */
+    private final int depth;
+
+    /**
+     * The depth of the outermost node being compared that the children of
+     * this one reached through back-pointers, or <code>depth</code>.
+     */
+    private int reach;
+
+    /**
+     * Creates a new <code>Open</code> instance.
+     *
+     * @param e the expected node
+     * @param r the real <code>Object</code>
+     * @param d the number of nodes being compared outside this one
+     */
+    Open(final Object e, final Object r, final int d) {
+      expected = e;
+      real = r;
+      depth = d;
+      reach = d;
+    }
+  }
+
+  /**
+   * <code>Reals</code> is a set of real objects, compared by identity,
+   * found equal to the same expected node.
+   */
+  private static final class Reals {
+
+    /**
+     * The real objects.
+     */
+    private final IdentityHashMap<Object, Boolean> reals =
+        new IdentityHashMap<Object, Boolean>();
+
+    /**
+     * Adds a real object.
+     *
+     * @param real the <code>Object</code> to add
+     */
+    void add(final Object real) {
+      reals.put(real, Boolean.TRUE);
+    }
+
+    /**
+     * Checks whether a real object was added.
+     *
+     * @param real the <code>Object</code> to check
+     * @return true if it was added
+     */
+    boolean contains(final Object real) {
+      return reals.containsKey(real);
+    }
+  }
+}
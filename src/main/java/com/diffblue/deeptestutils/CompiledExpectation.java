@@ -0,0 +1,448 @@
+package com.diffblue.deeptestutils;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+
+// Copyright 2016-2018 Diffblue limited. All rights reserved.
+
+/**
+ * <code>CompiledExpectation</code> is an expected value, as taken by
+ * {@link CompareWithFieldList#compare(Object, Object)}, compiled once so
+ * that it can be compared to many objects cheaply.
+ * <p>
+ * Compiling classifies each node of the expected value as a leaf, an array,
+ * an array of primitives or a <code>FieldList</code>, once. Each
+ * <code>FieldList</code> node resolves the accessors of its fields against
+ * the class of the last object it was compared to, and reuses them as long
+ * as objects of that class come. Comparisons succeed and fail as
+ * <code>CompareWithFieldList.compare</code> does, and likewise go through a
+ * {@link WorkStack} rather than recursion.
+ * <p>
+ * The expected value must not change once compiled.
+ *
+ * @author <a href="http://diffblue.com">Diffblue</a>
+ */
+public final class CompiledExpectation {
+
+  /**
+   * The root node of the expected value.
+   */
+  private final Node root;
+
+  /**
+   * Creates a new <code>CompiledExpectation</code> instance.
+   *
+   * @param node the root <code>Node</code>
+   */
+  private CompiledExpectation(final Node node) {
+    root = node;
+  }
+
+  /**
+   * Compiles an expected value.
+   *
+   * @param expected the expected <code>Object</code>: a boxed primitive, an
+   *     array or a <code>FieldList</code>, nested
+   * @return the <code>CompiledExpectation</code> of the value
+   */
+  public static CompiledExpectation compile(final Object expected) {
+    return new CompiledExpectation(
+        compile(expected, new IdentityHashMap<Object, Node>()));
+  }
+
+  /**
+   * Compares an object to the expected value. Returns on success, throws on
+   * error.
+   *
+   * @param real the <code>Object</code> to compare
+   */
+  public void compare(final Object real) {
+    ComparisonContext context = ComparisonContext.acquire("");
+    try {
+      compare(root, real, context);
+    } finally {
+      context.release();
+    }
+  }
+
+  /**
+   * Compares an object to a node, depth first through the work stack of the
+   * context. Returns on success, throws on error.
+   *
+   * @param node the expected <code>Node</code>
+   * @param real the <code>Object</code> to compare
+   * @param context the <code>ComparisonContext</code> of the comparison
+   */
+  private static void compare(final Node node, final Object real,
+                              final ComparisonContext context) {
+    if (!node.visit(real, context)) {
+      return;
+    }
+    FieldPath path = context.getPath();
+    WorkStack stack = context.getStack();
+    while (!stack.isEmpty()) {
+      Node parent = (Node) stack.getExpected();
+      Object parentReal = stack.getReal();
+      int i = stack.next();
+      if (i == -1) {
+        stack.pop();
+        context.finish(parent, parentReal);
+        if (!stack.isEmpty()) {
+          path.pop();
+        }
+        continue;
+      }
+      if (!parent.visitChild(i, parentReal, stack.getAux(), context)) {
+        path.pop();
+      }
+    }
+  }
+
+  /**
+   * Compiles a node of an expected value. The children of arrays and field
+   * lists are compiled from a work list rather than by recursion, so that
+   * values of any depth compile.
+   *
+   * @param expected the expected <code>Object</code>
+   * @param nodes the nodes compiled so far, by arrays and field lists, so
+   *     that shared and cyclic values are compiled once
+   * @return the <code>Node</code> of the value
+   */
+  private static Node compile(final Object expected,
+                              final IdentityHashMap<Object, Node> nodes) {
+    ArrayList<Node> pending = new ArrayList<Node>();
+    Node root = node(expected, nodes, pending);
+    while (!pending.isEmpty()) {
+      Node node = pending.remove(pending.size() - 1);
+      if (node instanceof ArrayNode) {
+        ArrayNode array = (ArrayNode) node;
+        Object[] elements = (Object[]) array.getExpected();
+        for (int i = 0; i < elements.length; ++i) {
+          array.elements[i] = node(elements[i], nodes, pending);
+        }
+      } else {
+        FieldListNode fieldList = (FieldListNode) node;
+        ArrayList<FieldValue> fields =
+            ((FieldList) fieldList.getExpected()).getFields();
+        for (int i = 0; i < fields.size(); ++i) {
+          fieldList.names[i] = fields.get(i).getName();
+          fieldList.values[i] = node(fields.get(i).getValue(), nodes, pending);
+        }
+      }
+    }
+    return root;
+  }
+
+  /**
+   * Returns the node of a value, creating it if needed. The children of a
+   * new array or field list node are left to the caller to compile.
+   *
+   * @param expected the expected <code>Object</code>
+   * @param nodes the nodes created so far, by arrays and field lists
+   * @param pending the array and field list nodes whose children are to be
+   *     compiled, to which a new one is added
+   * @return the <code>Node</code> of the value
+   */
+  private static Node node(final Object expected,
+                           final IdentityHashMap<Object, Node> nodes,
+                           final ArrayList<Node> pending) {
+    if (expected == null || CompareWithFieldList.isPrimitive(expected)) {
+      return new Node(expected, true);
+    }
+    if (PrimitiveArrays.isPrimitiveArray(expected)) {
+      return new PrimitiveArrayNode(expected);
+    }
+    Node node = nodes.get(expected);
+    if (node != null) {
+      return node;
+    }
+    if (expected instanceof Object[]) {
+      node = new ArrayNode((Object[]) expected);
+    } else if (expected instanceof FieldList) {
+      node = new FieldListNode((FieldList) expected);
+    } else {
+      return new Node(expected, false);
+    }
+    nodes.put(expected, node);
+    pending.add(node);
+    return node;
+  }
+
+  /**
+   * <code>Node</code> compares objects to an expected value which is
+   * neither an array nor a <code>FieldList</code>; objects that are not
+   * equal to it fail.
+   */
+  private static class Node {
+
+    /**
+     * The expected value.
+     */
+    private final Object expected;
+
+    /**
+     * Whether the expected value is null or a boxed primitive, to which
+     * only equal objects compare.
+     */
+    private final boolean leaf;
+
+    /**
+     * Creates a new <code>Node</code> instance.
+     *
+     * @param value the expected value
+     * @param isLeaf whether the value is null or a boxed primitive
+     */
+    Node(final Object value, final boolean isLeaf) {
+      expected = value;
+      leaf = isLeaf;
+    }
+
+    /**
+     * Compares an object to the expected value, except for its children,
+     * which are left on the work stack of the context.
+     *
+     * @param real the <code>Object</code> to compare
+     * @param context the <code>ComparisonContext</code> holding the path
+     *     of the object, the nodes being compared by callers, used to check
+     *     cyclic structures, and those already found equal to objects
+     * @return true if a frame was pushed to compare the children
+     */
+    final boolean visit(final Object real, final ComparisonContext context) {
+      FieldPath path = context.getPath();
+      if (real == null) {
+        if (expected == null) {
+          if (CompareWithFieldList.isDebugging()) {
+            CompareWithFieldList.debug("%s null as expected\n", path);
+          }
+          return false;
+        }
+        CompareWithFieldList.fail(real, expected, path);
+      }
+      if (real.equals(expected)) {
+        if (CompareWithFieldList.isDebugging()) {
+          CompareWithFieldList.debug("%s = %s as expected\n", path,
+                                     real.toString());
+        }
+        return false;
+      }
+      if (leaf) {
+        CompareWithFieldList.fail(real, expected, path);
+      }
+      Object previousReal = context.getInProgress(this);
+      if (previousReal != null) {
+        if (previousReal != real) {
+          throw new UnexpectedValueException(
+            "At field %s, cyclic data structure has incorrect shape");
+        }
+        if (CompareWithFieldList.isDebugging()) {
+          CompareWithFieldList.debug(
+              "%s is a cyclic back-pointer of expected shape\n", path);
+        }
+        context.reachBack(this);
+        return false;
+      }
+      if (context.hasPassed(this, real)) {
+        return false;
+      }
+      context.start(this, real);
+      expand(real, context);
+      return true;
+    }
+
+    /**
+     * Checks the shape of an object which is not equal to the expected
+     * value, and pushes a frame to compare its children.
+     *
+     * @param real the <code>Object</code> to compare, not null
+     * @param context the <code>ComparisonContext</code> of the comparison
+     */
+    void expand(final Object real, final ComparisonContext context) {
+      throw new RuntimeException(
+        "Right-hand operand must be a primitive or a FieldList object");
+    }
+
+    /**
+     * Compares a child of an object to the node of the expected child,
+     * after pushing the child to the path.
+     *
+     * @param index the index of the child
+     * @param real the <code>Object</code> whose child is compared
+     * @param aux the value pushed with the frame of <code>real</code>
+     * @param context the <code>ComparisonContext</code> of the comparison
+     * @return true if a frame was pushed to compare the children of the
+     *     child
+     */
+    boolean visitChild(final int index, final Object real, final Object aux,
+                       final ComparisonContext context) {
+      // Nodes that push no children have none to visit.
+      return false;
+    }
+
+    /**
+     * The expected value accessor.
+     *
+     * @return the expected value
+     */
+    final Object getExpected() {
+      return expected;
+    }
+  }
+
+  /**
+   * <code>ArrayNode</code> compares arrays element by element.
+   */
+  private static final class ArrayNode extends Node {
+
+    /**
+     * The nodes of the expected elements.
+     */
+    private final Node[] elements;
+
+    /**
+     * Creates a new <code>ArrayNode</code> instance, whose elements are set
+     * by the caller.
+     *
+     * @param value the expected array
+     */
+    ArrayNode(final Object[] value) {
+      super(value, false);
+      elements = new Node[value.length];
+    }
+
+    @Override
+    void expand(final Object real, final ComparisonContext context) {
+      FieldPath path = context.getPath();
+      if (PrimitiveArrays.isPrimitiveArray(real)) {
+        PrimitiveArrays.compare(getExpected(), real, path);
+        context.getStack().push(this, real, null, 0);
+        return;
+      }
+      if (!real.getClass().isArray()) {
+        CompareWithFieldList.fail(real, getExpected(), path);
+      }
+      Object[] realArray = (Object[]) real;
+      if (realArray.length != elements.length) {
+        CompareWithFieldList.fail(real, getExpected(), path);
+      }
+      context.getStack().push(this, real, null, elements.length);
+    }
+
+    @Override
+    boolean visitChild(final int index, final Object real, final Object aux,
+                       final ComparisonContext context) {
+      context.getPath().push(index);
+      return elements[index].visit(((Object[]) real)[index], context);
+    }
+  }
+
+  /**
+   * <code>PrimitiveArrayNode</code> compares arrays to an array of
+   * primitives, without boxing their elements.
+   */
+  private static final class PrimitiveArrayNode extends Node {
+
+    /**
+     * Creates a new <code>PrimitiveArrayNode</code> instance.
+     *
+     * @param value the expected array of primitives
+     */
+    PrimitiveArrayNode(final Object value) {
+      super(value, false);
+    }
+
+    @Override
+    void expand(final Object real, final ComparisonContext context) {
+      PrimitiveArrays.compare(getExpected(), real, context.getPath());
+      context.getStack().push(this, real, null, 0);
+    }
+  }
+
+  /**
+   * <code>FieldListNode</code> compares the fields of objects, through the
+   * accessors resolved for the class of the last object compared.
+   */
+  private static final class FieldListNode extends Node {
+
+    /**
+     * The names of the expected fields.
+     */
+    private final String[] names;
+
+    /**
+     * The nodes of the expected values of the fields.
+     */
+    private final Node[] values;
+
+    /**
+     * The accessors resolved for the last class compared, or null.
+     */
+    private volatile Resolved resolved;
+
+    /**
+     * Creates a new <code>FieldListNode</code> instance, whose fields are
+     * set by the caller.
+     *
+     * @param value the expected <code>FieldList</code>
+     */
+    FieldListNode(final FieldList value) {
+      super(value, false);
+      names = new String[value.getFields().size()];
+      values = new Node[names.length];
+    }
+
+    @Override
+    void expand(final Object real, final ComparisonContext context) {
+      Class<?> c = real.getClass();
+      Resolved r = resolved;
+      if (r == null || r.type != c) {
+        r = new Resolved(c, names);
+        resolved = r;
+      }
+      context.getStack().push(this, real, r, names.length);
+    }
+
+    @Override
+    boolean visitChild(final int index, final Object real, final Object aux,
+                       final ComparisonContext context) {
+      FieldAccessor field = ((Resolved) aux).accessors[index];
+      if (field == null) {
+        throw new RuntimeException(
+          "Real object of class " + real.getClass().getName()
+          + " did not have expected field " + names[index]);
+      }
+      context.getPath().push(names[index]);
+      return values[index].visit(field.get(real), context);
+    }
+  }
+
+  /**
+   * <code>Resolved</code> holds the accessors of named fields in a class.
+   */
+  private static final class Resolved {
+
+    /**
+     * The class the fields are resolved in.
+     */
+    private final Class<?> type;
+
+    /**
+     * The accessors of the fields, null for fields not in the class.
+     */
+    private final FieldAccessor[] accessors;
+
+    /**
+     * Resolves named fields in a class.
+     *
+     * @param c the <code>Class</code> to resolve the fields in
+     * @param names the names of the fields
+     */
+    Resolved(final Class<?> c, final String[] names) {
+      type = c;
+      ClassLayout layout = ClassLayout.of(c);
+      accessors = new FieldAccessor[names.length];
+      for (int i = 0; i < names.length; ++i) {
+        accessors[i] = layout.getAccessor(names[i]);
+      }
+    }
+  }
+}
@@ -0,0 +1,130 @@
+package com.diffblue.deeptestutils;
+
+import java.util.Set;
+
+import javassist.bytecode.BadBytecode;
+import javassist.bytecode.ClassFile;
+import javassist.bytecode.CodeAttribute;
+import javassist.bytecode.CodeIterator;
+import javassist.bytecode.ConstPool;
+import javassist.bytecode.MethodInfo;
+import javassist.bytecode.Opcode;
+
+// Copyright 2016-2018 Diffblue limited. All rights reserved.
+
+/**
+ * <code>ConstantArguments</code> finds the string constants that compiled
+ * code passes to static methods of {@link Reflector} taking a class name,
+ * such as <code>getInstance(String)</code>: the constants loaded by an
+ * <code>LDC</code> instruction immediately followed by an
+ * <code>INVOKESTATIC</code> of the method, which is how generated tests call
+ * them.
+ *
+ * @author <a href="http://diffblue.com">Diffblue</a>
+ */
+final class ConstantArguments {
+
+  /**
+   * {@link Reflector#getInstance(String)}, by name and descriptor.
+   */
+  static final String GET_INSTANCE =
+      "getInstance(Ljava/lang/String;)Ljava/lang/Object;";
+
+  /**
+   * {@link Reflector#forName(String)}, by name and descriptor.
+   */
+  static final String FOR_NAME =
+      "forName(Ljava/lang/String;)Ljava/lang/Class;";
+
+  /**
+   * Name of the class declaring the methods.
+   */
+  private static final String REFLECTOR = Reflector.class.getName();
+
+  /**
+   * Private constructor to prevent instantiation of the utility class.
+   */
+  private ConstantArguments() {
+  }
+
+  /**
+   * Collects the string constants passed to methods of
+   * <code>Reflector</code> by the methods of a class.
+   *
+   * @param classFile the <code>ClassFile</code> to scan
+   * @param names the set to add the constants to
+   * @param methods the methods of <code>Reflector</code>, by name and
+   *     descriptor, such as {@link #GET_INSTANCE}
+   */
+  static void scan(final ClassFile classFile, final Set<String> names,
+                   final String... methods) {
+    ConstPool pool = classFile.getConstPool();
+    for (Object m : classFile.getMethods()) {
+      CodeAttribute code = ((MethodInfo) m).getCodeAttribute();
+      if (code == null) {
+        continue;
+      }
+      CodeIterator it = code.iterator();
+      String constant = null;
+      try {
+        while (it.hasNext()) {
+          int index = it.next();
+          int op = it.byteAt(index);
+          if (op == Opcode.LDC) {
+            constant = stringConstant(pool, it.byteAt(index + 1));
+          } else if (op == Opcode.LDC_W) {
+            constant = stringConstant(pool, it.u16bitAt(index + 1));
+          } else {
+            if (op == Opcode.INVOKESTATIC && constant != null
+                && isCalled(pool, it.u16bitAt(index + 1), methods)) {
+              names.add(constant);
+            }
+            constant = null;
+          }
+        }
+      } catch (BadBytecode e) {
+        throw new DeeptestUtilsRuntimeException(e.getMessage(), e);
+      }
+    }
+  }
+
+  /**
+   * Returns a string constant.
+   *
+   * @param pool the <code>ConstPool</code> of the class
+   * @param index the index of the constant
+   * @return the <code>String</code>, or null if the constant is not one
+   */
+  private static String stringConstant(final ConstPool pool,
+                                        final int index) {
+    if (pool.getTag(index) != ConstPool.CONST_String) {
+      return null;
+    }
+    return pool.getStringInfo(index);
+  }
+
+  /**
+   * Checks whether a method reference is one of the given methods of
+   * <code>Reflector</code>.
+   *
+   * @param pool the <code>ConstPool</code> of the class
+   * @param index the index of the method reference
+   * @param methods the methods, by name and descriptor
+   * @return true if the method reference is one of them
+   */
+  private static boolean isCalled(final ConstPool pool, final int index,
+                                  final String[] methods) {
+    if (pool.getTag(index) != ConstPool.CONST_Methodref
+        || !REFLECTOR.equals(pool.getMethodrefClassName(index))) {
+      return false;
+    }
+    String method =
+        pool.getMethodrefName(index) + pool.getMethodrefType(index);
+    for (String m : methods) {
+      if (m.equals(method)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
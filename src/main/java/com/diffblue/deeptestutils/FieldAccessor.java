@@ -0,0 +1,267 @@
+package com.diffblue.deeptestutils;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+
+// Copyright 2016-2018 Diffblue limited. All rights reserved.
+
+/**
+ * <code>FieldAccessor</code> reads and writes one field, bypassing its access
+ * modifier. An accessor is bound to its field once and then reused for every
+ * access, see {@link ClassLayout}.
+ * <p>
+ * The primitive setters write primitive fields without boxing the new
+ * value. When the field has a reference type, the value is boxed into its
+ * wrapper class and written as an <code>Object</code>, which is what the
+ * compiler would have done for a call to {@link #set(Object, Object)}.
+ * <p>
+ * Final instance fields are written like any other field, as reflection
+ * allows this once the field is accessible. Static final fields are written
+ * through a {@link FinalFieldWriter}.
+ *
+ * @author <a href="http://diffblue.com">Diffblue</a>
+ */
+final class FieldAccessor {
+
+  /**
+   * The accessible field.
+   */
+  private final Field field;
+
+  /**
+   * Whether the field has a primitive type.
+   */
+  private final boolean primitive;
+
+  /**
+   * Whether the field is static and final, and must be written through a
+   * {@link FinalFieldWriter}.
+   */
+  private final boolean staticFinal;
+
+  /**
+   * The writer of the static final field, bound on the first write.
+   */
+  private volatile FinalFieldWriter finalWriter;
+
+  /**
+   * Creates a new <code>FieldAccessor</code> instance.
+   *
+   * @param f the accessible <code>Field</code> to bind to
+   */
+  FieldAccessor(final Field f) {
+    field = f;
+    primitive = f.getType().isPrimitive();
+    int modifiers = f.getModifiers();
+    staticFinal = Modifier.isStatic(modifiers) && Modifier.isFinal(modifiers);
+  }
+
+  /**
+   * The field accessor.
+   *
+   * @return the <code>Field</code> this accessor is bound to
+   */
+  Field getField() {
+    return field;
+  }
+
+  /**
+   * Reads the field.
+   *
+   * @param target the <code>Object</code> whose field is read, or null for a
+   *     static field
+   * @return the value of the field, boxed if it is primitive
+   */
+  Object get(final Object target) {
+    try {
+      return field.get(target);
+    } catch (IllegalAccessException e) { // Should never happen.
+      throw new DeeptestUtilsRuntimeException(e.getMessage(), e.getCause());
+    }
+  }
+
+  /**
+   * Writes the field.
+   *
+   * @param target the <code>Object</code> whose field is written, or null
+   *     for a static field
+   * @param value the new value, unboxed if the field is primitive
+   */
+  void set(final Object target, final Object value) {
+    try {
+      if (staticFinal) {
+        finalFieldWriter().set(target, value);
+      } else {
+        field.set(target, value);
+      }
+    } catch (IllegalAccessException e) { // Should never happen.
+      throw new DeeptestUtilsRuntimeException(e.getMessage(), e.getCause());
+    }
+  }
+
+  /**
+   * Writes a <code>boolean</code> to the field.
+   *
+   * @param target the <code>Object</code> whose field is written, or null
+   *     for a static field
+   * @param value the new value
+   */
+  void setBoolean(final Object target, final boolean value) {
+    if (!primitive || staticFinal) {
+      set(target, Boolean.valueOf(value));
+      return;
+    }
+    try {
+      field.setBoolean(target, value);
+    } catch (IllegalAccessException e) { // Should never happen.
+      throw new DeeptestUtilsRuntimeException(e.getMessage(), e.getCause());
+    }
+  }
+
+  /**
+   * Writes a <code>byte</code> to the field.
+   *
+   * @param target the <code>Object</code> whose field is written, or null
+   *     for a static field
+   * @param value the new value
+   */
+  void setByte(final Object target, final byte value) {
+    if (!primitive || staticFinal) {
+      set(target, Byte.valueOf(value));
+      return;
+    }
+    try {
+      field.setByte(target, value);
+    } catch (IllegalAccessException e) { // Should never happen.
+      throw new DeeptestUtilsRuntimeException(e.getMessage(), e.getCause());
+    }
+  }
+
+  /**
+   * Writes a <code>char</code> to the field.
+   *
+   * @param target the <code>Object</code> whose field is written, or null
+   *     for a static field
+   * @param value the new value
+   */
+  void setChar(final Object target, final char value) {
+    if (!primitive || staticFinal) {
+      set(target, Character.valueOf(value));
+      return;
+    }
+    try {
+      field.setChar(target, value);
+    } catch (IllegalAccessException e) { // Should never happen.
+      throw new DeeptestUtilsRuntimeException(e.getMessage(), e.getCause());
+    }
+  }
+
+  /**
+   * Writes a <code>short</code> to the field.
+   *
+   * @param target the <code>Object</code> whose field is written, or null
+   *     for a static field
+   * @param value the new value
+   */
+  void setShort(final Object target, final short value) {
+    if (!primitive || staticFinal) {
+      set(target, Short.valueOf(value));
+      return;
+    }
+    try {
+      field.setShort(target, value);
+    } catch (IllegalAccessException e) { // Should never happen.
+      throw new DeeptestUtilsRuntimeException(e.getMessage(), e.getCause());
+    }
+  }
+
+  /**
+   * Writes an <code>int</code> to the field.
+   *
+   * @param target the <code>Object</code> whose field is written, or null
+   *     for a static field
+   * @param value the new value
+   */
+  void setInt(final Object target, final int value) {
+    if (!primitive || staticFinal) {
+      set(target, Integer.valueOf(value));
+      return;
+    }
+    try {
+      field.setInt(target, value);
+    } catch (IllegalAccessException e) { // Should never happen.
+      throw new DeeptestUtilsRuntimeException(e.getMessage(), e.getCause());
+    }
+  }
+
+  /**
+   * Writes a <code>long</code> to the field.
+   *
+   * @param target the <code>Object</code> whose field is written, or null
+   *     for a static field
+   * @param value the new value
+   */
+  void setLong(final Object target, final long value) {
+    if (!primitive || staticFinal) {
+      set(target, Long.valueOf(value));
+      return;
+    }
+    try {
+      field.setLong(target, value);
+    } catch (IllegalAccessException e) { // Should never happen.
+      throw new DeeptestUtilsRuntimeException(e.getMessage(), e.getCause());
+    }
+  }
+
+  /**
+   * Writes a <code>float</code> to the field.
+   *
+   * @param target the <code>Object</code> whose field is written, or null
+   *     for a static field
+   * @param value the new value
+   */
+  void setFloat(final Object target, final float value) {
+    if (!primitive || staticFinal) {
+      set(target, Float.valueOf(value));
+      return;
+    }
+    try {
+      field.setFloat(target, value);
+    } catch (IllegalAccessException e) { // Should never happen.
+      throw new DeeptestUtilsRuntimeException(e.getMessage(), e.getCause());
+    }
+  }
+
+  /**
+   * Writes a <code>double</code> to the field.
+   *
+   * @param target the <code>Object</code> whose field is written, or null
+   *     for a static field
+   * @param value the new value
+   */
+  void setDouble(final Object target, final double value) {
+    if (!primitive || staticFinal) {
+      set(target, Double.valueOf(value));
+      return;
+    }
+    try {
+      field.setDouble(target, value);
+    } catch (IllegalAccessException e) { // Should never happen.
+      throw new DeeptestUtilsRuntimeException(e.getMessage(), e.getCause());
+    }
+  }
+
+  /**
+   * Returns the writer of the static final field, binding it on first use.
+   *
+   * @return the <code>FinalFieldWriter</code> bound to the field
+   */
+  private FinalFieldWriter finalFieldWriter() {
+    FinalFieldWriter writer = finalWriter;
+    if (writer == null) {
+      writer = FinalFieldWriter.forStaticField(field);
+      finalWriter = writer;
+    }
+    return writer;
+  }
+}
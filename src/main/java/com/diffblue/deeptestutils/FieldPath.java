@@ -0,0 +1,116 @@
+package com.diffblue.deeptestutils;
+
+// Copyright 2016-2018 Diffblue limited. All rights reserved.
+
+/**
+ * <code>FieldPath</code> is the path from the root of a compared object to
+ * the value being compared, as a stack of field names and array indices.
+ * Pushing and popping allocates nothing once the stack is deep enough; the
+ * path is only turned into a string, such as <code>.items[2].name</code>,
+ * for error messages.
+ *
+ * @author <a href="http://diffblue.com">Diffblue</a>
+ */
+final class FieldPath {
+
+  /**
+   * Initial depth of the stack.
+   */
+  private static final int INITIAL_DEPTH = 16;
+
+  /**
+   * The path of the root, prepended to the stack.
+   */
+  private String root;
+
+  /**
+   * The field names on the stack, null for array indices.
+   */
+  private String[] names = new String[INITIAL_DEPTH];
+
+  /**
+   * The array indices on the stack, for the entries without name.
+   */
+  private int[] indices = new int[INITIAL_DEPTH];
+
+  /**
+   * Number of entries on the stack.
+   */
+  private int depth;
+
+  /**
+   * Creates a new, empty <code>FieldPath</code> instance.
+   *
+   * @param rootPath the path of the root, as a <code>String</code>
+   */
+  FieldPath(final String rootPath) {
+    root = rootPath;
+  }
+
+  /**
+   * Empties the stack, for a new comparison.
+   *
+   * @param rootPath the path of the new root, as a <code>String</code>
+   */
+  void reset(final String rootPath) {
+    root = rootPath;
+    depth = 0;
+  }
+
+  /**
+   * Pushes a field.
+   *
+   * @param name the name of the field
+   */
+  void push(final String name) {
+    grow();
+    names[depth] = name;
+    ++depth;
+  }
+
+  /**
+   * Pushes an array element.
+   *
+   * @param index the index of the element
+   */
+  void push(final int index) {
+    grow();
+    names[depth] = null;
+    indices[depth] = index;
+    ++depth;
+  }
+
+  /**
+   * Pops the last field or array element pushed.
+   */
+  void pop() {
+    --depth;
+  }
+
+  /**
+   * Makes room for one more entry on the stack.
+   */
+  private void grow() {
+    if (depth == names.length) {
+      String[] newNames = new String[2 * depth];
+      System.arraycopy(names, 0, newNames, 0, depth);
+      names = newNames;
+      int[] newIndices = new int[2 * depth];
+      System.arraycopy(indices, 0, newIndices, 0, depth);
+      indices = newIndices;
+    }
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder path = new StringBuilder(root);
+    for (int i = 0; i < depth; ++i) {
+      if (names[i] == null) {
+        path.append('[').append(indices[i]).append(']');
+      } else {
+        path.append('.').append(names[i]);
+      }
+    }
+    return path.toString();
+  }
+}
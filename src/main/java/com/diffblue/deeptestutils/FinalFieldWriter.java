@@ -0,0 +1,335 @@
+package com.diffblue.deeptestutils;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Modifier;
+import java.util.HashMap;
+
+// Copyright 2016-2018 Diffblue limited. All rights reserved.
+
+/**
+ * <code>FinalFieldWriter</code> writes a final field.
+ * <p>
+ * Final instance fields can be written through any <code>Field</code> that
+ * has been made accessible, on every JVM, so they need no writer and are
+ * written like other fields by {@link FieldAccessor}. Static final fields
+ * cannot. For them, the first of these strategies that this JVM supports is
+ * used:
+ * <ol>
+ * <li>clearing the <code>FINAL</code> bit of the <code>modifiers</code> field
+ * of the <code>Field</code> object, up to Java 11;</li>
+ * <li>writing the static field at its offset with
+ * <code>sun.misc.Unsafe</code>.</li>
+ * </ol>
+ * Which strategies the JVM supports is probed once. A writer is bound to its
+ * field once, by {@link #forStaticField(Field)}, and reused for every write.
+ *
+ * @author <a href="http://diffblue.com">Diffblue</a>
+ */
+abstract class FinalFieldWriter {
+
+  /**
+   * Returns a writer for a static final field.
+   *
+   * @param f the accessible static final <code>Field</code>
+   * @return a <code>FinalFieldWriter</code> bound to the field
+   */
+  static FinalFieldWriter forStaticField(final Field f) {
+    FinalFieldWriter writer = UnsafeWriter.create(f);
+    if (writer == null) {
+      writer = new UnsupportedWriter(f);
+    }
+    FinalFieldWriter modifiersWriter = ModifiersWriter.create(f, writer);
+    if (modifiersWriter != null) {
+      return modifiersWriter;
+    }
+    return writer;
+  }
+
+  /**
+   * Writes the field.
+   *
+   * @param target the <code>Object</code> whose field is written, or null
+   *     for a static field
+   * @param value the new value, unboxed if the field is primitive
+   * @throws IllegalAccessException if the field cannot be written
+   */
+  abstract void set(Object target, Object value) throws IllegalAccessException;
+
+  /**
+   * <code>ModifiersWriter</code> clears the <code>FINAL</code> bit of the
+   * field, then writes it through reflection. This fails if the field has
+   * been read through reflection before, as the JVM then caches a read-only
+   * accessor with the field; such writes go to the next strategy.
+   */
+  private static final class ModifiersWriter extends FinalFieldWriter {
+
+    /**
+     * The <code>modifiers</code> field of <code>Field</code>, or null if this
+     * JVM does not allow changing it.
+     */
+    private static final Field MODIFIERS = probe();
+
+    /**
+     * The field written.
+     */
+    private final Field field;
+
+    /**
+     * The writer used when the field has a read-only accessor.
+     */
+    private final FinalFieldWriter next;
+
+    /**
+     * Creates a new <code>ModifiersWriter</code> instance.
+     *
+     * @param f the <code>Field</code> to write, which is no longer final
+     * @param nextWriter the <code>FinalFieldWriter</code> to use if
+     *     reflection refuses to write the field
+     */
+    private ModifiersWriter(final Field f, final FinalFieldWriter nextWriter) {
+      field = f;
+      next = nextWriter;
+    }
+
+    /**
+     * Clears the final modifier of a field.
+     *
+     * @param f the <code>Field</code> to write
+     * @param nextWriter the <code>FinalFieldWriter</code> to use if
+     *     reflection refuses to write the field
+     * @return a writer for the field, or null if this strategy is not
+     *     supported
+     */
+    static FinalFieldWriter create(final Field f,
+                                   final FinalFieldWriter nextWriter) {
+      if (MODIFIERS == null) {
+        return null;
+      }
+      try {
+        MODIFIERS.setInt(f, f.getModifiers() & ~Modifier.FINAL);
+      } catch (IllegalAccessException e) {
+        return null;
+      }
+      return new ModifiersWriter(f, nextWriter);
+    }
+
+    /**
+     * Looks up the <code>modifiers</code> field of <code>Field</code>.
+     *
+     * @return the accessible <code>Field</code>, or null if it is hidden or
+     *     cannot be made accessible
+     */
+    private static Field probe() {
+      try {
+        Field modifiers = Field.class.getDeclaredField("modifiers");
+        modifiers.setAccessible(true);
+        return modifiers;
+      } catch (NoSuchFieldException e) {
+        return null;
+      } catch (RuntimeException e) {
+        return null;
+      }
+    }
+
+    @Override
+    void set(final Object target, final Object value)
+        throws IllegalAccessException {
+      try {
+        field.set(target, value);
+      } catch (IllegalAccessException e) {
+        next.set(target, value);
+      }
+    }
+  }
+
+  /**
+   * <code>StaticPut</code> stores a value at an offset from a static field
+   * base with <code>sun.misc.Unsafe</code>. One subclass is generated by
+   * {@link AccessorGenerator#generateStaticPut(Class, Object)} for each
+   * primitive type and one for references, calling the <code>Unsafe</code>
+   * method storing that type directly rather than through reflection.
+   */
+  abstract static class StaticPut {
+
+    /**
+     * Stores a value, converting it the way reflection would.
+     *
+     * @param base the static field base of the class declaring the field
+     * @param offset the offset of the field from <code>base</code>
+     * @param value the value, boxed if the field is primitive
+     * @return false if the value cannot be converted to the type stored
+     */
+    abstract boolean put(Object base, long offset, Object value);
+  }
+
+  /**
+   * <code>UnsafeWriter</code> writes a static field at its offset from the
+   * static field base of its class, using <code>sun.misc.Unsafe</code>. The
+   * declaring class is initialized, and the {@link StaticPut} of the type of
+   * the field is looked up, once when the writer is bound, so that each
+   * write is a single direct call.
+   */
+  private static final class UnsafeWriter extends FinalFieldWriter {
+
+    /**
+     * The <code>sun.misc.Unsafe</code> instance, or null if this JVM does not
+     * provide one.
+     */
+    private static final Object UNSAFE = UnsafeAccess.getUnsafe();
+
+    /**
+     * The field written.
+     */
+    private final Field field;
+
+    /**
+     * The type of the field written.
+     */
+    private final Class<?> type;
+
+    /**
+     * The static field base of the class declaring the field.
+     */
+    private final Object base;
+
+    /**
+     * The offset of the field from <code>base</code>.
+     */
+    private final long offset;
+
+    /**
+     * The generated {@link StaticPut} of each primitive type, and of
+     * <code>Object</code> for references, guarded by itself.
+     */
+    private static final HashMap<Class<?>, StaticPut> PUTS =
+        new HashMap<Class<?>, StaticPut>();
+
+    /**
+     * The <code>StaticPut</code> storing a value of the type of the field.
+     */
+    private final StaticPut put;
+
+    /**
+     * Creates a new <code>UnsafeWriter</code> instance.
+     *
+     * @param f the <code>Field</code> to write
+     * @param fieldBase the static field base of the declaring class
+     * @param fieldOffset the offset of the field from the base
+     * @param staticPut the <code>StaticPut</code> storing the value
+     */
+    private UnsafeWriter(final Field f, final Object fieldBase,
+                         final long fieldOffset, final StaticPut staticPut) {
+      field = f;
+      type = f.getType();
+      base = fieldBase;
+      offset = fieldOffset;
+      put = staticPut;
+    }
+
+    /**
+     * Looks up the offset of a static field, and runs the static initializer
+     * of its class, or it would overwrite the values written later.
+     *
+     * @param f the static <code>Field</code> to write
+     * @return a writer for the field, or null if this strategy is not
+     *     supported
+     */
+    static FinalFieldWriter create(final Field f) {
+      if (UNSAFE == null) {
+        return null;
+      }
+      StaticPut put = staticPut(f.getType());
+      if (put == null) {
+        return null;
+      }
+      Class<?> declaringClass = f.getDeclaringClass();
+      try {
+        Class.forName(declaringClass.getName(), true,
+                      declaringClass.getClassLoader());
+      } catch (ClassNotFoundException e) {
+        throw new DeeptestUtilsRuntimeException(e.getMessage(), e);
+      }
+      Class<?> unsafeClass = UNSAFE.getClass();
+      try {
+        Object base = unsafeClass.getMethod("staticFieldBase", Field.class)
+            .invoke(UNSAFE, f);
+        long offset = (Long) unsafeClass
+            .getMethod("staticFieldOffset", Field.class).invoke(UNSAFE, f);
+        return new UnsafeWriter(f, base, offset, put);
+      } catch (NoSuchMethodException e) {
+        return null;
+      } catch (IllegalAccessException e) {
+        return null;
+      } catch (InvocationTargetException e) {
+        return null;
+      }
+    }
+
+    /**
+     * Returns the {@link StaticPut} storing values of a type, generating it
+     * on first use.
+     *
+     * @param type the type of the field
+     * @return the <code>StaticPut</code>, or null if it cannot be defined
+     */
+    private static StaticPut staticPut(final Class<?> type) {
+      Class<?> key = Object.class;
+      if (type.isPrimitive()) {
+        key = type;
+      }
+      synchronized (PUTS) {
+        if (!PUTS.containsKey(key)) {
+          PUTS.put(key, AccessorGenerator.generateStaticPut(key, UNSAFE));
+        }
+        return PUTS.get(key);
+      }
+    }
+
+    @Override
+    void set(final Object target, final Object value)
+        throws IllegalAccessException {
+      boolean written = false;
+      if (type.isPrimitive() || value == null || type.isInstance(value)) {
+        written = put.put(base, offset, value);
+      }
+      if (!written) {
+        String valueName = "null value";
+        if (value != null) {
+          valueName = value.getClass().getName();
+        }
+        throw new IllegalArgumentException("Can not set " + type.getName()
+            + " field " + field.getName() + " to " + valueName);
+      }
+    }
+  }
+
+  /**
+   * <code>UnsupportedWriter</code> is used when no strategy works on this
+   * JVM, and fails on every write.
+   */
+  private static final class UnsupportedWriter extends FinalFieldWriter {
+
+    /**
+     * The field that cannot be written.
+     */
+    private final Field field;
+
+    /**
+     * Creates a new <code>UnsupportedWriter</code> instance.
+     *
+     * @param f the <code>Field</code> that cannot be written
+     */
+    private UnsupportedWriter(final Field f) {
+      field = f;
+    }
+
+    @Override
+    void set(final Object target, final Object value)
+        throws IllegalAccessException {
+      throw new IllegalAccessException("Cannot write static final field "
+          + field.getName() + " of " + field.getDeclaringClass().getName()
+          + " on this JVM");
+    }
+  }
+}
@@ -0,0 +1,144 @@
+package com.diffblue.deeptestutils;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+import javassist.CannotCompileException;
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.NotFoundException;
+import javassist.bytecode.ClassFile;
+
+// Copyright 2016-2018 Diffblue limited. All rights reserved.
+
+/**
+ * <code>ImplementationGenerator</code> writes, ahead of time, the classes
+ * that {@link Reflector#getInstance(String)} instantiates in place of
+ * abstract classes, so that tests do not generate them when they run.
+ * Interfaces are skipped: <code>getInstance</code> instantiates them through
+ * {@link InterfaceProxies}, which needs no generated class.
+ * <p>
+ * It scans compiled tests for calls to <code>getInstance</code> with a
+ * constant class name, and writes the implementations of the abstract
+ * classes named into a class directory, by default the scanned one. It is
+ * meant to run after the tests are compiled, for example with Maven in the
+ * <code>process-test-classes</code> phase:
+ * <pre>
+ * java -cp target/test-classes:... \
+ *     com.diffblue.deeptestutils.ImplementationGenerator target/test-classes
+ * </pre>
+ * The class path must contain the classes named by the tests.
+ *
+ * @author <a href="http://diffblue.com">Diffblue</a>
+ */
+public final class ImplementationGenerator {
+
+  /**
+   * Private constructor to prevent instantiation of the utility class.
+   */
+  private ImplementationGenerator() {
+  }
+
+  /**
+   * Writes the implementations of the classes named in compiled tests.
+   *
+   * @param args the directory of the compiled tests, optionally followed by
+   *     the directory to write to
+   * @throws IOException if a class file cannot be read or written
+   */
+  public static void main(final String[] args) throws IOException {
+    if (args.length < 1 || args.length > 2) {
+      System.err.println("Usage: ImplementationGenerator"
+                         + " <classes directory> [<output directory>]");
+      System.exit(1);
+    }
+    File classes = new File(args[0]);
+    File output = classes;
+    if (args.length == 2) {
+      output = new File(args[1]);
+    }
+    List<String> generated = generate(classes, output);
+    System.out.println("Generated " + generated.size()
+                       + " implementations in " + output);
+  }
+
+  /**
+   * Writes the implementations of the classes named in compiled tests.
+   * Names of classes that are not found, that are interfaces or that are
+   * not abstract are skipped.
+   *
+   * @param classes the directory of the compiled tests
+   * @param output the directory to write the implementations to
+   * @return the names of the classes implemented
+   * @throws IOException if a class file cannot be read or written
+   */
+  static List<String> generate(final File classes, final File output)
+      throws IOException {
+    LinkedHashSet<String> names = new LinkedHashSet<String>();
+    scan(classes, names);
+    ClassPool pool = new ClassPool(true);
+    try {
+      pool.insertClassPath(classes.getPath());
+    } catch (NotFoundException e) {
+      throw new DeeptestUtilsRuntimeException(e.getMessage(), e);
+    }
+    List<String> generated = new ArrayList<String>();
+    for (String name : names) {
+      CtClass implementingCtClass;
+      try {
+        if (pool.get(name).isInterface()) {
+          continue;
+        }
+        implementingCtClass = Implementations.synthesize(pool, name);
+      } catch (NotFoundException e) {
+        continue;
+      } catch (CannotCompileException e) {
+        throw new DeeptestUtilsRuntimeException(e.getMessage(), e);
+      }
+      if (implementingCtClass == null) {
+        continue;
+      }
+      try {
+        implementingCtClass.writeFile(output.getPath());
+      } catch (CannotCompileException e) {
+        throw new DeeptestUtilsRuntimeException(e.getMessage(), e);
+      } finally {
+        implementingCtClass.detach();
+      }
+      generated.add(name);
+    }
+    return generated;
+  }
+
+  /**
+   * Collects the class names passed to <code>getInstance</code> by the
+   * class files in a directory and its subdirectories.
+   *
+   * @param file the directory or class file to scan
+   * @param names the set to add the class names to
+   * @throws IOException if a class file cannot be read
+   */
+  private static void scan(final File file, final LinkedHashSet<String> names)
+      throws IOException {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        scan(child, names);
+      }
+    } else if (file.getName().endsWith(".class")) {
+      InputStream in = new FileInputStream(file);
+      try {
+        ConstantArguments.scan(new ClassFile(new DataInputStream(in)), names,
+                               ConstantArguments.GET_INSTANCE);
+      } finally {
+        in.close();
+      }
+    }
+  }
+}
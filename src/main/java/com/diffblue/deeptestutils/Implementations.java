@@ -0,0 +1,500 @@
+package com.diffblue.deeptestutils;
+
+import java.io.IOException;
+import java.security.ProtectionDomain;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import javassist.CannotCompileException;
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtConstructor;
+import javassist.CtField;
+import javassist.CtMember;
+import javassist.CtMethod;
+import javassist.NotFoundException;
+import javassist.util.proxy.DefineClassHelper;
+
+// Copyright 2016-2018 Diffblue limited. All rights reserved.
+
+/**
+ * <code>Implementations</code> generates, with javassist, the classes that
+ * {@link Reflector#getInstance(String)} instantiates in place of abstract
+ * classes and interfaces.
+ * <p>
+ * The implementation of a class is generated once per class loader, even
+ * when several threads ask for it at the same time: the first thread
+ * generates it while the others wait for the result. Implementations are
+ * named after the fully qualified name of the class they implement, so that
+ * classes of the same simple name in different packages do not collide.
+ * An implementation found on the class path, as written by
+ * {@link ImplementationGenerator}, is loaded instead of being generated.
+ * Implementations of many classes can also be generated in parallel, ahead
+ * of their first use, see {@link #prepare(Map)}.
+ * <p>
+ * Implementations are cached in a {@link ClassCache}, so that they do not
+ * keep alive the class loaders they are defined in. A generation that fails
+ * is not cached: the next request for the class tries again.
+ *
+ * @author <a href="http://diffblue.com">Diffblue</a>
+ */
+final class Implementations {
+
+  /**
+   * Package of the generated classes.
+   */
+  private static final String PREFIX = "com.diffblue.cover.";
+
+  /**
+   * Suffix of the generated classes.
+   */
+  private static final String SUFFIX = "Impl";
+
+  /**
+   * The implementations generated or being generated, by defining class
+   * loader and name of the implemented class.
+   */
+  private static final ClassCache<FutureTask<Class<?>>> IMPLEMENTATIONS =
+      new ClassCache<FutureTask<Class<?>>>();
+
+  /**
+   * Private constructor to prevent instantiation of the utility class.
+   */
+  private Implementations() {
+  }
+
+  /**
+   * Returns the class implementing an abstract class or interface,
+   * generating it on first use.
+   *
+   * @param className the name of the abstract class or interface
+   * @param type the <code>Class</code> named by <code>className</code>, or
+   *     null if it cannot be loaded by reflection
+   * @param notFound the <code>ClassNotFoundException</code> thrown when
+   *     loading the class by reflection, or null if it was loaded
+   * @return the implementing <code>Class</code>
+   */
+  static Class<?> of(final String className, final Class<?> type,
+                     final ClassNotFoundException notFound) {
+    final ClassLoader loader = definingLoader(type);
+    FutureTask<Class<?>> task = IMPLEMENTATIONS.get(loader, className);
+    if (task == null) {
+      FutureTask<Class<?>> created = new FutureTask<Class<?>>(
+          new Callable<Class<?>>() {
+            @Override
+            public Class<?> call() {
+              return generate(className, type, loader, notFound);
+            }
+          });
+      task = IMPLEMENTATIONS.putIfAbsent(loader, className, created);
+      if (task == created) {
+        task.run();
+      }
+    }
+    try {
+      return task.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new DeeptestUtilsRuntimeException(e.getMessage(), e);
+    } catch (ExecutionException e) {
+      // Let a later call try again.
+      IMPLEMENTATIONS.remove(loader, className, task);
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      if (e.getCause() instanceof Error) {
+        throw (Error) e.getCause();
+      }
+      throw new DeeptestUtilsRuntimeException(e.getMessage(), e.getCause());
+    }
+  }
+
+  /**
+   * Generates the implementations of several classes in parallel, each in
+   * its own class pool on the {@link Workers} pool, then defines them on the
+   * calling thread. Implementations generated or being generated already are
+   * skipped, and so are classes that fail: {@link #of} reports their
+   * failure when asked for them.
+   *
+   * @param classes the <code>Class</code> of each abstract class or
+   *     interface, or null if it cannot be loaded by reflection, by name
+   */
+  static void prepare(final Map<String, Class<?>> classes) {
+    ExecutorService executor = Workers.executor();
+    Map<Key, Future<byte[]>> pending = new LinkedHashMap<Key, Future<byte[]>>();
+    for (Map.Entry<String, Class<?>> entry : classes.entrySet()) {
+      final String className = entry.getKey();
+      final Class<?> type = entry.getValue();
+      final ClassLoader loader = definingLoader(type);
+      Key key = new Key(className, loader);
+      if (IMPLEMENTATIONS.get(loader, className) != null
+          || pending.containsKey(key)) {
+        continue;
+      }
+      pending.put(key, executor.submit(new Callable<byte[]>() {
+        @Override
+        public byte[] call() {
+          return bytecode(className, type, loader);
+        }
+      }));
+    }
+    for (Map.Entry<Key, Future<byte[]>> entry : pending.entrySet()) {
+      final byte[] bytecode;
+      try {
+        bytecode = entry.getValue().get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      } catch (ExecutionException e) {
+        continue;
+      }
+      if (bytecode == null) {
+        continue;
+      }
+      final Key key = entry.getKey();
+      final Class<?> type = classes.get(key.name);
+      FutureTask<Class<?>> task = new FutureTask<Class<?>>(
+          new Callable<Class<?>>() {
+            @Override
+            public Class<?> call() {
+              return define(key.name, type, key.loader, bytecode);
+            }
+          });
+      if (IMPLEMENTATIONS.putIfAbsent(key.loader, key.name, task) == task) {
+        task.run();
+        if (failed(task)) {
+          IMPLEMENTATIONS.remove(key.loader, key.name, task);
+        }
+      }
+    }
+  }
+
+  /**
+   * Checks whether a task that has run failed.
+   *
+   * @param task the <code>FutureTask</code>, done
+   * @return true if the task threw an exception
+   */
+  private static boolean failed(final FutureTask<Class<?>> task) {
+    try {
+      task.get();
+      return false;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    } catch (ExecutionException e) {
+      return true;
+    }
+  }
+
+  /**
+   * Returns the class loader in which the implementation of a class is
+   * defined.
+   *
+   * @param type the implemented <code>Class</code>, or null if it cannot be
+   *     loaded by reflection
+   * @return the class loader of <code>type</code>, or the context class
+   *     loader if there is none
+   */
+  private static ClassLoader definingLoader(final Class<?> type) {
+    if (type != null && type.getClassLoader() != null) {
+      return type.getClassLoader();
+    }
+    return Thread.currentThread().getContextClassLoader();
+  }
+
+  /**
+   * Returns the name of the class implementing an abstract class or
+   * interface.
+   *
+   * @param className the name of the abstract class or interface
+   * @return the name of the implementing class
+   */
+  static String implementationName(final String className) {
+    return PREFIX + className + SUFFIX;
+  }
+
+  /**
+   * Generates the class implementing an abstract class or interface, unless
+   * it was generated ahead of time by {@link ImplementationGenerator}.
+   *
+   * @param className the name of the abstract class or interface
+   * @param type the <code>Class</code> named by <code>className</code>, or
+   *     null if it cannot be loaded by reflection
+   * @param loader the <code>ClassLoader</code> defining the implementation
+   * @param notFound the <code>ClassNotFoundException</code> thrown when
+   *     loading the class by reflection, or null if it was loaded
+   * @return the implementing <code>Class</code>
+   */
+  private static Class<?> generate(final String className,
+                                   final Class<?> type,
+                                   final ClassLoader loader,
+                                   final ClassNotFoundException notFound) {
+    Class<?> prebuilt = prebuilt(className, type, loader);
+    if (prebuilt != null) {
+      return prebuilt;
+    }
+    ClassPool pool = BoundedClassPool.of(loader);
+    // The class of the implemented type is shared, and modified below.
+    synchronized (pool) {
+      CtClass implementingCtClass;
+      try {
+        implementingCtClass = synthesize(pool, className);
+      } catch (NotFoundException e) {
+        throw new DeeptestUtilsRuntimeException(e.getMessage(), e.getCause());
+      } catch (CannotCompileException e) {
+        throw new
+            DeeptestUtilsRuntimeException(e.getMessage(), e.getCause());
+      }
+      if (implementingCtClass == null) {
+        throw new DeeptestUtilsRuntimeException(notFound.getMessage(),
+                                                notFound.getCause());
+      }
+      try {
+        if (type == null) {
+          return pool.toClass(implementingCtClass, null, loader, null);
+        }
+        return pool.toClass(implementingCtClass, null, loader,
+                            type.getProtectionDomain());
+      } catch (CannotCompileException e) {
+        throw new
+            DeeptestUtilsRuntimeException(e.getMessage(), e.getCause());
+      } finally {
+        // Allow the same implementation in other class loaders.
+        implementingCtClass.detach();
+      }
+    }
+  }
+
+  /**
+   * Generates the bytecode of the class implementing an abstract class or
+   * interface, in a class pool of its own.
+   *
+   * @param className the name of the abstract class or interface
+   * @param type the <code>Class</code> named by <code>className</code>, or
+   *     null if it cannot be loaded by reflection
+   * @param loader the <code>ClassLoader</code> defining the implementation
+   * @return the bytecode of the implementing class, or null if there is an
+   *     implementation on the class path or the class is neither abstract
+   *     nor an interface
+   */
+  private static byte[] bytecode(final String className,
+                                 final Class<?> type,
+                                 final ClassLoader loader) {
+    if (prebuilt(className, type, loader) != null) {
+      return null;
+    }
+    // The pool is dropped with the classes read into it.
+    ClassPool pool = BoundedClassPool.newPool(loader);
+    try {
+      CtClass implementingCtClass = synthesize(pool, className);
+      if (implementingCtClass == null) {
+        return null;
+      }
+      return implementingCtClass.toBytecode();
+    } catch (NotFoundException e) {
+      throw new DeeptestUtilsRuntimeException(e.getMessage(), e.getCause());
+    } catch (CannotCompileException e) {
+      throw new DeeptestUtilsRuntimeException(e.getMessage(), e.getCause());
+    } catch (IOException e) {
+      throw new DeeptestUtilsRuntimeException(e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Defines the class implementing an abstract class or interface.
+   *
+   * @param className the name of the abstract class or interface
+   * @param type the <code>Class</code> named by <code>className</code>, or
+   *     null if it cannot be loaded by reflection
+   * @param loader the <code>ClassLoader</code> defining the implementation
+   * @param bytecode the bytecode of the implementing class
+   * @return the implementing <code>Class</code>
+   */
+  private static Class<?> define(final String className,
+                                 final Class<?> type,
+                                 final ClassLoader loader,
+                                 final byte[] bytecode) {
+    ProtectionDomain domain = null;
+    if (type != null) {
+      domain = type.getProtectionDomain();
+    }
+    try {
+      return DefineClassHelper.toClass(implementationName(className), null,
+                                       loader, domain, bytecode);
+    } catch (CannotCompileException e) {
+      throw new DeeptestUtilsRuntimeException(e.getMessage(), e.getCause());
+    }
+  }
+
+  /**
+   * Loads the implementation of a class generated ahead of time, if there
+   * is one.
+   *
+   * @param className the name of the abstract class or interface
+   * @param type the <code>Class</code> named by <code>className</code>, or
+   *     null if it cannot be loaded by reflection
+   * @param loader the <code>ClassLoader</code> to load the implementation
+   *     with
+   * @return the implementing <code>Class</code>, or null if there is none
+   *     that can be used
+   */
+  private static Class<?> prebuilt(final String className,
+                                   final Class<?> type,
+                                   final ClassLoader loader) {
+    Class<?> c;
+    try {
+      c = Class.forName(implementationName(className), false, loader);
+    } catch (ClassNotFoundException e) {
+      return null;
+    } catch (LinkageError e) {
+      // Out of date, generate it again.
+      return null;
+    }
+    if (type != null && !type.isAssignableFrom(c)) {
+      return null;
+    }
+    return c;
+  }
+
+  /**
+   * Creates the javassist class implementing an abstract class or
+   * interface. The caller holds the lock of the pool, and detaches the
+   * returned class once done with it.
+   *
+   * @param pool the <code>ClassPool</code> to find the class in
+   * @param className the name of the abstract class or interface
+   * @return the implementing <code>CtClass</code>, or null if the class is
+   *     neither abstract nor an interface
+   * @throws NotFoundException if the class is not found in the pool
+   * @throws CannotCompileException if the implementing class is invalid
+   */
+  static CtClass synthesize(final ClassPool pool, final String className)
+      throws NotFoundException, CannotCompileException {
+    CtClass cl = pool.get(className);
+    if (!isAbstract(cl) && !cl.isInterface()) {
+      return null;
+    }
+    makeFullyPublic(cl);
+    CtClass implementingCtClass =
+        pool.makeClass(implementationName(className));
+    if (cl.isInterface()) {
+      implementingCtClass.setInterfaces(new CtClass[] {cl });
+      return implementingCtClass;
+    }
+    try {
+      implementingCtClass.setSuperclass(cl);
+    } catch (CannotCompileException e) {
+      implementingCtClass.detach();
+      throw e;
+    }
+    return implementingCtClass;
+  }
+
+  /**
+   * <code>makePublic</code> sets member flag to public.
+   *
+   * @param m the member to make public
+   */
+  private static void makePublic(final CtMember m) {
+    int modifier = m.getModifiers();
+    modifier = modifier & ~(javassist.Modifier.PRIVATE
+                            | javassist.Modifier.PROTECTED);
+    modifier = modifier | javassist.Modifier.PUBLIC;
+    m.setModifiers(modifier);
+  }
+
+  /**
+   * Sets class flag to public.
+   *
+   * @param c the class to make public
+   */
+  private static void makePublic(final CtClass c) {
+    int modifier = c.getModifiers();
+    modifier = modifier & ~(javassist.Modifier.PRIVATE
+                            | javassist.Modifier.PROTECTED);
+    modifier = modifier | javassist.Modifier.PUBLIC;
+    c.setModifiers(modifier);
+  }
+
+  /**
+   * Sets the flag of the given class and all of its fields, methods and
+   * constructors to public.
+   * We use this on abstract classes and interfaces so that our newly
+   * constructed implementing classes in Reflector.getInstance can inherit from
+   * them.
+   *
+   * @param cl the class to make public
+   */
+  private static void makeFullyPublic(final CtClass cl) {
+    for (CtMethod m : cl.getDeclaredMethods()) {
+      makePublic(m);
+    }
+    for (CtConstructor ctor : cl.getDeclaredConstructors()) {
+      makePublic(ctor);
+    }
+    for (CtField f : cl.getDeclaredFields()) {
+      makePublic(f);
+    }
+    makePublic(cl);
+  }
+
+  /**
+   * Checks whether the <code>ABSTRACT</code> flag of a class is set.
+   *
+   * @param c the class to check
+   * @return a <code>boolean</code> value indicating whether the class is
+   * abstract.
+   */
+  private static boolean isAbstract(final CtClass c) {
+    return (c.getModifiers() & javassist.Modifier.ABSTRACT) != 0;
+  }
+
+  /**
+   * <code>Key</code> identifies an implementation by the name of the class it
+   * implements and its defining class loader, while {@link #prepare(Map)}
+   * generates it.
+   */
+  private static final class Key {
+
+    /**
+     * Name of the implemented class.
+     */
+    private final String name;
+
+    /**
+     * The defining class loader, compared by identity.
+     */
+    private final ClassLoader loader;
+
+    /**
+     * Creates a new <code>Key</code> instance.
+     *
+     * @param className the name of the implemented class
+     * @param l the defining <code>ClassLoader</code>
+     */
+    Key(final String className, final ClassLoader l) {
+      name = className;
+      loader = l;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return loader == other.loader && name.equals(other.name);
+    }
+
+    @Override
+    public int hashCode() {
+      return name.hashCode() ^ System.identityHashCode(loader);
+    }
+  }
+}
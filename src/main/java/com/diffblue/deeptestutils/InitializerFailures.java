@@ -0,0 +1,70 @@
+package com.diffblue.deeptestutils;
+
+import java.lang.ref.SoftReference;
+import java.util.WeakHashMap;
+
+// Copyright 2016-2018 Diffblue limited. All rights reserved.
+
+/**
+ * <code>InitializerFailures</code> remembers the exceptions thrown by static
+ * initializers. The JVM reports such an exception only the first time a
+ * class is initialized, with an <code>ExceptionInInitializerError</code>;
+ * later attempts fail with a <code>NoClassDefFoundError</code> that does not
+ * say why. Remembering the exception lets {@link Reflector} report it the
+ * same way every time, however the class was first initialized.
+ * <p>
+ * The exception is often an instance of a class of the same class loader as
+ * the class that failed, so it is held through a soft reference, like the
+ * values of {@link ClassCache}: holding it strongly would keep the class
+ * loader alive. Once memory runs low it may be forgotten, and the class is
+ * then reported like the JVM does.
+ *
+ * @author <a href="http://diffblue.com">Diffblue</a>
+ */
+final class InitializerFailures {
+
+  /**
+   * Exceptions thrown by the static initializers of classes, guarded by
+   * itself. Classes are referred to weakly, and exceptions softly, so that
+   * their class loaders can be collected.
+   */
+  private static final WeakHashMap<Class<?>, SoftReference<Throwable>>
+      FAILURES = new WeakHashMap<Class<?>, SoftReference<Throwable>>();
+
+  /**
+   * Private constructor to prevent instantiation of the utility class.
+   */
+  private InitializerFailures() {
+  }
+
+  /**
+   * Records the exception thrown by the static initializer of a class.
+   *
+   * @param c the <code>Class</code> whose initialization failed
+   * @param cause the <code>Throwable</code> thrown by the initializer
+   */
+  static void record(final Class<?> c, final Throwable cause) {
+    synchronized (FAILURES) {
+      FAILURES.put(c, new SoftReference<Throwable>(cause));
+    }
+  }
+
+  /**
+   * Returns the exception thrown by the static initializer of a class or of
+   * one of its superclasses.
+   *
+   * @param c the <code>Class</code> whose initialization failed
+   * @return the recorded <code>Throwable</code>, or null if none was recorded
+   */
+  static Throwable lookup(final Class<?> c) {
+    synchronized (FAILURES) {
+      for (Class<?> s = c; s != null; s = s.getSuperclass()) {
+        SoftReference<Throwable> cause = FAILURES.get(s);
+        if (cause != null && cause.get() != null) {
+          return cause.get();
+        }
+      }
+      return null;
+    }
+  }
+}
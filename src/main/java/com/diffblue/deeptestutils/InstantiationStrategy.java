@@ -0,0 +1,32 @@
+package com.diffblue.deeptestutils;
+
+// Copyright 2016-2018 Diffblue limited. All rights reserved.
+
+/**
+ * <code>InstantiationStrategy</code> selects how
+ * {@link Reflector#getInstance(Class)} creates objects, see
+ * {@link Reflector#setInstantiationStrategy(InstantiationStrategy)}.
+ *
+ * @author <a href="http://diffblue.com">Diffblue</a>
+ */
+public enum InstantiationStrategy {
+
+  /**
+   * Creates objects without calling any constructor, using the best
+   * strategy Objenesis finds for this JVM. This is the default.
+   */
+  STD,
+
+  /**
+   * Creates objects the way Java deserialization does: the no-argument
+   * constructor of the first superclass that is not serializable is called,
+   * and no other constructor.
+   */
+  SERIALIZING,
+
+  /**
+   * Calls the no-argument constructor of the class, whatever its access
+   * modifier, when there is one; otherwise behaves like {@link #STD}.
+   */
+  CONSTRUCTOR
+}
@@ -0,0 +1,184 @@
+package com.diffblue.deeptestutils;
+
+import org.objenesis.Objenesis;
+import org.objenesis.ObjenesisSerializer;
+import org.objenesis.ObjenesisStd;
+import org.objenesis.instantiator.ObjectInstantiator;
+import org.objenesis.instantiator.basic.AccessibleInstantiator;
+
+// Copyright 2016-2018 Diffblue limited. All rights reserved.
+
+/**
+ * <code>Instantiators</code> holds the Objenesis instantiator used to create
+ * instances of each class. An instantiator is chosen once per class,
+ * according to the {@link InstantiationStrategy} of the class, and then
+ * reused, so that creating an object costs little more than an allocation.
+ * <p>
+ * Each instantiator is cached with the strategy it was chosen for, and is
+ * only reused while the class still has that strategy, so that changing a
+ * strategy takes effect even for instantiators being chosen concurrently.
+ * Instantiators and strategies are held in {@link ClassCache}s, which do
+ * not keep class loaders alive.
+ *
+ * @author <a href="http://diffblue.com">Diffblue</a>
+ */
+final class Instantiators {
+
+  /**
+   * Objenesis instance for {@link InstantiationStrategy#STD}. Instantiators
+   * are cached here rather than by Objenesis.
+   */
+  private static final Objenesis STD = new ObjenesisStd(false);
+
+  /**
+   * Objenesis instance for {@link InstantiationStrategy#SERIALIZING}.
+   */
+  private static final Objenesis SERIALIZING = new ObjenesisSerializer(false);
+
+  /**
+   * The instantiators chosen so far, by class.
+   */
+  private static final ClassCache<Chosen> INSTANTIATORS =
+      new ClassCache<Chosen>();
+
+  /**
+   * Strategies chosen for particular classes.
+   */
+  private static final ClassCache<InstantiationStrategy> STRATEGIES =
+      new ClassCache<InstantiationStrategy>();
+
+  /**
+   * Strategy of the classes that have none of their own.
+   */
+  private static volatile InstantiationStrategy defaultStrategy =
+      InstantiationStrategy.STD;
+
+  /**
+   * Private constructor to prevent instantiation of the utility class.
+   */
+  private Instantiators() {
+  }
+
+  /**
+   * Returns the instantiator of a class, choosing it on first use.
+   *
+   * @param <T> type parameter of the class
+   * @param c the <code>Class</code> to instantiate
+   * @return the <code>ObjectInstantiator</code> of the class
+   */
+  @SuppressWarnings("unchecked")
+  static <T> ObjectInstantiator<T> of(final Class<T> c) {
+    InstantiationStrategy strategy = strategyOf(c);
+    Chosen chosen = INSTANTIATORS.get(c);
+    if (chosen == null || chosen.strategy != strategy) {
+      chosen = new Chosen(strategy, create(c, strategy));
+      INSTANTIATORS.put(c, chosen);
+    }
+    return (ObjectInstantiator<T>) chosen.instantiator;
+  }
+
+  /**
+   * Sets the strategy of the classes that have none of their own.
+   *
+   * @param strategy the new default <code>InstantiationStrategy</code>
+   */
+  static void setDefaultStrategy(final InstantiationStrategy strategy) {
+    defaultStrategy = strategy;
+  }
+
+  /**
+   * Sets the strategy of a class.
+   *
+   * @param c the <code>Class</code> to instantiate
+   * @param strategy the <code>InstantiationStrategy</code> of the class, or
+   *     null to use the default strategy
+   */
+  static void setStrategy(final Class<?> c,
+                          final InstantiationStrategy strategy) {
+    if (strategy == null) {
+      STRATEGIES.remove(c);
+    } else {
+      STRATEGIES.put(c, strategy);
+    }
+  }
+
+  /**
+   * Returns the strategy of a class.
+   *
+   * @param c the <code>Class</code> to instantiate
+   * @return the <code>InstantiationStrategy</code> of the class
+   */
+  private static InstantiationStrategy strategyOf(final Class<?> c) {
+    InstantiationStrategy strategy = STRATEGIES.get(c);
+    if (strategy == null) {
+      return defaultStrategy;
+    }
+    return strategy;
+  }
+
+  /**
+   * Creates an instantiator for a class.
+   *
+   * @param <T> type parameter of the class
+   * @param c the <code>Class</code> to instantiate
+   * @param strategy the <code>InstantiationStrategy</code> to use
+   * @return a new <code>ObjectInstantiator</code>
+   */
+  private static <T> ObjectInstantiator<T> create(
+      final Class<T> c, final InstantiationStrategy strategy) {
+    switch (strategy) {
+      case SERIALIZING:
+        return SERIALIZING.getInstantiatorOf(c);
+      case CONSTRUCTOR:
+        if (hasNoArgumentConstructor(c)) {
+          return new AccessibleInstantiator<T>(c);
+        }
+        return STD.getInstantiatorOf(c);
+      default:
+        return STD.getInstantiatorOf(c);
+    }
+  }
+
+  /**
+   * Checks whether a class declares a constructor without arguments.
+   *
+   * @param c the <code>Class</code> to check
+   * @return true if the class declares such a constructor
+   */
+  private static boolean hasNoArgumentConstructor(final Class<?> c) {
+    try {
+      c.getDeclaredConstructor();
+      return true;
+    } catch (NoSuchMethodException e) {
+      return false;
+    }
+  }
+
+  /**
+   * <code>Chosen</code> is an instantiator with the strategy it was chosen
+   * for.
+   */
+  private static final class Chosen {
+
+    /**
+     * The strategy the instantiator was chosen for.
+     */
+    private final InstantiationStrategy strategy;
+
+    /**
+     * The instantiator.
+     */
+    private final ObjectInstantiator<?> instantiator;
+
+    /**
+     * Creates a new <code>Chosen</code> instance.
+     *
+     * @param s the <code>InstantiationStrategy</code>
+     * @param i the <code>ObjectInstantiator</code> chosen for it
+     */
+    Chosen(final InstantiationStrategy s, final ObjectInstantiator<?> i) {
+      strategy = s;
+      instantiator = i;
+    }
+  }
+}
@@ -0,0 +1,187 @@
+package com.diffblue.deeptestutils;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+
+// Copyright 2016-2018 Diffblue limited. All rights reserved.
+
+/**
+ * <code>InterfaceProxies</code> creates the instances of interfaces returned
+ * by {@link Reflector#getInstance(String)}, as <code>java.lang.reflect</code>
+ * proxies, which are much cheaper to create than a class generated with
+ * javassist.
+ * <p>
+ * The proxies behave like an instance of a class implementing the
+ * interface and nothing else: the methods of <code>Object</code> behave as
+ * if not overridden, and the methods of the interface throw
+ * <code>AbstractMethodError</code>. Interfaces with default methods are not
+ * proxied, as a proxy cannot call them from Java 6 code.
+ *
+ * @author <a href="http://diffblue.com">Diffblue</a>
+ */
+final class InterfaceProxies {
+
+  /**
+   * The handler shared by all proxies.
+   */
+  private static final InvocationHandler HANDLER = new Handler();
+
+  /**
+   * The constructors of the proxy classes, by interface, held without
+   * keeping class loaders alive. An interface that cannot be proxied maps to
+   * a holder of null.
+   */
+  private static final ClassCache<Holder> CONSTRUCTORS =
+      new ClassCache<Holder>();
+
+  /**
+   * Private constructor to prevent instantiation of the utility class.
+   */
+  private InterfaceProxies() {
+  }
+
+  /**
+   * Creates a proxy implementing an interface.
+   *
+   * @param type the interface to implement
+   * @return a new proxy, or null if the interface cannot be proxied
+   */
+  static Object newInstance(final Class<?> type) {
+    Holder holder = holder(type);
+    if (holder.constructor == null) {
+      return null;
+    }
+    try {
+      return holder.constructor.newInstance(HANDLER);
+    } catch (InstantiationException e) {
+      throw new DeeptestUtilsRuntimeException(e.getMessage(), e);
+    } catch (IllegalAccessException e) {
+      throw new DeeptestUtilsRuntimeException(e.getMessage(), e);
+    } catch (InvocationTargetException e) {
+      throw new DeeptestUtilsRuntimeException(e.getMessage(), e.getCause());
+    }
+  }
+
+  /**
+   * Creates the proxy class of an interface, unless done before.
+   *
+   * @param type the interface to implement
+   * @return true if the interface can be proxied
+   */
+  static boolean prepare(final Class<?> type) {
+    return holder(type).constructor != null;
+  }
+
+  /**
+   * Returns the holder of the proxy constructor of an interface, creating
+   * it on first use.
+   *
+   * @param type the interface to implement
+   * @return the <code>Holder</code> of the interface
+   */
+  private static Holder holder(final Class<?> type) {
+    Holder holder = CONSTRUCTORS.get(type);
+    if (holder == null) {
+      holder = CONSTRUCTORS.putIfAbsent(type,
+                                        new Holder(proxyConstructor(type)));
+    }
+    return holder;
+  }
+
+  /**
+   * Returns the constructor of the proxy class of an interface. The class is
+   * that of a first proxy, as <code>Proxy.getProxyClass</code> is
+   * deprecated; only later proxies are created through the constructor.
+   *
+   * @param type the interface to implement
+   * @return the <code>Constructor</code> taking an
+   *     <code>InvocationHandler</code>, or null if the interface cannot be
+   *     proxied
+   */
+  private static Constructor<?> proxyConstructor(final Class<?> type) {
+    if (!type.isInterface() || hasDefaultMethods(type)) {
+      return null;
+    }
+    try {
+      Object proxy = Proxy.newProxyInstance(type.getClassLoader(),
+                                            new Class<?>[] {type}, HANDLER);
+      Constructor<?> constructor =
+          proxy.getClass().getConstructor(InvocationHandler.class);
+      constructor.setAccessible(true);
+      return constructor;
+    } catch (IllegalArgumentException e) {
+      return null;
+    } catch (NoSuchMethodException e) {
+      return null;
+    } catch (SecurityException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Checks whether an interface has methods with a body, which a proxy
+   * cannot call.
+   *
+   * @param type the interface to check
+   * @return true if one of its instance methods, or of its superinterfaces,
+   *     is not abstract
+   */
+  private static boolean hasDefaultMethods(final Class<?> type) {
+    for (Method m : type.getMethods()) {
+      int modifiers = m.getModifiers();
+      if (!Modifier.isAbstract(modifiers) && !Modifier.isStatic(modifiers)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * <code>Holder</code> holds the proxy constructor of an interface, or
+   * null, so that the absence of one is cached too.
+   */
+  private static final class Holder {
+
+    /**
+     * The constructor, or null if the interface cannot be proxied.
+     */
+    private final Constructor<?> constructor;
+
+    /**
+     * Creates a new <code>Holder</code> instance.
+     *
+     * @param c the proxy <code>Constructor</code>, or null
+     */
+    Holder(final Constructor<?> c) {
+      constructor = c;
+    }
+  }
+
+  /**
+   * <code>Handler</code> handles the calls to all proxies.
+   */
+  private static final class Handler implements InvocationHandler {
+
+    @Override
+    public Object invoke(final Object proxy, final Method method,
+                         final Object[] args) {
+      if (method.getDeclaringClass() == Object.class) {
+        String name = method.getName();
+        if ("equals".equals(name)) {
+          return Boolean.valueOf(proxy == args[0]);
+        }
+        if ("hashCode".equals(name)) {
+          return Integer.valueOf(System.identityHashCode(proxy));
+        }
+        return proxy.getClass().getName() + "@"
+            + Integer.toHexString(System.identityHashCode(proxy));
+      }
+      throw new AbstractMethodError(method.getDeclaringClass().getName()
+                                    + "." + method.getName());
+    }
+  }
+}
@@ -3,6 +3,7 @@ package com.diffblue.deeptestutils;
 import org.mockito.stubbing.Answer;
 import org.mockito.invocation.InvocationOnMock;
 import java.util.ArrayList;
+import java.util.IdentityHashMap;
 
 // Copyright 2016-2018 Diffblue limited. All rights reserved.
 
@@ -40,6 +41,15 @@ public final class IterAnswer<T> implements Answer<T> {
    */
   private ArrayList<Object[]> expectedParameters;
 
+  /**
+   * The expected parameters compared so far, by identity, with their
+   * <code>CompiledExpectation</code> once compared a second time. An
+   * expected value compared only once is compared directly, as compiling it
+   * would cost more than it saves.
+   */
+  private final IdentityHashMap<Object, CompiledExpectation> compiled =
+      new IdentityHashMap<Object, CompiledExpectation>();
+
   /**
    * Constructor.
    *
@@ -68,6 +78,19 @@ public final class IterAnswer<T> implements Answer<T> {
    * @return list of expected parameters
    */
   public T answer(final InvocationOnMock invocation) {
+    return nextAnswer(invocation.getArguments());
+  }
+
+  /**
+   * Returns the next answer in sequence, after checking the arguments of the
+   * call against the expected parameters. This is what {@link #answer} does,
+   * without a Mockito invocation, for stubs that do not use Mockito, see
+   * {@link com.diffblue.deeptestutils.mock.DTUStub}.
+   *
+   * @param actual the arguments of the call
+   * @return the next answer object
+   */
+  public T nextAnswer(final Object[] actual) {
     if (idx == answers.size()) {
         System.out.println("WARNING: more answers than in trace "
                            + (idx + 1) + " instead of just " + idx
@@ -79,11 +102,10 @@ public final class IterAnswer<T> implements Answer<T> {
 
     if (!expectedParameters.isEmpty()) {
       Object[] expected = expectedParameters.get(idx);
-      Object[] actual = invocation.getArguments();
       assert (expected.length == actual.length);
       for (int i = 0; i < expected.length; ++i) {
         try {
-          CompareWithFieldList.compare(expected[i], actual[i]);
+          compare(expected[i], actual[i]);
         } catch (UnexpectedValueException e) {
           String errormsg = "Mocked class " + classname
             + " method " + methodname + " invocation " + (idx + 1)
@@ -95,4 +117,41 @@ public final class IterAnswer<T> implements Answer<T> {
     idx++;
     return result;
   }
+
+  /**
+   * Compares an argument to its expected value, through the compiled
+   * expectation of the value if it was compared before, e.g. when the
+   * answers restart or several calls share an expected value.
+   *
+   * @param expected the expected value of the argument
+   * @param actual the argument
+   */
+  private void compare(final Object expected, final Object actual) {
+    if (!(expected instanceof FieldList) && !(expected instanceof Object[])) {
+      CompareWithFieldList.compare(expected, actual);
+      return;
+    }
+    CompiledExpectation expectation = compiled.get(expected);
+    if (expectation == null) {
+      if (!compiled.containsKey(expected)) {
+        compiled.put(expected, null);
+        CompareWithFieldList.compare(expected, actual);
+        return;
+      }
+      expectation = CompiledExpectation.compile(expected);
+      compiled.put(expected, expectation);
+    }
+    expectation.compare(actual);
+  }
+
+  /**
+   * Returns the compiled expectation of an expected value, for tests.
+   *
+   * @param expected the expected value of an argument
+   * @return the <code>CompiledExpectation</code> used to compare arguments
+   *     to <code>expected</code>, or null if there is none yet
+   */
+  CompiledExpectation getCompiled(final Object expected) {
+    return compiled.get(expected);
+  }
 }
@@ -0,0 +1,118 @@
+package com.diffblue.deeptestutils;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.util.IdentityHashMap;
+
+// Copyright 2016-2018 Diffblue limited. All rights reserved.
+
+/**
+ * <code>ObjectGraphBuilder</code> builds the objects described by a graph of
+ * <code>FieldList</code>s and arrays, as compared to by
+ * {@link CompareWithFieldList}, see
+ * {@link Reflector#instantiate(Class, FieldList)}.
+ * <p>
+ * The class of the object built from a <code>FieldList</code> is the
+ * declared type of the field, or array, holding it; abstract classes and
+ * interfaces are instantiated as by {@link Reflector#getInstance(String)}.
+ * As a <code>FieldList</code> does not give the class of its object, it can
+ * only set the fields of that type: one naming a field of a subclass, e.g.
+ * held by a field declared as <code>Object</code> or an interface, is
+ * rejected.
+ * Objects are created without calling any constructor, and their fields are
+ * written through the cached {@link WritePlan} of their class. A
+ * <code>FieldList</code> or array reached twice is built once, so that
+ * shared references and cycles are preserved. Other values are used as
+ * they are.
+ *
+ * @author <a href="http://diffblue.com">Diffblue</a>
+ */
+final class ObjectGraphBuilder {
+
+  /**
+   * The objects built so far, by the <code>FieldList</code> or array they
+   * were built from.
+   */
+  private final IdentityHashMap<Object, Object> built =
+      new IdentityHashMap<Object, Object>();
+
+  /**
+   * Builds the object described by a value.
+   *
+   * @param type the declared type of the value
+   * @param value a <code>FieldList</code>, an array, or any other value
+   * @return the object built, or <code>value</code> itself if it is neither
+   *     a <code>FieldList</code> nor an array of references
+   * @throws InvocationTargetException if the static initializer of the class
+   *     of an object throws an exception
+   */
+  Object build(final Class<?> type, final Object value)
+      throws InvocationTargetException {
+    if (!(value instanceof FieldList) && !(value instanceof Object[])) {
+      return value;
+    }
+    Object object = built.get(value);
+    if (object != null) {
+      return object;
+    }
+    if (value instanceof FieldList) {
+      return buildObject(type, (FieldList) value);
+    }
+    return buildArray(type, (Object[]) value);
+  }
+
+  /**
+   * Builds the object described by a field list. A field that the class
+   * does not have is reported as a <code>DeeptestUtilsRuntimeException</code>
+   * naming the class.
+   *
+   * @param type the class of the object
+   * @param values the <code>FieldList</code> of the fields of the object
+   * @return the object built
+   * @throws InvocationTargetException if the static initializer of the class
+   *     of an object throws an exception
+   */
+  private Object buildObject(final Class<?> type, final FieldList values)
+      throws InvocationTargetException {
+    Object object = Reflector.getAnyInstance(type);
+    built.put(values, object);
+    WritePlan plan;
+    try {
+      plan = ClassLayout.of(object.getClass()).getWritePlan(values);
+    } catch (DeeptestUtilsRuntimeException e) {
+      // Name the declared type rather than a generated implementation.
+      throw new DeeptestUtilsRuntimeException(e.getCause().getMessage()
+          + " is not a field in class " + type.getName()
+          + ", the declared type of the object built: a FieldList cannot"
+          + " set the fields of a subclass", e.getCause());
+    }
+    plan.apply(object, values, this);
+    return object;
+  }
+
+  /**
+   * Builds the array described by an array of values.
+   *
+   * @param type the declared type of the array; if it is not an array type,
+   *     the array built has the type of <code>values</code>
+   * @param values the elements of the array, to be built
+   * @return the array built
+   * @throws InvocationTargetException if the static initializer of the class
+   *     of an object throws an exception
+   */
+  private Object buildArray(final Class<?> type, final Object[] values)
+      throws InvocationTargetException {
+    Class<?> component;
+    if (type.isArray()) {
+      component = type.getComponentType();
+    } else {
+      component = values.getClass().getComponentType();
+    }
+    Object array = Array.newInstance(component, values.length);
+    built.put(values, array);
+    for (int i = 0; i < values.length; ++i) {
+      Array.set(array, i, build(component, values[i]));
+    }
+    return array;
+  }
+}
@@ -0,0 +1,410 @@
+package com.diffblue.deeptestutils;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import javassist.bytecode.BadBytecode;
+import javassist.bytecode.ClassFile;
+import javassist.bytecode.CodeAttribute;
+import javassist.bytecode.CodeIterator;
+import javassist.bytecode.ConstPool;
+import javassist.bytecode.MethodInfo;
+import javassist.bytecode.Opcode;
+
+// Copyright 2016-2018 Diffblue limited. All rights reserved.
+
+/**
+ * <code>Preloader</code> loads and initializes the classes a test class
+ * refers to before its first test runs, see
+ * {@link Reflector#preload(Class)}.
+ * <p>
+ * The classes are found in the constant pool of the test class: the classes
+ * it refers to directly, and the string constants that are class names. They
+ * are loaded in parallel on the {@link Workers} pool. Static initializers are
+ * then run one class at a time, on the calling thread, as initializers
+ * running in parallel can deadlock when their classes refer to each other.
+ * Only the classes the test would initialize itself are initialized: those
+ * its code instantiates with <code>new</code>, those declaring the static
+ * fields and methods its code uses, and those it passes by name to
+ * {@link Reflector#forName(String)} or {@link Reflector#getInstance(String)},
+ * see {@link ConstantArguments}. Other classes it refers to, e.g. in class
+ * literals, casts or <code>catch</code> clauses, and string constants that
+ * look like class names, are only loaded, so that preloading does not run a
+ * static initializer the test would not.
+ *
+ * @author <a href="http://diffblue.com">Diffblue</a>
+ */
+final class Preloader {
+
+  /**
+   * Private constructor to prevent instantiation of the utility class.
+   */
+  private Preloader() {
+  }
+
+  /**
+   * Loads and initializes the classes a test class refers to.
+   *
+   * @param testClass the test <code>Class</code>
+   * @return the exceptions thrown by static initializers, wrapped in
+   *     <code>InvocationTargetException</code>s, by class name
+   */
+  static Map<String, InvocationTargetException> preload(
+      final Class<?> testClass) {
+    final ClassLoader loader = testClass.getClassLoader();
+    ExecutorService executor = Workers.executor();
+    ClassFile classFile = readClassFile(testClass);
+    LinkedHashSet<String> initialized = new LinkedHashSet<String>();
+    LinkedHashMap<String, LinkedHashSet<String>> statics =
+        new LinkedHashMap<String, LinkedHashSet<String>>();
+    LinkedHashSet<String> loaded = new LinkedHashSet<String>();
+    referencedClassNames(classFile, initialized, statics, loaded);
+    LinkedHashSet<String> owners = new LinkedHashSet<String>(initialized);
+    owners.addAll(statics.keySet());
+    owners.remove(testClass.getName());
+    loaded.remove(testClass.getName());
+    loaded.removeAll(owners);
+    ArrayList<String> names = new ArrayList<String>(owners);
+    ArrayList<Future<Class<?>>> loads = new ArrayList<Future<Class<?>>>();
+    for (String name : names) {
+      loads.add(executor.submit(load(name, loader)));
+    }
+    ArrayList<Future<Class<?>>> otherLoads =
+        new ArrayList<Future<Class<?>>>();
+    for (String name : loaded) {
+      otherLoads.add(executor.submit(load(name, loader)));
+    }
+    Map<String, InvocationTargetException> failures =
+        new LinkedHashMap<String, InvocationTargetException>();
+    for (int i = 0; i < names.size(); ++i) {
+      Class<?> c = await(loads.get(i));
+      if (c == null) {
+        continue;
+      }
+      if (initialized.contains(names.get(i))) {
+        initialize(c, failures);
+      }
+      LinkedHashSet<String> members = statics.get(names.get(i));
+      if (members != null) {
+        for (String member : members) {
+          initialize(declaringClass(c, member), failures);
+        }
+      }
+    }
+    for (Future<Class<?>> load : otherLoads) {
+      await(load);
+    }
+    return failures;
+  }
+
+  /**
+   * Returns a task loading a class without initializing it.
+   *
+   * @param name the name of the class
+   * @param loader the <code>ClassLoader</code> to load the class with
+   * @return the task, returning the <code>Class</code>, or null if it could
+   *     not be loaded
+   */
+  private static Callable<Class<?>> load(final String name,
+                                         final ClassLoader loader) {
+    return new Callable<Class<?>>() {
+      @Override
+      public Class<?> call() {
+        try {
+          return Class.forName(name, false, loader);
+        } catch (ClassNotFoundException e) {
+          return null;
+        } catch (LinkageError e) {
+          return null;
+        }
+      }
+    };
+  }
+
+  /**
+   * Runs the static initializer of a class, if it has not run yet, and
+   * records the exception it threw, if any.
+   *
+   * @param c the <code>Class</code> to initialize
+   * @param failures the exceptions thrown by static initializers, by class
+   *     name
+   */
+  private static void initialize(
+      final Class<?> c, final Map<String, InvocationTargetException> failures) {
+    Throwable cause = initialize(c);
+    if (cause != null) {
+      failures.put(c.getName(), new InvocationTargetException(cause));
+    }
+  }
+
+  /**
+   * Returns the class declaring a static field or method that code refers to
+   * through a class, which is the class the JVM initializes: the class
+   * itself, or one of its superclasses or interfaces.
+   *
+   * @param c the <code>Class</code> named in the reference
+   * @param member the name of the field or method
+   * @return the declaring <code>Class</code>, or <code>c</code> if no class
+   *     declares a static member of that name
+   */
+  private static Class<?> declaringClass(final Class<?> c,
+                                         final String member) {
+    try {
+      for (Class<?> k = c; k != null; k = k.getSuperclass()) {
+        Class<?> declaring = declaringInterface(k, member);
+        if (declaring != null) {
+          return declaring;
+        }
+      }
+    } catch (LinkageError e) {
+      // A member has a type that cannot be loaded.
+      return c;
+    }
+    return c;
+  }
+
+  /**
+   * Returns the class or interface declaring a static member among a class
+   * and the interfaces it implements.
+   *
+   * @param c the <code>Class</code> to search
+   * @param member the name of the field or method
+   * @return the declaring <code>Class</code>, or null if there is none
+   */
+  private static Class<?> declaringInterface(final Class<?> c,
+                                             final String member) {
+    for (Field f : c.getDeclaredFields()) {
+      if (f.getName().equals(member)
+          && Modifier.isStatic(f.getModifiers())) {
+        return c;
+      }
+    }
+    for (Method m : c.getDeclaredMethods()) {
+      if (m.getName().equals(member)
+          && Modifier.isStatic(m.getModifiers())) {
+        return c;
+      }
+    }
+    for (Class<?> i : c.getInterfaces()) {
+      Class<?> declaring = declaringInterface(i, member);
+      if (declaring != null) {
+        return declaring;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Runs the static initializer of a class, if it has not run yet.
+   *
+   * @param c the <code>Class</code> to initialize
+   * @return the <code>Throwable</code> thrown by the static initializer of
+   *     the class or of one of its superclasses, now or earlier, or null if
+   *     the class is initialized
+   */
+  private static Throwable initialize(final Class<?> c) {
+    try {
+      Class.forName(c.getName(), true, c.getClassLoader());
+      return null;
+    } catch (ExceptionInInitializerError e) {
+      InitializerFailures.record(c, e.getCause());
+      return e.getCause();
+    } catch (ClassNotFoundException e) {
+      return null;
+    } catch (LinkageError e) {
+      return InitializerFailures.lookup(c);
+    }
+  }
+
+  /**
+   * Waits for a class to be loaded.
+   *
+   * @param load the <code>Future</code> of the loaded class
+   * @return the loaded <code>Class</code>, or null if it could not be loaded
+   */
+  private static Class<?> await(final Future<Class<?>> load) {
+    try {
+      return load.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new DeeptestUtilsRuntimeException(e.getMessage(), e);
+    } catch (ExecutionException e) {
+      throw new DeeptestUtilsRuntimeException(e.getMessage(), e.getCause());
+    }
+  }
+
+  /**
+   * Reads the names of the classes a class refers to from its constant pool
+   * and code, and those it passes to <code>forName</code> or
+   * <code>getInstance</code>.
+   *
+   * @param classFile the <code>ClassFile</code> of the class
+   * @param initialized the set to add the names of the classes to
+   *     initialize to: those instantiated, or passed by name
+   * @param statics the map to add the names of the static members used to,
+   *     by the name of the class they are referred to through
+   * @param loaded the set to add the other classes and the string constants
+   *     that are class names to, in constant pool order
+   */
+  private static void referencedClassNames(
+      final ClassFile classFile,
+      final LinkedHashSet<String> initialized,
+      final LinkedHashMap<String, LinkedHashSet<String>> statics,
+      final LinkedHashSet<String> loaded) {
+    ConstPool pool = classFile.getConstPool();
+    for (int i = 1; i < pool.getSize(); ++i) {
+      int tag = pool.getTag(i);
+      if (tag == ConstPool.CONST_Class) {
+        loaded.add(pool.getClassInfo(i));
+      } else if (tag == ConstPool.CONST_String) {
+        String s = pool.getStringInfo(i);
+        if (isClassName(s)) {
+          loaded.add(s);
+        }
+      }
+    }
+    for (Object m : classFile.getMethods()) {
+      CodeAttribute code = ((MethodInfo) m).getCodeAttribute();
+      if (code != null) {
+        initializingInstructions(pool, code, initialized, statics);
+      }
+    }
+    ConstantArguments.scan(classFile, initialized,
+                           ConstantArguments.FOR_NAME,
+                           ConstantArguments.GET_INSTANCE);
+  }
+
+  /**
+   * Reads the classes that the instructions of a method initialize:
+   * <code>new</code>, <code>getstatic</code>, <code>putstatic</code> and
+   * <code>invokestatic</code>.
+   *
+   * @param pool the <code>ConstPool</code> of the class
+   * @param code the <code>CodeAttribute</code> of the method
+   * @param initialized the set to add the names of instantiated classes to
+   * @param statics the map to add the names of the static members used to,
+   *     by the name of the class they are referred to through
+   */
+  private static void initializingInstructions(
+      final ConstPool pool, final CodeAttribute code,
+      final LinkedHashSet<String> initialized,
+      final LinkedHashMap<String, LinkedHashSet<String>> statics) {
+    CodeIterator it = code.iterator();
+    try {
+      while (it.hasNext()) {
+        int index = it.next();
+        int op = it.byteAt(index);
+        if (op == Opcode.NEW) {
+          initialized.add(pool.getClassInfo(it.u16bitAt(index + 1)));
+        } else if (op == Opcode.GETSTATIC || op == Opcode.PUTSTATIC) {
+          int ref = it.u16bitAt(index + 1);
+          addStatic(statics, pool.getFieldrefClassName(ref),
+                    pool.getFieldrefName(ref));
+        } else if (op == Opcode.INVOKESTATIC) {
+          int ref = it.u16bitAt(index + 1);
+          if (pool.getTag(ref) == ConstPool.CONST_InterfaceMethodref) {
+            addStatic(statics, pool.getInterfaceMethodrefClassName(ref),
+                      pool.getInterfaceMethodrefName(ref));
+          } else {
+            addStatic(statics, pool.getMethodrefClassName(ref),
+                      pool.getMethodrefName(ref));
+          }
+        }
+      }
+    } catch (BadBytecode e) {
+      throw new DeeptestUtilsRuntimeException(e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Records a static member used through a class.
+   *
+   * @param statics the names of the static members used, by class name
+   * @param className the name of the class the member is referred to
+   *     through
+   * @param member the name of the field or method
+   */
+  private static void addStatic(
+      final LinkedHashMap<String, LinkedHashSet<String>> statics,
+      final String className, final String member) {
+    LinkedHashSet<String> members = statics.get(className);
+    if (members == null) {
+      members = new LinkedHashSet<String>();
+      statics.put(className, members);
+    }
+    members.add(member);
+  }
+
+  /**
+   * Reads the class file of a class.
+   *
+   * @param c the <code>Class</code> to read
+   * @return the parsed <code>ClassFile</code>
+   */
+  private static ClassFile readClassFile(final Class<?> c) {
+    String resource = c.getName().replace('.', '/') + ".class";
+    ClassLoader loader = c.getClassLoader();
+    InputStream in;
+    if (loader == null) {
+      in = ClassLoader.getSystemResourceAsStream(resource);
+    } else {
+      in = loader.getResourceAsStream(resource);
+    }
+    if (in == null) {
+      throw new DeeptestUtilsRuntimeException(
+          "Cannot find the class file of " + c.getName(), null);
+    }
+    try {
+      return new ClassFile(new DataInputStream(in));
+    } catch (IOException e) {
+      throw new DeeptestUtilsRuntimeException(e.getMessage(), e);
+    } finally {
+      try {
+        in.close();
+      } catch (IOException e) {
+        // Nothing left to read.
+      }
+    }
+  }
+
+  /**
+   * Checks whether a string constant looks like a binary class name, i.e.
+   * qualified Java identifiers.
+   *
+   * @param s the <code>String</code> constant
+   * @return true if <code>s</code> may name a class in a package
+   */
+  private static boolean isClassName(final String s) {
+    if (s.indexOf('.') == -1) {
+      return false;
+    }
+    boolean start = true;
+    for (int i = 0; i < s.length(); ++i) {
+      char ch = s.charAt(i);
+      if (start) {
+        if (!Character.isJavaIdentifierStart(ch)) {
+          return false;
+        }
+        start = false;
+      } else if (ch == '.') {
+        start = true;
+      } else if (!Character.isJavaIdentifierPart(ch)) {
+        return false;
+      }
+    }
+    return !start;
+  }
+}
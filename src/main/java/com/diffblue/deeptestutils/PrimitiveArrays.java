@@ -0,0 +1,203 @@
+package com.diffblue.deeptestutils;
+
+import java.lang.reflect.Array;
+import java.util.Arrays;
+
+// Copyright 2016-2018 Diffblue limited. All rights reserved.
+
+/**
+ * <code>PrimitiveArrays</code> compares arrays of primitives, for
+ * {@link CompareWithFieldList} and {@link CompiledExpectation}, without
+ * boxing their elements.
+ * <p>
+ * Arrays of the same primitive type are compared with
+ * <code>Arrays.equals</code>. An array of boxed primitives is compared
+ * element by element to an array of primitives, unboxing the boxed
+ * elements. Elements are equal as by the <code>equals</code> method of
+ * their boxed type. Only on failure are elements boxed, to report the first
+ * index at which the arrays differ.
+ *
+ * @author <a href="http://diffblue.com">Diffblue</a>
+ */
+final class PrimitiveArrays {
+
+  /**
+   * Private constructor to prevent instantiation of the utility class.
+   */
+  private PrimitiveArrays() {
+  }
+
+  /**
+   * Checks whether a value is an array of primitives.
+   *
+   * @param value the <code>Object</code> to check, not null
+   * @return true if <code>value</code> is an array of a primitive type
+   */
+  static boolean isPrimitiveArray(final Object value) {
+    Class<?> c = value.getClass();
+    return c.isArray() && c.getComponentType().isPrimitive();
+  }
+
+  /**
+   * Compares two arrays, at least one of which is an array of primitives.
+   * Returns on success, throws on error.
+   *
+   * @param expected the expected array
+   * @param real the <code>Object</code> to compare, not null
+   * @param path the path of <code>real</code> from the root object
+   */
+  static void compare(final Object expected, final Object real,
+                      final FieldPath path) {
+    if (!real.getClass().isArray()
+        || Array.getLength(expected) != Array.getLength(real)) {
+      CompareWithFieldList.fail(real, expected, path);
+    }
+    int mismatch;
+    if (expected.getClass() == real.getClass()) {
+      if (equal(expected, real)) {
+        return;
+      }
+      mismatch = boxedMismatch(expected, real);
+    } else if (expected instanceof Object[] && isPrimitiveArray(real)) {
+      mismatch = unboxedMismatch((Object[]) expected, real);
+    } else if (real instanceof Object[] && isPrimitiveArray(expected)) {
+      mismatch = unboxedMismatch((Object[]) real, expected);
+    } else {
+      // Arrays of different primitive types.
+      CompareWithFieldList.fail(real, expected, path);
+      return;
+    }
+    if (mismatch != -1) {
+      path.push(mismatch);
+      CompareWithFieldList.fail(Array.get(real, mismatch),
+                                Array.get(expected, mismatch), path);
+    }
+  }
+
+  /**
+   * Checks whether two arrays of the same primitive type are equal.
+   *
+   * @param a an array of primitives
+   * @param b an array of the same type
+   * @return true if the arrays are equal
+   */
+  private static boolean equal(final Object a, final Object b) {
+    if (a instanceof byte[]) {
+      return Arrays.equals((byte[]) a, (byte[]) b);
+    } else if (a instanceof int[]) {
+      return Arrays.equals((int[]) a, (int[]) b);
+    } else if (a instanceof long[]) {
+      return Arrays.equals((long[]) a, (long[]) b);
+    } else if (a instanceof double[]) {
+      return Arrays.equals((double[]) a, (double[]) b);
+    } else if (a instanceof char[]) {
+      return Arrays.equals((char[]) a, (char[]) b);
+    } else if (a instanceof float[]) {
+      return Arrays.equals((float[]) a, (float[]) b);
+    } else if (a instanceof short[]) {
+      return Arrays.equals((short[]) a, (short[]) b);
+    } else {
+      return Arrays.equals((boolean[]) a, (boolean[]) b);
+    }
+  }
+
+  /**
+   * Finds the first index at which two arrays of the same length differ,
+   * boxing their elements. Only used to report a failure.
+   *
+   * @param a an array
+   * @param b an array of the same length
+   * @return the first index at which the arrays differ
+   */
+  private static int boxedMismatch(final Object a, final Object b) {
+    int length = Array.getLength(a);
+    for (int i = 0; i < length; ++i) {
+      if (!Array.get(a, i).equals(Array.get(b, i))) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Finds the first index at which an array of boxed primitives differs
+   * from an array of primitives of the same length, without boxing the
+   * primitives.
+   *
+   * @param boxed an array of boxed primitives, possibly null
+   * @param primitives an array of primitives
+   * @return the first index at which the arrays differ, or -1 if they are
+   *     equal
+   */
+  private static int unboxedMismatch(final Object[] boxed,
+                                     final Object primitives) {
+    if (primitives instanceof byte[]) {
+      byte[] a = (byte[]) primitives;
+      for (int i = 0; i < a.length; ++i) {
+        if (!(boxed[i] instanceof Byte)
+            || ((Byte) boxed[i]).byteValue() != a[i]) {
+          return i;
+        }
+      }
+    } else if (primitives instanceof int[]) {
+      int[] a = (int[]) primitives;
+      for (int i = 0; i < a.length; ++i) {
+        if (!(boxed[i] instanceof Integer)
+            || ((Integer) boxed[i]).intValue() != a[i]) {
+          return i;
+        }
+      }
+    } else if (primitives instanceof long[]) {
+      long[] a = (long[]) primitives;
+      for (int i = 0; i < a.length; ++i) {
+        if (!(boxed[i] instanceof Long)
+            || ((Long) boxed[i]).longValue() != a[i]) {
+          return i;
+        }
+      }
+    } else if (primitives instanceof double[]) {
+      double[] a = (double[]) primitives;
+      for (int i = 0; i < a.length; ++i) {
+        if (!(boxed[i] instanceof Double)
+            || Double.doubleToLongBits(((Double) boxed[i]).doubleValue())
+               != Double.doubleToLongBits(a[i])) {
+          return i;
+        }
+      }
+    } else if (primitives instanceof char[]) {
+      char[] a = (char[]) primitives;
+      for (int i = 0; i < a.length; ++i) {
+        if (!(boxed[i] instanceof Character)
+            || ((Character) boxed[i]).charValue() != a[i]) {
+          return i;
+        }
+      }
+    } else if (primitives instanceof float[]) {
+      float[] a = (float[]) primitives;
+      for (int i = 0; i < a.length; ++i) {
+        if (!(boxed[i] instanceof Float)
+            || Float.floatToIntBits(((Float) boxed[i]).floatValue())
+               != Float.floatToIntBits(a[i])) {
+          return i;
+        }
+      }
+    } else if (primitives instanceof short[]) {
+      short[] a = (short[]) primitives;
+      for (int i = 0; i < a.length; ++i) {
+        if (!(boxed[i] instanceof Short)
+            || ((Short) boxed[i]).shortValue() != a[i]) {
+          return i;
+        }
+      }
+    } else {
+      boolean[] a = (boolean[]) primitives;
+      for (int i = 0; i < a.length; ++i) {
+        if (!(boxed[i] instanceof Boolean)
+            || ((Boolean) boxed[i]).booleanValue() != a[i]) {
+          return i;
+        }
+      }
+    }
+    return -1;
+  }
+}
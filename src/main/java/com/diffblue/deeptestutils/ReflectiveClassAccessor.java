@@ -0,0 +1,42 @@
+package com.diffblue.deeptestutils;
+
+// Copyright 2016-2018 Diffblue limited. All rights reserved.
+
+/**
+ * <code>ReflectiveClassAccessor</code> accesses the fields of a class through
+ * the field accessors of its {@link ClassLayout}.
+ *
+ * @author <a href="http://diffblue.com">Diffblue</a>
+ */
+final class ReflectiveClassAccessor implements ClassAccessor {
+
+  /**
+   * The layout of the class whose fields are accessed.
+   */
+  private final ClassLayout layout;
+
+  /**
+   * Creates a new <code>ReflectiveClassAccessor</code> instance.
+   *
+   * @param l the <code>ClassLayout</code> of the class whose fields are
+   *     accessed
+   */
+  ReflectiveClassAccessor(final ClassLayout l) {
+    layout = l;
+  }
+
+  @Override
+  public int fieldId(final String name) {
+    return layout.getFieldId(name);
+  }
+
+  @Override
+  public Object get(final int fieldId, final Object target) {
+    return layout.getAccessor(fieldId).get(target);
+  }
+
+  @Override
+  public void set(final int fieldId, final Object target, final Object value) {
+    layout.getAccessor(fieldId).set(target, value);
+  }
+}
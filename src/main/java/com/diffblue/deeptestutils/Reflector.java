@@ -1,20 +1,11 @@
 package com.diffblue.deeptestutils;
 
-import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Modifier;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
-import javassist.CannotCompileException;
-import javassist.ClassPool;
-import javassist.CtClass;
-import javassist.CtConstructor;
-import javassist.CtField;
-import javassist.CtMember;
-import javassist.CtMethod;
-import javassist.NotFoundException;
-
-import org.objenesis.ObjenesisStd;
+import org.objenesis.ObjenesisException;
 
 // Copyright 2016-2018 Diffblue limited. All rights reserved.
 
@@ -42,8 +33,153 @@ public final class Reflector {
    */
   public static void setField(final Object obj, final String fieldName,
                               final Object newVal) {
+    ClassLayout layout = ClassLayout.of(obj.getClass());
+    try {
+      layout.getClassAccessor().set(fieldId(layout, fieldName), obj, newVal);
+    } catch (IllegalArgumentException e) {
+      throw new DeeptestUtilsRuntimeException(e.getMessage(), e.getCause());
+    }
+  }
+
+  /**
+   * Sets a given field of an object instance to a <code>boolean</code> value
+   * via reflection, bypassing the private modifier. Primitive fields are
+   * written without boxing the value.
+   *
+   * @param obj an <code>Object</code> instance to change
+   * @param fieldName a <code>String</code> the name of the field to change
+   * @param newVal the new value for the field
+   */
+  public static void setField(final Object obj, final String fieldName,
+                              final boolean newVal) {
+    try {
+      accessor(obj.getClass(), fieldName).setBoolean(obj, newVal);
+    } catch (IllegalArgumentException e) {
+      throw new DeeptestUtilsRuntimeException(e.getMessage(), e.getCause());
+    }
+  }
+
+  /**
+   * Sets a given field of an object instance to a <code>byte</code> value
+   * via reflection, bypassing the private modifier. Primitive fields are
+   * written without boxing the value.
+   *
+   * @param obj an <code>Object</code> instance to change
+   * @param fieldName a <code>String</code> the name of the field to change
+   * @param newVal the new value for the field
+   */
+  public static void setField(final Object obj, final String fieldName,
+                              final byte newVal) {
+    try {
+      accessor(obj.getClass(), fieldName).setByte(obj, newVal);
+    } catch (IllegalArgumentException e) {
+      throw new DeeptestUtilsRuntimeException(e.getMessage(), e.getCause());
+    }
+  }
+
+  /**
+   * Sets a given field of an object instance to a <code>char</code> value
+   * via reflection, bypassing the private modifier. Primitive fields are
+   * written without boxing the value.
+   *
+   * @param obj an <code>Object</code> instance to change
+   * @param fieldName a <code>String</code> the name of the field to change
+   * @param newVal the new value for the field
+   */
+  public static void setField(final Object obj, final String fieldName,
+                              final char newVal) {
+    try {
+      accessor(obj.getClass(), fieldName).setChar(obj, newVal);
+    } catch (IllegalArgumentException e) {
+      throw new DeeptestUtilsRuntimeException(e.getMessage(), e.getCause());
+    }
+  }
+
+  /**
+   * Sets a given field of an object instance to a <code>short</code> value
+   * via reflection, bypassing the private modifier. Primitive fields are
+   * written without boxing the value.
+   *
+   * @param obj an <code>Object</code> instance to change
+   * @param fieldName a <code>String</code> the name of the field to change
+   * @param newVal the new value for the field
+   */
+  public static void setField(final Object obj, final String fieldName,
+                              final short newVal) {
+    try {
+      accessor(obj.getClass(), fieldName).setShort(obj, newVal);
+    } catch (IllegalArgumentException e) {
+      throw new DeeptestUtilsRuntimeException(e.getMessage(), e.getCause());
+    }
+  }
+
+  /**
+   * Sets a given field of an object instance to an <code>int</code> value
+   * via reflection, bypassing the private modifier. Primitive fields are
+   * written without boxing the value.
+   *
+   * @param obj an <code>Object</code> instance to change
+   * @param fieldName a <code>String</code> the name of the field to change
+   * @param newVal the new value for the field
+   */
+  public static void setField(final Object obj, final String fieldName,
+                              final int newVal) {
+    try {
+      accessor(obj.getClass(), fieldName).setInt(obj, newVal);
+    } catch (IllegalArgumentException e) {
+      throw new DeeptestUtilsRuntimeException(e.getMessage(), e.getCause());
+    }
+  }
+
+  /**
+   * Sets a given field of an object instance to a <code>long</code> value
+   * via reflection, bypassing the private modifier. Primitive fields are
+   * written without boxing the value.
+   *
+   * @param obj an <code>Object</code> instance to change
+   * @param fieldName a <code>String</code> the name of the field to change
+   * @param newVal the new value for the field
+   */
+  public static void setField(final Object obj, final String fieldName,
+                              final long newVal) {
+    try {
+      accessor(obj.getClass(), fieldName).setLong(obj, newVal);
+    } catch (IllegalArgumentException e) {
+      throw new DeeptestUtilsRuntimeException(e.getMessage(), e.getCause());
+    }
+  }
+
+  /**
+   * Sets a given field of an object instance to a <code>float</code> value
+   * via reflection, bypassing the private modifier. Primitive fields are
+   * written without boxing the value.
+   *
+   * @param obj an <code>Object</code> instance to change
+   * @param fieldName a <code>String</code> the name of the field to change
+   * @param newVal the new value for the field
+   */
+  public static void setField(final Object obj, final String fieldName,
+                              final float newVal) {
+    try {
+      accessor(obj.getClass(), fieldName).setFloat(obj, newVal);
+    } catch (IllegalArgumentException e) {
+      throw new DeeptestUtilsRuntimeException(e.getMessage(), e.getCause());
+    }
+  }
+
+  /**
+   * Sets a given field of an object instance to a <code>double</code> value
+   * via reflection, bypassing the private modifier. Primitive fields are
+   * written without boxing the value.
+   *
+   * @param obj an <code>Object</code> instance to change
+   * @param fieldName a <code>String</code> the name of the field to change
+   * @param newVal the new value for the field
+   */
+  public static void setField(final Object obj, final String fieldName,
+                              final double newVal) {
     try {
-      setField(obj.getClass(), obj, fieldName, newVal);
+      accessor(obj.getClass(), fieldName).setDouble(obj, newVal);
     } catch (IllegalArgumentException e) {
       throw new DeeptestUtilsRuntimeException(e.getMessage(), e.getCause());
     }
@@ -86,46 +222,7 @@ public final class Reflector {
    */
   public static <T> void setField(final Class<T> c, final Object o,
                                   final String fieldName, final Object newVal) {
-
-    if (c == null) {
-      throw new DeeptestUtilsRuntimeException(
-          "Class of the field to be set cannot be null.",
-          (new NoSuchFieldException()).getCause());
-    }
-    Field field = null;
-    for (Field f : c.getDeclaredFields()) {
-      if (f.getName().equals(fieldName)) {
-        field = f;
-        break;
-      }
-    }
-    if (field == null) {
-      setField(c.getSuperclass(), o, fieldName, newVal);
-    } else {
-      Field property = field;
-      property.setAccessible(true);
-
-      // remove final modifier
-      Field modifiersField;
-      try {
-        modifiersField = Field.class.getDeclaredField("modifiers");
-      } catch (NoSuchFieldException e) {
-        throw new DeeptestUtilsRuntimeException(e.getMessage(), e.getCause());
-      }
-      modifiersField.setAccessible(true);
-      try {
-        modifiersField.setInt(property,
-                              property.getModifiers() & ~Modifier.FINAL);
-      } catch (IllegalAccessException e) {
-        throw new DeeptestUtilsRuntimeException(e.getMessage(), e.getCause());
-      }
-      try {
-        property.set(o, newVal);
-      } catch (IllegalAccessException ex) {
-        // Should never happen.
-        throw new DeeptestUtilsRuntimeException(ex.getMessage(), ex.getCause());
-      }
-    }
+    accessor(c, fieldName).set(o, newVal);
   }
 
   /**
@@ -141,31 +238,138 @@ public final class Reflector {
       final Class<T> c,
       final Object o,
       final String fieldName) {
-    if (c == null) {
-      throw new DeeptestUtilsRuntimeException(fieldName
-          + " is not a field in class " + c, new NoSuchFieldException());
+    try {
+      return accessor(c, fieldName).get(o);
+    } catch (IllegalArgumentException e) {
+      throw new DeeptestUtilsRuntimeException(e.getMessage(), e.getCause());
     }
-      Field field = null;
-      for (Field f : c.getDeclaredFields()) {
-        if (f.getName().equals(fieldName)) {
-          field = f;
-          break;
-        }
-      }
-      if (field == null) {
-        return getInstanceField(c.getSuperclass(), o, fieldName);
-      } else {
-        Field property = field;
-        property.setAccessible(true);
-
-        try {
-          return property.get(o);
-        } catch (IllegalArgumentException e) {
-          throw new DeeptestUtilsRuntimeException(e.getMessage(), e.getCause());
-        } catch (IllegalAccessException e) { // Should never happen.
-          throw new DeeptestUtilsRuntimeException(e.getMessage(), e.getCause());
+  }
+
+  /**
+   * Sets several fields of an object instance via reflection, bypassing the
+   * private modifier. The fields are resolved once and then written in
+   * order. Values are written as they are; a <code>FieldList</code> value is
+   * not turned into an object.
+   *
+   * @param target an <code>Object</code> instance to change
+   * @param values a <code>FieldList</code> of the names and new values of the
+   *     fields to change
+   */
+  public static void populate(final Object target, final FieldList values) {
+    try {
+      ClassLayout.of(target.getClass()).getWritePlan(values)
+          .apply(target, values);
+    } catch (IllegalArgumentException e) {
+      throw new DeeptestUtilsRuntimeException(e.getMessage(), e.getCause());
+    }
+  }
+
+  /**
+   * Builds an object graph from its description by field lists, which is
+   * the inverse of {@link CompareWithFieldList#compare(Object, Object)}.
+   * Each <code>FieldList</code> is turned into an instance of the declared
+   * type of the field or array holding it, created without calling any
+   * constructor, and each array of values into an array of that type. A
+   * <code>FieldList</code> or array reached several times is built once, so
+   * shared references and cycles are preserved. Other values are written as
+   * they are.
+   * <p>
+   * A <code>FieldList</code> does not give the class of its object: one
+   * held by a field declared as an interface, an abstract class or a
+   * superclass cannot set the fields of a subclass, and is rejected with a
+   * <code>DeeptestUtilsRuntimeException</code>.
+   *
+   * @param <T> type parameter of the class
+   * @param cl the <code>Class</code> of the root object
+   * @param values a <code>FieldList</code> of the names and values of the
+   *     fields of the root object
+   * @return the root object
+   * @throws InvocationTargetException if the static initializer of the class
+   *     of an object throws an exception, see {@link #getInstance(Class)}
+   */
+  public static <T> T instantiate(final Class<T> cl, final FieldList values)
+      throws InvocationTargetException {
+    try {
+      return cl.cast(new ObjectGraphBuilder().build(cl, values));
+    } catch (IllegalArgumentException e) {
+      throw new DeeptestUtilsRuntimeException(e.getMessage(), e.getCause());
+    }
+  }
+
+  /**
+   * Sets the same field of several object instances via reflection,
+   * bypassing the private modifier. The field is resolved once for each
+   * class of consecutive targets.
+   *
+   * @param targets the <code>Object</code> instances to change
+   * @param fieldName a <code>String</code> the name of the field to change
+   * @param values the new values of the field, one for each target
+   */
+  public static void setFieldOnAll(final Object[] targets,
+                                   final String fieldName,
+                                   final Object[] values) {
+    if (targets.length != values.length) {
+      throw new DeeptestUtilsRuntimeException("Got " + values.length
+          + " values for " + targets.length + " objects",
+          new IllegalArgumentException());
+    }
+    Class<?> lastClass = null;
+    FieldAccessor accessor = null;
+    try {
+      for (int i = 0; i < targets.length; ++i) {
+        Class<?> c = targets[i].getClass();
+        if (c != lastClass) {
+          accessor = accessor(c, fieldName);
+          lastClass = c;
         }
+        accessor.set(targets[i], values[i]);
       }
+    } catch (IllegalArgumentException e) {
+      throw new DeeptestUtilsRuntimeException(e.getMessage(), e.getCause());
+    }
+  }
+
+  /**
+   * Looks up the accessor of a named field of a class or of one of its
+   * superclasses.
+   *
+   * @param c the <code>Class</code> to search
+   * @param fieldName a <code>String</code> as the name of the field
+   * @return the <code>FieldAccessor</code> of the field
+   */
+  private static FieldAccessor accessor(final Class<?> c,
+                                        final String fieldName) {
+    if (c == null) {
+      throw new DeeptestUtilsRuntimeException(
+          "Class of the field " + fieldName + " cannot be null.",
+          new NoSuchFieldException(fieldName));
+    }
+    FieldAccessor accessor = ClassLayout.of(c).getAccessor(fieldName);
+    if (accessor == null) {
+      throw new DeeptestUtilsRuntimeException(fieldName
+          + " is not a field in class " + c.getName(),
+          new NoSuchFieldException(fieldName));
+    }
+    return accessor;
+  }
+
+  /**
+   * Looks up the number of a named field of a class or of one of its
+   * superclasses.
+   *
+   * @param layout the <code>ClassLayout</code> of the class to search
+   * @param fieldName a <code>String</code> as the name of the field
+   * @return the number of the field
+   */
+  private static int fieldId(final ClassLayout layout,
+                             final String fieldName) {
+    int id = layout.getFieldId(fieldName);
+    if (id == -1) {
+      throw new DeeptestUtilsRuntimeException(fieldName
+          + " is not a field in class " + layout.getType().getName(),
+          new NoSuchFieldException(fieldName));
+    }
+    return id;
   }
 
   /**
@@ -179,87 +383,147 @@ public final class Reflector {
   public static Object getInstanceField(
     final Object obj,
     final String fieldName) {
-    return getInstanceField(obj.getClass(), obj, fieldName);
+    ClassLayout layout = ClassLayout.of(obj.getClass());
+    try {
+      return layout.getClassAccessor().get(fieldId(layout, fieldName), obj);
+    } catch (IllegalArgumentException e) {
+      throw new DeeptestUtilsRuntimeException(e.getMessage(), e.getCause());
+    }
+  }
+
+  /**
+   * Returns an accessor for the fields of a class. Field accesses through the
+   * accessor, and through the other methods of <code>Reflector</code> that
+   * take an object instance, use reflection at first. Once the fields of a
+   * class have been accessed often enough, see
+   * {@link #setAccessorThreshold(int)}, code that accesses them directly is
+   * generated for the class, if possible.
+   *
+   * @param c the <code>Class</code> whose fields are accessed
+   * @return the <code>ClassAccessor</code> of the class
+   */
+  public static ClassAccessor accessorFor(final Class<?> c) {
+    return ClassLayout.of(c).getClassAccessor();
+  }
+
+  /**
+   * Sets the number of field accesses to a class after which code accessing
+   * its fields directly is generated. The default is read from the system
+   * property <code>deeptestutils.accessorThreshold</code>.
+   *
+   * @param threshold the number of accesses, 0 to generate code on the first
+   *     access, or a negative number to never generate code
+   */
+  public static void setAccessorThreshold(final int threshold) {
+    TieredClassAccessor.setThreshold(threshold);
+  }
+
+  /**
+   * Takes a snapshot of the static fields of some classes and of their
+   * superclasses, so that the static state changed by a test, e.g. with
+   * {@link #setStaticField(Class, String, Object)}, can be put back by
+   * {@link #restore(StaticSnapshot)}. Fields of JDK classes, loaded by the
+   * bootstrap class loader, are left out.
+   *
+   * @param classes the classes whose static fields are saved
+   * @return the <code>StaticSnapshot</code> of the fields
+   */
+  public static StaticSnapshot snapshotStatics(final Class<?>... classes) {
+    return new StaticSnapshot(classes);
+  }
+
+  /**
+   * Puts back the values of static fields saved by
+   * {@link #snapshotStatics(Class...)}, final fields included. Only fields
+   * whose value has changed are written.
+   *
+   * @param snapshot the <code>StaticSnapshot</code> to restore
+   */
+  public static void restore(final StaticSnapshot snapshot) {
+    snapshot.restore();
+  }
+
+  /**
+   * Loads and initializes the classes a test class refers to, so that the
+   * first test does not pay for it. The classes are read from the constant
+   * pool of the test class, including class names in string constants, and
+   * loaded in parallel; the static initializers the test would run are then
+   * run one at a time. Exceptions thrown by static initializers are reported
+   * like {@link #getInstance(String)} does, and <code>getInstance</code>
+   * keeps reporting them that way for those classes.
+   *
+   * @param testClass the test <code>Class</code>
+   * @return the exceptions thrown by static initializers, wrapped in
+   *     <code>InvocationTargetException</code>s, by class name
+   */
+  public static Map<String, InvocationTargetException> preload(
+      final Class<?> testClass) {
+    return Preloader.preload(testClass);
   }
 
   /**
    * <code>forName</code> returns class of given type name, including primitive
-   * types.
+   * types. Array types are written with <code>[]</code> after the element
+   * type. Results are cached per name.
    *
    * @param className name of class/type as <code>String</code>
    * @return the <code>Class</code> object
    */
   public static Class<?> forName(final String className) {
-    if (className.equals("float")) {
-      return float.class;
-    }
-    if (className.equals("byte")) {
-      return byte.class;
-    }
-    if (className.equals("char")) {
-      return char.class;
-    }
-    if (className.equals("short")) {
-      return short.class;
-    }
-    if (className.equals("double")) {
-      return double.class;
-    }
-    if (className.equals("int")) {
-      return int.class;
-    }
-    if (className.equals("long")) {
-      return long.class;
-    }
-    if (className.equals("boolean")) {
-      return boolean.class;
-    }
-    // remove whitespace from string
-    String cleanedName = className.replaceAll("\\s+", "");
-    // check if array type
-    if (cleanedName.endsWith("[]")) {
-      String arrayPrefix = "";
-      // collect information about multi-array
-      while (cleanedName.endsWith("[]")) {
-        int parenthesisIndex = cleanedName.length() - 2;
-        arrayPrefix += ("[");
-        cleanedName = cleanedName.substring(0, parenthesisIndex);
-      }
-      //primitive types need to be called in a special way
-      if (cleanedName.equals("float")) {
-        cleanedName = "F";
-      } else if (cleanedName.equals("byte")) {
-        cleanedName = "B";
-      } else if (cleanedName.equals("char")) {
-        cleanedName = "C";
-      } else if (cleanedName.equals("short")) {
-        cleanedName = "S";
-      } else if (cleanedName.equals("double")) {
-        cleanedName = "D";
-      } else if (cleanedName.equals("int")) {
-        cleanedName = "I";
-      } else if (cleanedName.equals("long")) {
-        cleanedName = "J";
-      } else if (cleanedName.equals("boolean")) {
-        cleanedName = "Z";
-      } else {
-        //non-primitive array types look like "[Lpackage.of.MyClass;"
-        cleanedName = "L" + cleanedName + ";";
-      }
-      try {
-        return Class.forName(arrayPrefix + cleanedName);
-      } catch (ClassNotFoundException e) {
-        throw new DeeptestUtilsRuntimeException(e.getMessage(), e.getCause());
-      }
+    return forName(ClassResolver.getDefault(), className);
+  }
 
+  /**
+   * <code>forName</code> returns class of given type name, including primitive
+   * types, loading classes with a given class loader. Results are cached per
+   * class loader and name.
+   *
+   * @param className name of class/type as <code>String</code>
+   * @param loader the <code>ClassLoader</code> to load classes with, null for
+   *     the bootstrap class loader
+   * @return the <code>Class</code> object
+   */
+  public static Class<?> forName(final String className,
+                                 final ClassLoader loader) {
+    return forName(ClassResolver.of(loader), className);
+  }
+
+  /**
+   * <code>forNames</code> returns the classes of several type names, e.g. the
+   * parameter types of a method, as resolved by {@link #forName(String)}.
+   * JVM field descriptors such as <code>[[I</code> or
+   * <code>Ljava/lang/String;</code> are also accepted, as are binary names of
+   * nested classes such as <code>Outer$Inner</code>.
+   *
+   * @param classNames names of classes/types as <code>String</code>s
+   * @return the <code>Class</code> objects, in the same order
+   */
+  public static Class<?>[] forNames(final String... classNames) {
+    ClassResolver resolver = ClassResolver.getDefault();
+    Class<?>[] classes = new Class<?>[classNames.length];
+    for (int i = 0; i < classNames.length; ++i) {
+      classes[i] = forName(resolver, classNames[i]);
     }
+    return classes;
+  }
+
+  /**
+   * Resolves a type name with a given resolver.
+   *
+   * @param resolver the <code>ClassResolver</code> to use
+   * @param className name of class/type as <code>String</code>
+   * @return the <code>Class</code> object
+   */
+  private static Class<?> forName(final ClassResolver resolver,
+                                  final String className) {
     try {
-      return Class.forName(className);
+      return resolver.resolve(className);
     } catch (ClassNotFoundException e) {
       throw new DeeptestUtilsRuntimeException(e.getMessage(), e.getCause());
     }
   }
 
+
   /**
    * Returns the Class of an Object if it extends or implements Throwable.
    *
@@ -298,83 +562,128 @@ public final class Reflector {
   }
 
   /**
-   * <code>classMap</code> keeps a cache of created classes.
+   * This forces the creation of an instance for a given class using Objenesis.
+   * By default no constructor is called, see
+   * {@link #setInstantiationStrategy(InstantiationStrategy)}. The Objenesis
+   * instantiator is chosen once per class and then reused.
+   *
+   * @param <T> type parameter of the class
+   * @param cl a <code>Class</code> the class to instantiate
+   * @return an <code>Object</code> which is an instance of the specified class
    *
+   * @throws InvocationTargetException if an `ExceptionInInitializerError` was
+   *   thrown by the Objenesis instantiator, or if the constructor called by
+   *   {@link InstantiationStrategy#CONSTRUCTOR} threw an exception.
+   *   See {@link #getInstance(String) getInstance}.
    */
-  private static HashMap<String, Class<?>> classMap =
-    new HashMap<String, Class<?>>();
+  public static <T> T getInstance(final Class<T> cl)
+      throws InvocationTargetException {
+    try {
+      return Instantiators.of(cl).newInstance();
+    } catch (ObjenesisException ex) {
+      if (ex.getCause() instanceof InvocationTargetException) {
+        throw (InvocationTargetException) ex.getCause();
+      }
+      throw ex;
+    } catch (ExceptionInInitializerError ex) {
+      InitializerFailures.record(cl, ex.getCause());
+      throw new InvocationTargetException(ex.getCause());
+    } catch (NoClassDefFoundError ex) {
+      throw initializerFailure(cl, ex);
+    }
+  }
 
   /**
-   * <code>makePublic</code> sets member flag to public.
+   * Sets how {@link #getInstance(Class)} creates objects of the classes that
+   * have no strategy of their own. The default is
+   * {@link InstantiationStrategy#STD}, which calls no constructor.
    *
-   * @param m the member to make public
+   * @param strategy the <code>InstantiationStrategy</code> to use
    */
-  private static void makePublic(final CtMember m) {
-    int modifier = m.getModifiers();
-    modifier = modifier & ~(javassist.Modifier.PRIVATE
-                            | javassist.Modifier.PROTECTED);
-    modifier = modifier | javassist.Modifier.PUBLIC;
-    m.setModifiers(modifier);
+  public static void setInstantiationStrategy(
+      final InstantiationStrategy strategy) {
+    Instantiators.setDefaultStrategy(strategy);
   }
 
   /**
-   * Sets class flag to public.
+   * Sets how {@link #getInstance(Class)} creates objects of a given class.
    *
-   * @param c the class to make public
+   * @param c the <code>Class</code> whose objects are created
+   * @param strategy the <code>InstantiationStrategy</code> to use, or null
+   *     to use the default strategy again
    */
-  private static void makePublic(final CtClass c) {
-    int modifier = c.getModifiers();
-    modifier = modifier & ~(javassist.Modifier.PRIVATE
-                            | javassist.Modifier.PROTECTED);
-    modifier = modifier | javassist.Modifier.PUBLIC;
-    c.setModifiers(modifier);
+  public static void setInstantiationStrategy(
+      final Class<?> c, final InstantiationStrategy strategy) {
+    Instantiators.setStrategy(c, strategy);
   }
 
   /**
-   * Sets the flag of the given class and all of its fields, methods and
-   * constructors to public.
-   * We use this on abstract classes and interfaces so that our newly
-   * constructed implementing classes in Reflector.getInstance can inherit from
-   * them.
+   * Returns statistics on the javassist class pools used to generate
+   * implementations of abstract classes and interfaces. There is one pool per
+   * class loader, each keeping at most a number of classes set by the system
+   * property <code>deeptestutils.classPoolCapacity</code>.
    *
-   * @param cl the class to make public
+   * @return a new <code>ClassPoolStatistics</code>
    */
-  private static void makeFullyPublic(final CtClass cl) {
-    for (CtMethod m : cl.getDeclaredMethods()) {
-      makePublic(m);
-    }
-    for (CtConstructor ctor : cl.getDeclaredConstructors()) {
-      makePublic(ctor);
-    }
-    for (CtField f : cl.getDeclaredFields()) {
-      makePublic(f);
-    }
-    makePublic(cl);
+  public static ClassPoolStatistics getClassPoolStatistics() {
+    return BoundedClassPool.statistics();
   }
 
   /**
-   * This forces the creation of an instance for a given class using Objenesis.
+   * Reports a class that cannot be initialized because its static
+   * initializer, or the static initializer of a superclass, failed before.
    *
-   * @param <T> type parameter of the class
-   * @param cl a <code>Class</code> the class to instantiate
-   * @return an <code>Object</code> which is an instance of the specified class
+   * @param cl the <code>Class</code> that cannot be initialized
+   * @param error the <code>NoClassDefFoundError</code> thrown by the JVM
+   * @return an <code>InvocationTargetException</code> wrapping the exception
+   *     thrown by the static initializer
+   * @throws NoClassDefFoundError <code>error</code>, if no failure of a
+   *     static initializer was recorded for the class
+   */
+  private static InvocationTargetException initializerFailure(
+      final Class<?> cl, final NoClassDefFoundError error) {
+    Throwable cause = InitializerFailures.lookup(cl);
+    if (cause == null) {
+      throw error;
+    }
+    return new InvocationTargetException(cause);
+  }
+
+  /**
+   * Prepares the classes that {@link #getInstance(String)} instantiates in
+   * place of abstract classes and interfaces, so that later calls do not
+   * generate them. The implementations missing are generated in parallel,
+   * then defined together. Names of concrete classes are ignored, and
+   * failures are reported by <code>getInstance</code> instead.
    *
-   * @throws InvocationTargetException if an `ExceptionInInitializerError` was
-   *   thrown by ObjenesisStd.newInstance.
-   *   See {@link #getInstance(String) getInstance}.
+   * @param classNames the names of the classes to instantiate later
    */
-  @SuppressWarnings("unchecked")
-  public static <T> T getInstance(final Class<T> cl)
-      throws InvocationTargetException {
-    try {
-      return (T) new ObjenesisStd().newInstance(cl);
-    } catch (ExceptionInInitializerError ex) {
-      throw new InvocationTargetException(ex.getCause());
+  public static void prepareInstances(final String... classNames) {
+    Map<String, Class<?>> classes = new LinkedHashMap<String, Class<?>>();
+    for (String className : classNames) {
+      Class<?> c;
+      try {
+        c = Class.forName(className, false, Reflector.class.getClassLoader());
+      } catch (ClassNotFoundException e) {
+        classes.put(className, null);
+        continue;
+      }
+      if (c.isInterface() && InterfaceProxies.prepare(c)) {
+        continue;
+      }
+      if (c.isInterface() || Modifier.isAbstract(c.getModifiers())) {
+        classes.put(className, c);
+      }
     }
+    Implementations.prepare(classes);
   }
 
   /**
-   * Force the creation of an instance for a given class name.
+   * Force the creation of an instance for a given class name. Concrete
+   * classes are instantiated directly, and interfaces are implemented by
+   * proxies whose methods throw <code>AbstractMethodError</code>; only
+   * abstract classes, and interfaces with default methods, are read with
+   * javassist, to generate a class implementing them.
    *
    * @param <T> type parameter of the return value
    * @param className a <code>String</code> giving the name of the class
@@ -382,68 +691,43 @@ public final class Reflector {
    *
    * @throws InvocationTargetException if an `ExceptionInInitializerError` was
    *   thrown, which signals an exception in the static initializer of the
-   *   class. Such an error could be thrown by Class.forName or
-   *   Objenesis.newInstance, both of which call the static initializer (for
-   *   the latter, see {@link #getInstance(Class) getInstance}.
+   *   class. Such an error is thrown by Objenesis.newInstance, which calls the
+   *   static initializer, see {@link #getInstance(Class) getInstance}.
    *   We extract the cause of the error and wrap it within an
    *   `InvocationTargetException`.
    */
   public static <T> Object getInstance(final String className)
       throws InvocationTargetException {
-    ClassPool pool = ClassPool.getDefault();
-    CtClass cl;
+    Class<?> c;
     try {
-      cl = pool.get(className);
-    } catch (NotFoundException e) {
-      throw new DeeptestUtilsRuntimeException(e.getMessage(), e.getCause());
-    }
-    if (isAbstract(cl) || cl.isInterface()) {
-      makeFullyPublic(cl);
-      String implementingClassName = "com.diffblue.cover"
-          + removePackageFromName(className) + "Impl";
-      CtClass implementingCtClass = pool.getOrNull(implementingClassName);
-      if (implementingCtClass != null) {
-        return getInstance((Class<?>) classMap.get(implementingClassName));
-      }
-      implementingCtClass = pool.makeClass(implementingClassName);
-      if (cl.isInterface()) {
-        implementingCtClass.setInterfaces(new CtClass[] {cl });
-      } else {
-        try {
-          implementingCtClass.setSuperclass(cl);
-        } catch (CannotCompileException e) {
-          throw new
-              DeeptestUtilsRuntimeException(e.getMessage(), e.getCause());
-        }
-      }
-      Class<?> implementingClass;
-      try {
-        implementingClass = pool.toClass(implementingCtClass);
-      } catch (CannotCompileException e) {
-        throw new
-            DeeptestUtilsRuntimeException(e.getMessage(), e.getCause());
-      }
-      classMap.put(implementingClassName, implementingClass);
-      return getInstance(implementingClass);
-    } else {
-      try {
-        return getInstance(Class.forName(className));
-      } catch (ExceptionInInitializerError ex) {
-        throw new InvocationTargetException(ex.getCause());
-      } catch (ClassNotFoundException e) {
-        throw new DeeptestUtilsRuntimeException(e.getMessage(), e.getCause());
-      }
+      c = Class.forName(className, false, Reflector.class.getClassLoader());
+    } catch (ClassNotFoundException e) {
+      return getInstance(Implementations.of(className, null, e));
     }
+    return getAnyInstance(c);
   }
 
   /**
-   * Checks whether the <code>ABSTRACT</code> flag of a class is set.
+   * Creates an instance of a class, as {@link #getInstance(String)} does,
+   * without looking the class up by name.
    *
-   * @param c the class to check
-   * @return a <code>boolean</code> value indicating whether the class is
-   * abstract.
+   * @param c the <code>Class</code> to instantiate, which may be abstract or
+   *     an interface
+   * @return an instance of <code>c</code>
+   * @throws InvocationTargetException if the static initializer of the class
+   *     throws an exception, see {@link #getInstance(Class)}
    */
-  private static boolean isAbstract(final CtClass c) {
-    return (c.getModifiers() & javassist.Modifier.ABSTRACT) != 0;
+  static Object getAnyInstance(final Class<?> c)
+      throws InvocationTargetException {
+    if (c.isInterface()) {
+      Object proxy = InterfaceProxies.newInstance(c);
+      if (proxy != null) {
+        return proxy;
+      }
+    }
+    if (c.isInterface() || Modifier.isAbstract(c.getModifiers())) {
+      return getInstance(Implementations.of(c.getName(), c, null));
+    }
+    return getInstance(c);
   }
 }
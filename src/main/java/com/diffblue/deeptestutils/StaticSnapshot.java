@@ -0,0 +1,86 @@
+package com.diffblue.deeptestutils;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+
+// Copyright 2016-2018 Diffblue limited. All rights reserved.
+
+/**
+ * <code>StaticSnapshot</code> holds the values of the static fields of some
+ * classes at one point in time, so that tests changing static state can put
+ * it back and share a JVM with the tests that follow.
+ * <p>
+ * Snapshots are taken by {@link Reflector#snapshotStatics(Class...)} and
+ * restored by {@link Reflector#restore(StaticSnapshot)}. Values are kept as
+ * they are, not copied: a restore puts back the objects the fields referred
+ * to, not their contents.
+ *
+ * @author <a href="http://diffblue.com">Diffblue</a>
+ */
+public final class StaticSnapshot {
+
+  /**
+   * Accessors of the fields in the snapshot.
+   */
+  private final FieldAccessor[] accessors;
+
+  /**
+   * Values of the fields, in the same order as <code>accessors</code>.
+   */
+  private final Object[] values;
+
+  /**
+   * Reads the static fields of some classes and of their superclasses. A
+   * field inherited by several of the classes is read once. Fields declared
+   * by classes of the bootstrap class loader, such as the counters of
+   * <code>java.lang.Thread</code>, are not part of the test state, and are
+   * left out, as are fields that could not be made accessible.
+   *
+   * @param classes the classes whose static fields are read
+   */
+  StaticSnapshot(final Class<?>[] classes) {
+    ArrayList<FieldAccessor> fields = new ArrayList<FieldAccessor>();
+    IdentityHashMap<FieldAccessor, Boolean> seen =
+        new IdentityHashMap<FieldAccessor, Boolean>();
+    for (Class<?> c : classes) {
+      if (c == null) {
+        throw new DeeptestUtilsRuntimeException(
+            "Class of the static fields cannot be null.", null);
+      }
+      for (FieldAccessor accessor : ClassLayout.of(c).getStaticAccessors()) {
+        Field f = accessor.getField();
+        if (f.getDeclaringClass().getClassLoader() == null
+            || !f.isAccessible()) {
+          continue;
+        }
+        if (seen.put(accessor, Boolean.TRUE) == null) {
+          fields.add(accessor);
+        }
+      }
+    }
+    accessors = fields.toArray(new FieldAccessor[fields.size()]);
+    values = new Object[accessors.length];
+    for (int i = 0; i < accessors.length; ++i) {
+      values[i] = accessors[i].get(null);
+    }
+  }
+
+  /**
+   * Writes back every field whose value has changed since the snapshot was
+   * taken, final fields included.
+   */
+  void restore() {
+    for (int i = 0; i < accessors.length; ++i) {
+      Object current = accessors[i].get(null);
+      if (current == values[i]) {
+        continue;
+      }
+      if (current != null && accessors[i].getField().getType().isPrimitive()
+          && current.equals(values[i])) {
+        continue;
+      }
+      accessors[i].set(null, values[i]);
+    }
+  }
+}
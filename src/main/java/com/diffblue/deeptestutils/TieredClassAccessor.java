@@ -0,0 +1,134 @@
+package com.diffblue.deeptestutils;
+
+// Copyright 2016-2018 Diffblue limited. All rights reserved.
+
+/**
+ * <code>TieredClassAccessor</code> accesses the fields of a class
+ * reflectively until it has been used a number of times, and then switches
+ * to an accessor generated by {@link AccessorGenerator}, if one can be
+ * generated for the class. This way only classes whose fields are accessed
+ * often pay the cost of generating code.
+ * <p>
+ * The number of accesses after which code is generated is read from the
+ * system property <code>deeptestutils.accessorThreshold</code>, and can be
+ * changed with {@link Reflector#setAccessorThreshold(int)}. A negative
+ * threshold disables code generation.
+ *
+ * @author <a href="http://diffblue.com">Diffblue</a>
+ */
+final class TieredClassAccessor implements ClassAccessor {
+
+  /**
+   * Number of accesses after which code is generated, unless set by the
+   * system property.
+   */
+  private static final int DEFAULT_THRESHOLD = 1000;
+
+  /**
+   * Number of accesses after which code is generated.
+   */
+  private static volatile int threshold =
+      Integer.getInteger("deeptestutils.accessorThreshold", DEFAULT_THRESHOLD);
+
+  /**
+   * The layout of the class whose fields are accessed.
+   */
+  private final ClassLayout layout;
+
+  /**
+   * Accessor used until code has been generated, and for fields the
+   * generated code cannot access.
+   */
+  private final ClassAccessor reflective;
+
+  /**
+   * Accessor currently in use.
+   */
+  private volatile ClassAccessor delegate;
+
+  /**
+   * Whether the switch to generated code has been decided, either way.
+   */
+  private volatile boolean settled;
+
+  /**
+   * Number of accesses so far. Updates are not synchronized, so the count is
+   * approximate.
+   */
+  private int accesses;
+
+  /**
+   * Creates a new <code>TieredClassAccessor</code> instance.
+   *
+   * @param l the <code>ClassLayout</code> of the class whose fields are
+   *     accessed
+   */
+  TieredClassAccessor(final ClassLayout l) {
+    layout = l;
+    reflective = new ReflectiveClassAccessor(l);
+    delegate = reflective;
+  }
+
+  /**
+   * Sets the number of accesses after which code is generated.
+   *
+   * @param accessThreshold the number of accesses, or a negative number to
+   *     disable code generation
+   */
+  static void setThreshold(final int accessThreshold) {
+    threshold = accessThreshold;
+  }
+
+  /**
+   * Checks whether this accessor has switched to generated code.
+   *
+   * @return true if field accesses go through generated code
+   */
+  boolean isGenerated() {
+    return delegate != reflective;
+  }
+
+  @Override
+  public int fieldId(final String name) {
+    return layout.getFieldId(name);
+  }
+
+  @Override
+  public Object get(final int fieldId, final Object target) {
+    countAccess();
+    return delegate.get(fieldId, target);
+  }
+
+  @Override
+  public void set(final int fieldId, final Object target, final Object value) {
+    countAccess();
+    delegate.set(fieldId, target, value);
+  }
+
+  /**
+   * Counts an access and generates code once the threshold is reached.
+   */
+  private void countAccess() {
+    if (settled) {
+      return;
+    }
+    int limit = threshold;
+    if (limit >= 0 && ++accesses > limit) {
+      generate();
+    }
+  }
+
+  /**
+   * Generates code for the class, if that has not been done yet.
+   */
+  private synchronized void generate() {
+    if (settled) {
+      return;
+    }
+    ClassAccessor generated = AccessorGenerator.generate(layout, reflective);
+    if (generated != null) {
+      delegate = generated;
+    }
+    settled = true;
+  }
+}
@@ -0,0 +1,83 @@
+package com.diffblue.deeptestutils;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+
+// Copyright 2016-2018 Diffblue limited. All rights reserved.
+
+/**
+ * <code>UnsafeAccess</code> looks up the <code>sun.misc.Unsafe</code>
+ * instance of the JVM, if it provides one, and the offsets of fields. The
+ * class is only used through reflection, or from generated code, so that
+ * deeptest-utils still loads on JVMs without it.
+ *
+ * @author <a href="http://diffblue.com">Diffblue</a>
+ */
+final class UnsafeAccess {
+
+  /**
+   * The <code>sun.misc.Unsafe</code> instance, or null if this JVM does not
+   * provide one.
+   */
+  private static final Object UNSAFE = probe();
+
+  /**
+   * Private constructor to prevent instantiation of the utility class.
+   */
+  private UnsafeAccess() {
+  }
+
+  /**
+   * The <code>sun.misc.Unsafe</code> instance accessor.
+   *
+   * @return the instance, or null if this JVM does not provide one
+   */
+  static Object getUnsafe() {
+    return UNSAFE;
+  }
+
+  /**
+   * Returns the offset of an instance field in the objects of its class.
+   *
+   * @param f the instance <code>Field</code>
+   * @return the offset, or -1 if it is not available
+   */
+  static long objectFieldOffset(final Field f) {
+    if (UNSAFE == null) {
+      return -1;
+    }
+    try {
+      return (Long) UNSAFE.getClass()
+          .getMethod("objectFieldOffset", Field.class).invoke(UNSAFE, f);
+    } catch (NoSuchMethodException e) {
+      return -1;
+    } catch (IllegalAccessException e) {
+      return -1;
+    } catch (InvocationTargetException e) {
+      // E.g. the field of a hidden class or a record.
+      return -1;
+    }
+  }
+
+  /**
+   * Looks up the <code>sun.misc.Unsafe</code> instance.
+   *
+   * @return the instance, or null if it is not available
+   */
+  private static Object probe() {
+    try {
+      Field theUnsafe =
+          Class.forName("sun.misc.Unsafe").getDeclaredField("theUnsafe");
+      theUnsafe.setAccessible(true);
+      return theUnsafe.get(null);
+    } catch (ClassNotFoundException e) {
+      return null;
+    } catch (NoSuchFieldException e) {
+      return null;
+    } catch (IllegalAccessException e) {
+      return null;
+    } catch (RuntimeException e) {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,175 @@
+package com.diffblue.deeptestutils;
+
+// Copyright 2016-2018 Diffblue limited. All rights reserved.
+
+/**
+ * <code>WorkStack</code> is the stack of expected nodes whose children are
+ * being compared, with their real objects, used by {@link CompareWithFieldList}
+ * and {@link CompiledExpectation} instead of recursion. Each frame holds an
+ * expected node, its real object, an optional value the comparison of the
+ * children needs, and the index of the next child to compare.
+ * <p>
+ * Being on the heap, the stack compares graphs of any depth, such as long
+ * linked lists, without <code>StackOverflowError</code>. Pushing and popping
+ * allocates nothing once the stack is deep enough.
+ *
+ * @author <a href="http://diffblue.com">Diffblue</a>
+ */
+final class WorkStack {
+
+  /**
+   * Initial depth of the stack.
+   */
+  private static final int INITIAL_DEPTH = 16;
+
+  /**
+   * The expected nodes of the frames.
+   */
+  private Object[] expected = new Object[INITIAL_DEPTH];
+
+  /**
+   * The real objects of the frames.
+   */
+  private Object[] real = new Object[INITIAL_DEPTH];
+
+  /**
+   * The values needed to compare the children of the frames, or null.
+   */
+  private Object[] aux = new Object[INITIAL_DEPTH];
+
+  /**
+   * The index of the next child to compare, for each frame.
+   */
+  private int[] next = new int[INITIAL_DEPTH];
+
+  /**
+   * The number of children, for each frame.
+   */
+  private int[] length = new int[INITIAL_DEPTH];
+
+  /**
+   * Number of frames on the stack.
+   */
+  private int depth;
+
+  /**
+   * Pushes a frame.
+   *
+   * @param expectedNode the expected node
+   * @param realObject the real <code>Object</code> compared to the node
+   * @param auxValue a value needed to compare the children, or null
+   * @param children the number of children to compare
+   */
+  void push(final Object expectedNode, final Object realObject,
+            final Object auxValue, final int children) {
+    if (depth == expected.length) {
+      grow();
+    }
+    expected[depth] = expectedNode;
+    real[depth] = realObject;
+    aux[depth] = auxValue;
+    next[depth] = 0;
+    length[depth] = children;
+    ++depth;
+  }
+
+  /**
+   * Pops the top frame.
+   */
+  void pop() {
+    --depth;
+    expected[depth] = null;
+    real[depth] = null;
+    aux[depth] = null;
+  }
+
+  /**
+   * Checks whether the stack is empty.
+   *
+   * @return true if there is no frame on the stack
+   */
+  boolean isEmpty() {
+    return depth == 0;
+  }
+
+  /**
+   * Returns the index of the next child of the top frame to compare, and
+   * moves to the one after.
+   *
+   * @return the index of the child, or -1 if all children were compared
+   */
+  int next() {
+    int top = depth - 1;
+    if (next[top] == length[top]) {
+      return -1;
+    }
+    return next[top]++;
+  }
+
+  /**
+   * The expected node of the top frame accessor.
+   *
+   * @return the expected node of the top frame
+   */
+  Object getExpected() {
+    return expected[depth - 1];
+  }
+
+  /**
+   * The real object of the top frame accessor.
+   *
+   * @return the real <code>Object</code> of the top frame
+   */
+  Object getReal() {
+    return real[depth - 1];
+  }
+
+  /**
+   * The auxiliary value of the top frame accessor.
+   *
+   * @return the value needed to compare the children of the top frame
+   */
+  Object getAux() {
+    return aux[depth - 1];
+  }
+
+  /**
+   * Pops all frames, after a comparison failed.
+   */
+  void clear() {
+    while (depth > 0) {
+      pop();
+    }
+  }
+
+  /**
+   * Returns the number of frames the stack holds without growing.
+   *
+   * @return the capacity of the stack
+   */
+  int capacity() {
+    return expected.length;
+  }
+
+  /**
+   * Doubles the capacity of the stack.
+   */
+  private void grow() {
+    int capacity = 2 * depth;
+    Object[] newExpected = new Object[capacity];
+    System.arraycopy(expected, 0, newExpected, 0, depth);
+    expected = newExpected;
+    Object[] newReal = new Object[capacity];
+    System.arraycopy(real, 0, newReal, 0, depth);
+    real = newReal;
+    Object[] newAux = new Object[capacity];
+    System.arraycopy(aux, 0, newAux, 0, depth);
+    aux = newAux;
+    int[] newNext = new int[capacity];
+    System.arraycopy(next, 0, newNext, 0, depth);
+    next = newNext;
+    int[] newLength = new int[capacity];
+    System.arraycopy(length, 0, newLength, 0, depth);
+    length = newLength;
+  }
+}
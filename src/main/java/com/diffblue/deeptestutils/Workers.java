@@ -0,0 +1,93 @@
+package com.diffblue.deeptestutils;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Copyright 2016-2018 Diffblue limited. All rights reserved.
+
+/**
+ * <code>Workers</code> holds the pool of threads that deeptest-utils uses to
+ * run work in parallel. The pool has one thread per processor and is created
+ * on first use. Its threads are daemon threads, so they never keep the JVM
+ * running after the tests are done.
+ * <p>
+ * Work running on the pool must not wait for other work submitted to the
+ * pool, which could be queued behind it; see {@link #isWorker()}.
+ *
+ * @author <a href="http://diffblue.com">Diffblue</a>
+ */
+final class Workers {
+
+  /**
+   * Prefix of the names of the worker threads.
+   */
+  private static final String THREAD_NAME = "deeptestutils-worker-";
+
+  /**
+   * The pool, or null if it has not been created yet.
+   */
+  private static ExecutorService executor;
+
+  /**
+   * Private constructor to prevent instantiation of the utility class.
+   */
+  private Workers() {
+  }
+
+  /**
+   * Returns the number of worker threads.
+   *
+   * @return the number of threads of the pool
+   */
+  static int parallelism() {
+    return Runtime.getRuntime().availableProcessors();
+  }
+
+  /**
+   * Checks whether the calling thread is a worker thread.
+   *
+   * @return true if the calling thread belongs to the pool
+   */
+  static boolean isWorker() {
+    return Thread.currentThread() instanceof WorkerThread;
+  }
+
+  /**
+   * Returns the pool, creating it on first use.
+   *
+   * @return the <code>ExecutorService</code> running the worker threads
+   */
+  static synchronized ExecutorService executor() {
+    if (executor == null) {
+      final AtomicInteger count = new AtomicInteger();
+      executor = Executors.newFixedThreadPool(parallelism(),
+          new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+              return new WorkerThread(r,
+                                      THREAD_NAME + count.incrementAndGet());
+            }
+          });
+    }
+    return executor;
+  }
+
+  /**
+   * <code>WorkerThread</code> is a daemon thread of the pool.
+   */
+  private static final class WorkerThread extends Thread {
+
+    /**
+     * Creates a new <code>WorkerThread</code> instance.
+     *
+     * @param r the <code>Runnable</code> the thread runs
+     * @param name the name of the thread
+     */
+    WorkerThread(final Runnable r, final String name) {
+      super(r, name);
+      setDaemon(true);
+    }
+  }
+}
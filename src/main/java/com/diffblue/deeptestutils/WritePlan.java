@@ -0,0 +1,121 @@
+package com.diffblue.deeptestutils;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+
+// Copyright 2016-2018 Diffblue limited. All rights reserved.
+
+/**
+ * <code>WritePlan</code> holds the numbers of the fields named by a
+ * <code>FieldList</code>, resolved against one class. Applying the plan
+ * writes every value of a field list of the same shape through the
+ * {@link ClassAccessor} of the class, without looking any field up again.
+ *
+ * @author <a href="http://diffblue.com">Diffblue</a>
+ */
+final class WritePlan {
+
+  /**
+   * Names of the fields written by the plan, in order.
+   */
+  private final String[] names;
+
+  /**
+   * Numbers of the fields written by the plan, in the same order as
+   * <code>names</code>.
+   */
+  private final int[] ids;
+
+  /**
+   * Declared types of the fields written by the plan, in the same order as
+   * <code>names</code>.
+   */
+  private final Class<?>[] types;
+
+  /**
+   * Accessor of the class the plan writes to.
+   */
+  private final ClassAccessor accessor;
+
+  /**
+   * Resolves the fields named by a field list.
+   *
+   * @param layout the <code>ClassLayout</code> of the class to write
+   * @param values the <code>FieldList</code> whose fields are resolved
+   */
+  WritePlan(final ClassLayout layout, final FieldList values) {
+    ArrayList<FieldValue> fields = values.getFields();
+    names = new String[fields.size()];
+    ids = new int[fields.size()];
+    types = new Class<?>[fields.size()];
+    accessor = layout.getClassAccessor();
+    for (int i = 0; i < names.length; ++i) {
+      String name = fields.get(i).getName();
+      int id = layout.getFieldId(name);
+      if (id == -1) {
+        throw new DeeptestUtilsRuntimeException(name
+            + " is not a field in class " + layout.getType().getName(),
+            new NoSuchFieldException(name));
+      }
+      names[i] = name;
+      ids[i] = id;
+      types[i] = layout.getFieldType(id);
+    }
+  }
+
+  /**
+   * Checks whether the plan writes exactly the fields of a field list, in the
+   * same order.
+   *
+   * @param values the <code>FieldList</code> to check
+   * @return true if the plan can be applied to <code>values</code>
+   */
+  boolean matches(final FieldList values) {
+    ArrayList<FieldValue> fields = values.getFields();
+    if (fields.size() != names.length) {
+      return false;
+    }
+    for (int i = 0; i < names.length; ++i) {
+      if (!names[i].equals(fields.get(i).getName())) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Writes the values of a field list to an object.
+   *
+   * @param target the <code>Object</code> to write
+   * @param values a <code>FieldList</code> that this plan
+   *     {@link #matches(FieldList) matches}
+   */
+  void apply(final Object target, final FieldList values) {
+    ArrayList<FieldValue> fields = values.getFields();
+    for (int i = 0; i < ids.length; ++i) {
+      accessor.set(ids[i], target, fields.get(i).getValue());
+    }
+  }
+
+  /**
+   * Writes the values of a field list to an object, after turning each
+   * <code>FieldList</code> and array value into an object of the declared
+   * type of its field.
+   *
+   * @param target the <code>Object</code> to write
+   * @param values a <code>FieldList</code> that this plan
+   *     {@link #matches(FieldList) matches}
+   * @param builder the <code>ObjectGraphBuilder</code> building the values
+   * @throws InvocationTargetException if the static initializer of the class
+   *     of a value throws an exception
+   */
+  void apply(final Object target, final FieldList values,
+             final ObjectGraphBuilder builder)
+      throws InvocationTargetException {
+    ArrayList<FieldValue> fields = values.getFields();
+    for (int i = 0; i < ids.length; ++i) {
+      accessor.set(ids[i], target,
+                   builder.build(types[i], fields.get(i).getValue()));
+    }
+  }
+}
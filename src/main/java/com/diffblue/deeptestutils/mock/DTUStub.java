@@ -0,0 +1,335 @@
+// Copyright 2016-2018 Diffblue limited. All rights reserved.
+
+package com.diffblue.deeptestutils.mock;
+
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.diffblue.deeptestutils.IterAnswer;
+import com.diffblue.deeptestutils.Reflector;
+
+import javassist.util.proxy.MethodFilter;
+import javassist.util.proxy.MethodHandler;
+import javassist.util.proxy.ProxyFactory;
+
+/**
+ * <code>DTUStub</code> creates stubs whose methods return the answers of
+ * {@link IterAnswer}s, as Mockito mocks answering with them do, without
+ * going through Mockito.
+ * <p>
+ * A stub of an interface is a <code>java.lang.reflect.Proxy</code>; a stub
+ * of a class is an instance of a subclass generated with javassist, created
+ * without calling any constructor. The arguments of each call are checked
+ * against the expected parameters of the answer, as by
+ * {@link IterAnswer#answer}. Methods without answers return the default
+ * value of their return type, except <code>equals</code>,
+ * <code>hashCode</code> and <code>toString</code>, which behave as in
+ * <code>Object</code>. Final and static methods cannot be stubbed.
+ * <p>
+ * Usage:
+ * <pre>
+ * Foo foo = new DTUStub&lt;Foo&gt;(Foo.class)
+ *     .answer("bar", new IterAnswer&lt;Integer&gt;(...))
+ *     .create();
+ * </pre>
+ *
+ * @param <T> type parameter of the stubbed class
+ * @author <a href="http://diffblue.com">Diffblue</a>
+ */
+public final class DTUStub<T> {
+
+  /**
+   * The generated subclasses of the stubbed classes, by class, guarded by
+   * itself. Both are held weakly, as javassist caches proxy classes, so that
+   * the cache does not keep their class loader alive: a subclass is defined
+   * in the class loader of the stubbed class, which keeps it alive as long
+   * as the class.
+   */
+  private static final WeakHashMap<Class<?>, WeakReference<Class<?>>>
+      SUBCLASSES = new WeakHashMap<Class<?>, WeakReference<Class<?>>>();
+
+  /**
+   * Filter of the methods handled by the generated subclasses.
+   */
+  private static final MethodFilter FILTER = new MethodFilter() {
+    @Override
+    public boolean isHandled(final Method m) {
+      return !"finalize".equals(m.getName())
+          || m.getParameterTypes().length != 0;
+    }
+  };
+
+  /**
+   * The stubbed class.
+   */
+  private final Class<T> type;
+
+  /**
+   * Answers of the methods given by name and parameter types, by signature.
+   */
+  private final HashMap<String, IterAnswer<?>> bySignature =
+      new HashMap<String, IterAnswer<?>>();
+
+  /**
+   * Answers of the methods given by name only, by name.
+   */
+  private final HashMap<String, IterAnswer<?>> byName =
+      new HashMap<String, IterAnswer<?>>();
+
+  /**
+   * Creates a new <code>DTUStub</code> instance, without any answer.
+   *
+   * @param stubbed the class or interface to stub
+   */
+  public DTUStub(final Class<T> stubbed) {
+    if (Modifier.isFinal(stubbed.getModifiers()) || stubbed.isPrimitive()
+        || stubbed.isArray()) {
+      throw new IllegalArgumentException("Cannot stub " + stubbed.getName());
+    }
+    type = stubbed;
+  }
+
+  /**
+   * Answers all the methods of a name, unless answered by
+   * {@link #answer(String, Class[], IterAnswer)}.
+   *
+   * @param methodName the name of the methods
+   * @param answer the <code>IterAnswer</code> giving the return values
+   * @return this <code>DTUStub</code>
+   */
+  public DTUStub<T> answer(final String methodName,
+                           final IterAnswer<?> answer) {
+    byName.put(methodName, answer);
+    return this;
+  }
+
+  /**
+   * Answers the method of a name and parameter types.
+   *
+   * @param methodName the name of the method
+   * @param parameterTypes the parameter types of the method
+   * @param answer the <code>IterAnswer</code> giving the return values
+   * @return this <code>DTUStub</code>
+   */
+  public DTUStub<T> answer(final String methodName,
+                           final Class<?>[] parameterTypes,
+                           final IterAnswer<?> answer) {
+    bySignature.put(signature(methodName, parameterTypes), answer);
+    return this;
+  }
+
+  /**
+   * Creates a stub answering as set so far. Answers set later do not
+   * change the stub.
+   *
+   * @return a new stub
+   * @throws InvocationTargetException if the static initializer of the
+   *     stubbed class throws an exception, see
+   *     {@link Reflector#getInstance(Class)}
+   */
+  public T create() throws InvocationTargetException {
+    Handler handler = new Handler(type, bySignature, byName);
+    if (type.isInterface()) {
+      return type.cast(java.lang.reflect.Proxy.newProxyInstance(
+          type.getClassLoader(), new Class<?>[] {type }, handler));
+    }
+    Object stub = Reflector.getInstance(subclass(type));
+    ((javassist.util.proxy.Proxy) stub).setHandler(handler);
+    return type.cast(stub);
+  }
+
+  /**
+   * Returns the subclass generated for a class, generating it on first use.
+   *
+   * @param c the stubbed <code>Class</code>
+   * @return the generated subclass
+   */
+  private static Class<?> subclass(final Class<?> c) {
+    Class<?> subclass = cachedSubclass(c);
+    if (subclass == null) {
+      ProxyFactory factory = new ProxyFactory();
+      factory.setSuperclass(c);
+      factory.setFilter(FILTER);
+      Class<?> created = factory.createClass();
+      synchronized (SUBCLASSES) {
+        subclass = cachedSubclass(c);
+        if (subclass == null) {
+          subclass = created;
+          SUBCLASSES.put(c, new WeakReference<Class<?>>(subclass));
+        }
+      }
+    }
+    return subclass;
+  }
+
+  /**
+   * Returns the subclass generated for a class, if any.
+   *
+   * @param c the stubbed <code>Class</code>
+   * @return the generated subclass, or null if there is none
+   */
+  private static Class<?> cachedSubclass(final Class<?> c) {
+    synchronized (SUBCLASSES) {
+      WeakReference<Class<?>> ref = SUBCLASSES.get(c);
+      if (ref == null) {
+        return null;
+      }
+      return ref.get();
+    }
+  }
+
+  /**
+   * Returns the signature of a method, as a key of the answers.
+   *
+   * @param methodName the name of the method
+   * @param parameterTypes the parameter types of the method
+   * @return the signature
+   */
+  private static String signature(final String methodName,
+                                  final Class<?>[] parameterTypes) {
+    return methodName + Arrays.toString(parameterTypes);
+  }
+
+  /**
+   * Returns the default value of a type, as held by an uninitialized field.
+   *
+   * @param c the <code>Class</code> of the type
+   * @return zero or false, boxed, for a primitive type, otherwise null
+   */
+  private static Object defaultValue(final Class<?> c) {
+    if (!c.isPrimitive() || c == void.class) {
+      return null;
+    }
+    return Array.get(Array.newInstance(c, 1), 0);
+  }
+
+  /**
+   * <code>Handler</code> answers the calls to a stub, both as the handler
+   * of a proxy and of a generated subclass.
+   */
+  private static final class Handler
+      implements InvocationHandler, MethodHandler {
+
+    /**
+     * Marks the methods without answer in <code>resolved</code>.
+     */
+    private static final Object NONE = new Object();
+
+    /**
+     * The stubbed class.
+     */
+    private final Class<?> type;
+
+    /**
+     * Answers by signature.
+     */
+    private final HashMap<String, IterAnswer<?>> bySignature;
+
+    /**
+     * Answers by method name.
+     */
+    private final HashMap<String, IterAnswer<?>> byName;
+
+    /**
+     * The answers of the methods called so far, or <code>NONE</code>.
+     */
+    private final ConcurrentHashMap<Method, Object> resolved =
+        new ConcurrentHashMap<Method, Object>();
+
+    /**
+     * Creates a new <code>Handler</code> instance.
+     *
+     * @param stubbed the stubbed class
+     * @param signatures the answers by signature, copied
+     * @param names the answers by method name, copied
+     */
+    Handler(final Class<?> stubbed,
+            final HashMap<String, IterAnswer<?>> signatures,
+            final HashMap<String, IterAnswer<?>> names) {
+      type = stubbed;
+      bySignature = new HashMap<String, IterAnswer<?>>(signatures);
+      byName = new HashMap<String, IterAnswer<?>>(names);
+    }
+
+    @Override
+    public Object invoke(final Object proxy, final Method method,
+                         final Object[] args) {
+      Object[] arguments = args;
+      if (arguments == null) {
+        arguments = new Object[0];
+      }
+      return answer(proxy, method, arguments);
+    }
+
+    @Override
+    public Object invoke(final Object self, final Method thisMethod,
+                         final Method proceed, final Object[] args) {
+      return answer(self, thisMethod, args);
+    }
+
+    /**
+     * Answers a call.
+     *
+     * @param stub the stub called
+     * @param method the <code>Method</code> called
+     * @param args the arguments of the call
+     * @return the next answer of the method, or a default value
+     */
+    private Object answer(final Object stub, final Method method,
+                          final Object[] args) {
+      Object answer = resolved.get(method);
+      if (answer == null) {
+        answer = lookup(method);
+        resolved.putIfAbsent(method, answer);
+      }
+      if (answer != NONE) {
+        Object result = ((IterAnswer<?>) answer).nextAnswer(args);
+        if (result == null) {
+          return defaultValue(method.getReturnType());
+        }
+        return result;
+      }
+      String name = method.getName();
+      Class<?>[] parameterTypes = method.getParameterTypes();
+      if ("equals".equals(name) && parameterTypes.length == 1
+          && parameterTypes[0] == Object.class) {
+        return Boolean.valueOf(stub == args[0]);
+      }
+      if ("hashCode".equals(name) && parameterTypes.length == 0) {
+        return Integer.valueOf(System.identityHashCode(stub));
+      }
+      if ("toString".equals(name) && parameterTypes.length == 0) {
+        return "Stub of " + type.getName() + "@"
+            + Integer.toHexString(System.identityHashCode(stub));
+      }
+      return defaultValue(method.getReturnType());
+    }
+
+    /**
+     * Finds the answer of a method.
+     *
+     * @param method the <code>Method</code> called
+     * @return the <code>IterAnswer</code> of the method, or
+     *     <code>NONE</code>
+     */
+    private Object lookup(final Method method) {
+      IterAnswer<?> answer = bySignature.get(
+          signature(method.getName(), method.getParameterTypes()));
+      if (answer == null) {
+        answer = byName.get(method.getName());
+      }
+      if (answer == null) {
+        return NONE;
+      }
+      return answer;
+    }
+  }
+}
@@ -0,0 +1,11 @@
+package com.diffblue.cover.com.diffblue.deeptestutils.regression;
+
+import com.diffblue.deeptestutils.regression.AbstractPrebuiltClass;
+
+// Stands for an implementation written by ImplementationGenerator.
+public class AbstractPrebuiltClassImpl extends AbstractPrebuiltClass {
+
+  public int abstractMethod() {
+    return 42;
+  }
+}
@@ -0,0 +1,18 @@
+package com.diffblue.deeptestutils;
+
+class AccessorFixture {
+
+  int packageInt;
+
+  public String publicString;
+
+  protected long[] protectedArray;
+
+  private int privateInt;
+
+  final Integer finalInteger = null;
+
+  static int staticInt;
+
+  Object object;
+}
@@ -0,0 +1,142 @@
+package com.diffblue.deeptestutils;
+
+import java.util.HashSet;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AccessorGeneratorTest {
+
+  // Each generated accessor is defined once per class, so each test uses
+  // classes of its own.
+  static class PrivateFields {
+    private int privateInt;
+    private volatile long privateVolatileLong;
+    private String privateString;
+    private final Object privateFinal = null;
+    private static int privateStatic;
+    int packageInt;
+  }
+
+  private static class PrivateClass {
+    private boolean privateBoolean;
+  }
+
+  static class Regenerated {
+    private int value;
+  }
+
+  // Records the fields accessed through reflection rather than generated
+  // code.
+  static class RecordingAccessor implements ClassAccessor {
+    private final ClassAccessor reflective;
+    private final HashSet<String> accessed = new HashSet<String>();
+    private final ClassLayout layout;
+
+    RecordingAccessor(ClassLayout l) {
+      layout = l;
+      reflective = new ReflectiveClassAccessor(l);
+    }
+
+    @Override
+    public int fieldId(String name) {
+      return reflective.fieldId(name);
+    }
+
+    @Override
+    public Object get(int fieldId, Object target) {
+      accessed.add("get " + layout.getAccessor(fieldId).getField().getName());
+      return reflective.get(fieldId, target);
+    }
+
+    @Override
+    public void set(int fieldId, Object target, Object value) {
+      accessed.add("set " + layout.getAccessor(fieldId).getField().getName());
+      reflective.set(fieldId, target, value);
+    }
+  }
+
+  private static void access(ClassAccessor accessor, String field,
+                             Object target, Object value) {
+    int id = accessor.fieldId(field);
+    accessor.set(id, target, value);
+    Assert.assertEquals(value, accessor.get(id, target));
+  }
+
+  // Private instance fields are read and written by generated code, except
+  // for final fields when writing; static fields are left to reflection.
+  @Test
+  public void privateFields() {
+    ClassLayout layout = ClassLayout.of(PrivateFields.class);
+    RecordingAccessor fallback = new RecordingAccessor(layout);
+    ClassAccessor generated = AccessorGenerator.generate(layout, fallback);
+    Assert.assertNotNull(generated);
+    PrivateFields target = new PrivateFields();
+    access(generated, "privateInt", target, 1);
+    access(generated, "privateVolatileLong", target, 2L);
+    access(generated, "privateString", target, "s");
+    access(generated, "privateFinal", target, "f");
+    access(generated, "privateStatic", null, 3);
+    access(generated, "packageInt", target, 4);
+    Assert.assertEquals(1, target.privateInt);
+    Assert.assertEquals(2L, target.privateVolatileLong);
+    Assert.assertEquals("s", target.privateString);
+
+    HashSet<String> expected = new HashSet<String>();
+    expected.add("set privateFinal");
+    expected.add("get privateStatic");
+    expected.add("set privateStatic");
+    Assert.assertEquals(expected, fallback.accessed);
+
+    // Values of the wrong type, and objects of other classes, are left to
+    // reflection.
+    try {
+      generated.set(generated.fieldId("privateInt"), target, "s");
+      Assert.fail();
+    } catch (IllegalArgumentException e) {
+      Assert.assertTrue(fallback.accessed.contains("set privateInt"));
+    }
+    try {
+      generated.get(generated.fieldId("privateInt"), "not a target");
+      Assert.fail();
+    } catch (IllegalArgumentException e) {
+      Assert.assertTrue(fallback.accessed.contains("get privateInt"));
+    }
+  }
+
+  // Private fields of a class that cannot be named from its package are
+  // accessed by generated code too.
+  @Test
+  public void privateClass() {
+    ClassLayout layout = ClassLayout.of(PrivateClass.class);
+    RecordingAccessor fallback = new RecordingAccessor(layout);
+    ClassAccessor generated = AccessorGenerator.generate(layout, fallback);
+    Assert.assertNotNull(generated);
+    access(generated, "privateBoolean", new PrivateClass(), true);
+    Assert.assertTrue(fallback.accessed.isEmpty());
+  }
+
+  // A class whose layout is built again, e.g. after being reclaimed, gets an
+  // instance of the accessor class generated before, delegating to the new
+  // fallback.
+  @Test
+  public void regenerated() {
+    ClassLayout layout = ClassLayout.of(Regenerated.class);
+    ClassAccessor first = AccessorGenerator.generate(
+        layout, new RecordingAccessor(layout));
+    RecordingAccessor fallback = new RecordingAccessor(layout);
+    ClassAccessor second = AccessorGenerator.generate(layout, fallback);
+    Assert.assertNotNull(first);
+    Assert.assertNotNull(second);
+    Assert.assertSame(first.getClass(), second.getClass());
+    Regenerated target = new Regenerated();
+    access(second, "value", target, 1);
+    Assert.assertEquals(1, target.value);
+    Assert.assertTrue(fallback.accessed.isEmpty());
+    try {
+      second.get(second.fieldId("value"), "not a target");
+      Assert.fail();
+    } catch (IllegalArgumentException e) {
+      Assert.assertTrue(fallback.accessed.contains("get value"));
+    }
+  }
+}
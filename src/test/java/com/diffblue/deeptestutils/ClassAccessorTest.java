@@ -0,0 +1,96 @@
+package com.diffblue.deeptestutils;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+public class ClassAccessorTest {
+
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  // Layouts are cached for the lifetime of the JVM, so this test uses its own
+  // class to observe an accessor that has not switched to generated code.
+  static class ReflectiveFixture extends AccessorFixture {
+  }
+
+  @After
+  public void resetThreshold() {
+    Reflector.setAccessorThreshold(1000);
+  }
+
+  // Reads and writes every kind of field through an accessor, and returns
+  // whether the accessor ended up using generated code.
+  private boolean accessAllFields(Class<?> c, Object obj) {
+    ClassAccessor accessor = Reflector.accessorFor(c);
+    int packageInt = accessor.fieldId("packageInt");
+    int publicString = accessor.fieldId("publicString");
+    int protectedArray = accessor.fieldId("protectedArray");
+    int privateInt = accessor.fieldId("privateInt");
+    int finalInteger = accessor.fieldId("finalInteger");
+    int staticInt = accessor.fieldId("staticInt");
+    int object = accessor.fieldId("object");
+    Assert.assertEquals(-1, accessor.fieldId("missing"));
+
+    long[] array = new long[] {1};
+    accessor.set(packageInt, obj, 1);
+    accessor.set(publicString, obj, "s");
+    accessor.set(protectedArray, obj, array);
+    accessor.set(privateInt, obj, 2);
+    accessor.set(finalInteger, obj, 3);
+    accessor.set(staticInt, null, 4);
+    accessor.set(object, obj, "o");
+    Assert.assertEquals(1, accessor.get(packageInt, obj));
+    Assert.assertEquals("s", accessor.get(publicString, obj));
+    Assert.assertSame(array, accessor.get(protectedArray, obj));
+    Assert.assertEquals(2, accessor.get(privateInt, obj));
+    Assert.assertEquals(3, accessor.get(finalInteger, obj));
+    Assert.assertEquals(4, accessor.get(staticInt, null));
+    Assert.assertEquals("o", accessor.get(object, obj));
+
+    // Values that need a widening conversion are still accepted.
+    accessor.set(packageInt, obj, (short) 5);
+    Assert.assertEquals(5, accessor.get(packageInt, obj));
+    return ((TieredClassAccessor) accessor).isGenerated();
+  }
+
+  // Once the threshold is reached, code is generated for the class, and all
+  // kinds of fields can still be accessed.
+  @Test
+  public void generatedAccessor() {
+    Reflector.setAccessorThreshold(0);
+    Assert.assertTrue(
+        accessAllFields(AccessorFixture.class, new AccessorFixture()));
+  }
+
+  // Below the threshold, fields are accessed through reflection.
+  @Test
+  public void reflectiveAccessor() {
+    Reflector.setAccessorThreshold(-1);
+    Assert.assertFalse(
+        accessAllFields(ReflectiveFixture.class, new ReflectiveFixture()));
+  }
+
+  // Writing a value of the wrong type is rejected by generated code in the
+  // same way as by reflection.
+  @Test
+  public void generatedAccessorWrongType() {
+    Reflector.setAccessorThreshold(0);
+    AccessorFixture obj = new AccessorFixture();
+    Reflector.setField(obj, "packageInt", 1);
+    thrown.expect(DeeptestUtilsRuntimeException.class);
+    Reflector.setField(obj, "packageInt", (Object) "not an int");
+  }
+
+  // Classes of the JDK get no generated accessor, but still work.
+  @Test
+  public void jdkClass() {
+    Reflector.setAccessorThreshold(0);
+    Assert.assertEquals(3,
+        Reflector.getInstanceField(new java.awt.Point(3, 4), "x"));
+    Assert.assertFalse(((TieredClassAccessor) Reflector.accessorFor(
+        java.awt.Point.class)).isGenerated());
+  }
+}
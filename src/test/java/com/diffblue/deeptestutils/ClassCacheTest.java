@@ -0,0 +1,144 @@
+package com.diffblue.deeptestutils;
+
+import java.lang.ref.WeakReference;
+import java.lang.reflect.InvocationTargetException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ClassCacheTest {
+
+  static final String FIXTURE =
+      "com.diffblue.deeptestutils.regression.ClassWithPrimitiveFields";
+
+  // Returns a new class loader that loads the test classes itself.
+  static ClassLoader throwawayLoader() {
+    URL classes =
+        ClassCacheTest.class.getProtectionDomain().getCodeSource()
+        .getLocation();
+    return new URLClassLoader(new URL[] {classes }, null);
+  }
+
+  // Fills the heap, which clears all soft references, then collects.
+  static void exhaustMemory() {
+    ArrayList<long[]> hog = new ArrayList<long[]>();
+    try {
+      while (true) {
+        hog.add(new long[1 << 20]);
+      }
+    } catch (OutOfMemoryError e) {
+      hog = null;
+    }
+    System.gc();
+  }
+
+  private static WeakReference<ClassLoader> cacheLayout() throws Exception {
+    ClassLoader loader = throwawayLoader();
+    Class<?> c = Class.forName(FIXTURE, false, loader);
+    ClassLayout layout = ClassLayout.of(c);
+    Assert.assertSame(layout, ClassLayout.of(c));
+    Assert.assertEquals(c, layout.getType());
+    return new WeakReference<ClassLoader>(loader);
+  }
+
+  // The layout of a class of a class loader that is no longer used does not
+  // keep the class loader alive.
+  @Test
+  public void layoutOfThrowawayLoaderIsCollected() throws Exception {
+    WeakReference<ClassLoader> loader = cacheLayout();
+    exhaustMemory();
+    Assert.assertNull(loader.get());
+  }
+
+  private static WeakReference<ClassLoader> cacheImplementation()
+      throws Exception {
+    ClassLoader loader = throwawayLoader();
+    String name = "com.diffblue.deeptestutils.regression.AbstractClass";
+    Class<?> c = Class.forName(name, false, loader);
+    Class<?> implementation = Implementations.of(name, c, null);
+    Assert.assertSame(loader, implementation.getClassLoader());
+    Assert.assertSame(implementation, Implementations.of(name, c, null));
+    return new WeakReference<ClassLoader>(loader);
+  }
+
+  // The implementation of an abstract class of a class loader that is no
+  // longer used does not keep the class loader alive.
+  @Test
+  public void implementationOfThrowawayLoaderIsCollected() throws Exception {
+    WeakReference<ClassLoader> loader = cacheImplementation();
+    exhaustMemory();
+    Assert.assertNull(loader.get());
+  }
+
+  private static WeakReference<ClassLoader> cacheProxy() throws Exception {
+    ClassLoader loader = throwawayLoader();
+    Class<?> c = Class.forName(
+        "com.diffblue.deeptestutils.regression.Interface", false, loader);
+    Object proxy = InterfaceProxies.newInstance(c);
+    Assert.assertTrue(c.isInstance(proxy));
+    Assert.assertSame(proxy.getClass(),
+                      InterfaceProxies.newInstance(c).getClass());
+    return new WeakReference<ClassLoader>(loader);
+  }
+
+  // The proxy class of an interface of a class loader that is no longer used
+  // does not keep the class loader alive.
+  @Test
+  public void proxyOfThrowawayLoaderIsCollected() throws Exception {
+    WeakReference<ClassLoader> loader = cacheProxy();
+    exhaustMemory();
+    Assert.assertNull(loader.get());
+  }
+
+  private static WeakReference<ClassLoader> failInitializer()
+      throws Exception {
+    ClassLoader loader = throwawayLoader();
+    String name =
+        "com.diffblue.deeptestutils.regression.OwnExceptionStaticInit";
+    Class<?> c = Class.forName(name, false, loader);
+    for (int i = 0; i < 2; ++i) {
+      try {
+        Reflector.getInstance(c);
+        Assert.fail();
+      } catch (InvocationTargetException e) {
+        Assert.assertSame(loader, e.getCause().getClass().getClassLoader());
+      }
+    }
+    return new WeakReference<ClassLoader>(loader);
+  }
+
+  // The exception thrown by a static initializer, of a class of the same
+  // class loader, does not keep the class loader alive.
+  @Test
+  public void initializerFailureOfThrowawayLoaderIsCollected()
+      throws Exception {
+    WeakReference<ClassLoader> loader = failInitializer();
+    exhaustMemory();
+    Assert.assertNull(loader.get());
+  }
+
+  // Values are cached per class loader and class name, and only removed if
+  // they are the value given.
+  @Test
+  public void putIfAbsentAndRemove() throws Exception {
+    ClassCache<String> cache = new ClassCache<String>();
+    ClassLoader loader = throwawayLoader();
+    Class<?> c = Class.forName(FIXTURE, false, loader);
+    Assert.assertNull(cache.get(c));
+    Assert.assertEquals("a", cache.putIfAbsent(c, "a"));
+    Assert.assertEquals("a", cache.putIfAbsent(c, "b"));
+    Assert.assertEquals("a", cache.get(loader, FIXTURE));
+    Assert.assertNull(cache.get(ClassCacheTest.class.getClassLoader(),
+                                FIXTURE));
+    Assert.assertNull(cache.get(throwawayLoader(), FIXTURE));
+    cache.remove(loader, FIXTURE, "b");
+    Assert.assertEquals("a", cache.get(c));
+    cache.remove(loader, FIXTURE, "a");
+    Assert.assertNull(cache.get(c));
+
+    Assert.assertEquals("s", cache.putIfAbsent(String.class, "s"));
+    Assert.assertEquals("s", cache.get(null, "java.lang.String"));
+  }
+}
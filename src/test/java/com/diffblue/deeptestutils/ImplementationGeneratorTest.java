@@ -0,0 +1,41 @@
+package com.diffblue.deeptestutils;
+
+import java.io.File;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.diffblue.deeptestutils.regression.ReflectorGetInstanceTest;
+
+public class ImplementationGeneratorTest {
+
+  @Rule
+  public TemporaryFolder output = new TemporaryFolder();
+
+  // This test checks that the abstract classes passed to getInstance by
+  // compiled tests are implemented ahead of time, and that interfaces, which
+  // getInstance proxies, and concrete classes are skipped.
+  @Test
+  public void generateFromTestClasses() throws Exception {
+    File classes = new File(ReflectorGetInstanceTest.class
+                            .getProtectionDomain().getCodeSource()
+                            .getLocation().toURI());
+    List<String> generated =
+        ImplementationGenerator.generate(classes, output.getRoot());
+    Assert.assertTrue(generated.contains(
+        "com.diffblue.deeptestutils.regression.AbstractClass"));
+    Assert.assertFalse(generated.contains(
+        "com.diffblue.deeptestutils.regression.Interface"));
+    Assert.assertFalse(generated.contains(
+        "com.diffblue.deeptestutils.regression.ClassWithConstructor"));
+    Assert.assertTrue(new File(output.getRoot(),
+        "com/diffblue/cover/com/diffblue/deeptestutils/regression/"
+        + "AbstractClassImpl.class").isFile());
+    Assert.assertFalse(new File(output.getRoot(),
+        "com/diffblue/cover/com/diffblue/deeptestutils/regression/"
+        + "InterfaceImpl.class").exists());
+  }
+}
@@ -8,9 +8,12 @@ import java.lang.reflect.Array;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
 
 import com.diffblue.deeptestutils.CompareWithFieldList;
 import com.diffblue.deeptestutils.Reflector;
+import com.diffblue.deeptestutils.regression.SuperClassWithFields;
 
 public class IterAnswerTest {
 
@@ -63,4 +66,32 @@ public class IterAnswerTest {
       /* Method return type is void, or not expected to return */
     }
   }
+
+  // An expected parameter is compared directly the first time, and compiled
+  // once it comes again, here when a second call shares it and when the
+  // answers restart; the compiled expectation is then reused.
+  @Test
+  public void compiledOnReuse() {
+    FieldList shared = new FieldList();
+    shared.add("inherited", 1);
+    FieldList single = new FieldList();
+    single.add("inherited", 1);
+    IterAnswer<String> answer = new IterAnswer<String>(
+        "Mocked", "method", new ArrayList<String>(Arrays.asList("a", "b")),
+        new ArrayList<Object[]>(Arrays.asList(new Object[] {shared, single},
+                                              new Object[] {shared, 2})));
+    SuperClassWithFields actual = new SuperClassWithFields();
+    Assert.assertEquals("a", answer.nextAnswer(new Object[] {actual, actual}));
+    Assert.assertNull(answer.getCompiled(shared));
+    Assert.assertNull(answer.getCompiled(single));
+    Assert.assertEquals("b", answer.nextAnswer(new Object[] {actual, 2}));
+    CompiledExpectation compiled = answer.getCompiled(shared);
+    Assert.assertNotNull(compiled);
+    Assert.assertNull(answer.getCompiled(single));
+    Assert.assertEquals("a", answer.nextAnswer(new Object[] {actual, actual}));
+    Assert.assertSame(compiled, answer.getCompiled(shared));
+    Assert.assertNotNull(answer.getCompiled(single));
+    Assert.assertEquals("b", answer.nextAnswer(new Object[] {actual, 2}));
+    Assert.assertSame(compiled, answer.getCompiled(shared));
+  }
 }
@@ -0,0 +1,78 @@
+package com.diffblue.deeptestutils;
+
+import com.diffblue.deeptestutils.regression.ClassWithPrimitiveFields;
+import com.diffblue.deeptestutils.regression.SubClassWithFields;
+import com.diffblue.deeptestutils.regression.SuperClassWithFields;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+public class ReflectorPopulateTest {
+
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  // All fields of a field list are written, including inherited ones.
+  @Test
+  public void populate() {
+    SubClassWithFields obj = new SubClassWithFields();
+    FieldList values = new FieldList();
+    values.add("inherited", 3);
+    values.add("shadowed", "populated");
+    Reflector.populate(obj, values);
+    Assert.assertEquals(3, obj.getInherited());
+    Assert.assertEquals("populated", obj.getShadowed());
+  }
+
+  // Populating objects of one class with field lists of different shapes
+  // writes the right fields each time.
+  @Test
+  public void populateWithDifferentShapes() {
+    ClassWithPrimitiveFields obj = new ClassWithPrimitiveFields();
+    FieldList first = new FieldList();
+    first.add("intField", 1);
+    first.add("longField", 2L);
+    FieldList second = new FieldList();
+    second.add("longField", 3L);
+    for (int i = 0; i < 2; ++i) {
+      Reflector.populate(obj, first);
+      Assert.assertEquals(1, Reflector.getInstanceField(obj, "intField"));
+      Assert.assertEquals(2L, Reflector.getInstanceField(obj, "longField"));
+      Reflector.populate(obj, second);
+      Assert.assertEquals(3L, Reflector.getInstanceField(obj, "longField"));
+    }
+  }
+
+  // A field list naming a field the class does not have is rejected.
+  @Test
+  public void populateMissingField() {
+    FieldList values = new FieldList();
+    values.add("missing", 1);
+    thrown.expect(DeeptestUtilsRuntimeException.class);
+    Reflector.populate(new SubClassWithFields(), values);
+  }
+
+  // Each target gets its own value, even when the targets have different
+  // classes.
+  @Test
+  public void setFieldOnAll() {
+    SubClassWithFields first = new SubClassWithFields();
+    SubClassWithFields second = new SubClassWithFields();
+    SuperClassWithFields third = new SuperClassWithFields();
+    Reflector.setFieldOnAll(new Object[] {first, second, third}, "inherited",
+        new Object[] {4, 5, 6});
+    Assert.assertEquals(4, first.getInherited());
+    Assert.assertEquals(5, second.getInherited());
+    Assert.assertEquals(6, third.getInherited());
+  }
+
+  // The number of values must match the number of targets.
+  @Test
+  public void setFieldOnAllLengthMismatch() {
+    thrown.expect(DeeptestUtilsRuntimeException.class);
+    Reflector.setFieldOnAll(
+        new Object[] {new SubClassWithFields(), new SubClassWithFields()},
+        "inherited", new Object[] {1});
+  }
+}
@@ -0,0 +1,164 @@
+package com.diffblue.deeptestutils.mock;
+
+import java.lang.ref.WeakReference;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import com.diffblue.deeptestutils.IterAnswer;
+import com.diffblue.deeptestutils.UnexpectedValueException;
+
+interface Service {
+  String name(int id);
+  int count();
+}
+
+class Repository {
+  int calls;
+
+  Repository() {
+    throw new IllegalStateException();
+  }
+
+  public int load(String key) {
+    return -1;
+  }
+
+  public int load(String key, int version) {
+    return -2;
+  }
+
+  public boolean isEmpty() {
+    return false;
+  }
+}
+
+final class FinalRepository {
+}
+
+public class DTUStubTest {
+
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  private static <T> IterAnswer<T> answers(final Object[][] expected,
+                                           final T... answers) {
+    return new IterAnswer<T>("Mocked", "method",
+                             new ArrayList<T>(Arrays.asList(answers)),
+                             new ArrayList<Object[]>(Arrays.asList(expected)));
+  }
+
+  // A stub of an interface returns the answers in sequence, and the default
+  // value of the return type for methods without answers.
+  @Test
+  public void interfaceStub() throws Exception {
+    Service service = new DTUStub<Service>(Service.class)
+        .answer("name", answers(new Object[][] {{1}, {2}}, "one", "two"))
+        .create();
+    Assert.assertEquals("one", service.name(1));
+    Assert.assertEquals("two", service.name(2));
+    Assert.assertEquals(0, service.count());
+    Assert.assertTrue(service.equals(service));
+    Assert.assertEquals(System.identityHashCode(service), service.hashCode());
+  }
+
+  // A stub of a class is created without calling its constructor, and
+  // overloads can be answered separately.
+  @Test
+  public void classStub() throws Exception {
+    Repository repository = new DTUStub<Repository>(Repository.class)
+        .answer("load", new Class<?>[] {String.class },
+                answers(new Object[0][], 10))
+        .answer("load", new Class<?>[] {String.class, int.class },
+                answers(new Object[0][], 20))
+        .create();
+    Assert.assertEquals(10, repository.load("a"));
+    Assert.assertEquals(20, repository.load("a", 1));
+    Assert.assertFalse(repository.isEmpty());
+    Assert.assertEquals(0, repository.calls);
+  }
+
+  // Arguments different from the expected parameters are reported as by
+  // IterAnswer with Mockito.
+  @Test
+  public void unexpectedArgument() throws Exception {
+    Service service = new DTUStub<Service>(Service.class)
+        .answer("name", answers(new Object[][] {{1}}, "one"))
+        .create();
+    thrown.expect(UnexpectedValueException.class);
+    thrown.expectMessage("Mocked class Mocked method method invocation 1"
+                         + " parameter 1");
+    service.name(2);
+  }
+
+  // Final classes cannot be stubbed.
+  @Test
+  public void finalClass() {
+    thrown.expect(IllegalArgumentException.class);
+    new DTUStub<FinalRepository>(FinalRepository.class);
+  }
+
+  private static final String FIXTURE =
+      "com.diffblue.deeptestutils.regression.ClassWithPrimitiveFields";
+
+  // Loads the fixture itself, and everything else, such as the javassist
+  // interfaces of generated subclasses, through the class loader of the
+  // tests.
+  private static class FixtureLoader extends URLClassLoader {
+    FixtureLoader() {
+      super(new URL[] {DTUStubTest.class.getProtectionDomain()
+                       .getCodeSource().getLocation() },
+            DTUStubTest.class.getClassLoader());
+    }
+
+    @Override
+    protected synchronized Class<?> loadClass(String name, boolean resolve)
+        throws ClassNotFoundException {
+      if (!FIXTURE.equals(name)) {
+        return super.loadClass(name, resolve);
+      }
+      Class<?> c = findLoadedClass(name);
+      if (c == null) {
+        c = findClass(name);
+      }
+      return c;
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static WeakReference<ClassLoader> stubThrowawayClass()
+      throws Exception {
+    ClassLoader loader = new FixtureLoader();
+    Class<Object> c = (Class<Object>) Class.forName(FIXTURE, false, loader);
+    Object stub = new DTUStub<Object>(c).create();
+    Assert.assertSame(loader, stub.getClass().getClassLoader());
+    Assert.assertSame(stub.getClass(),
+                      new DTUStub<Object>(c).create().getClass());
+    return new WeakReference<ClassLoader>(loader);
+  }
+
+  // The subclass generated to stub a class of a class loader that is no
+  // longer used does not keep the class loader alive.
+  @Test
+  public void subclassOfThrowawayLoaderIsCollected() throws Exception {
+    WeakReference<ClassLoader> loader = stubThrowawayClass();
+    // Fill the heap, which clears the soft references of the caches of
+    // Reflector.getInstance, then collect.
+    ArrayList<long[]> hog = new ArrayList<long[]>();
+    try {
+      while (true) {
+        hog.add(new long[1 << 20]);
+      }
+    } catch (OutOfMemoryError e) {
+      hog = null;
+    }
+    System.gc();
+    Assert.assertNull(loader.get());
+  }
+}
@@ -0,0 +1,6 @@
+package com.diffblue.deeptestutils.regression;
+
+public abstract class AbstractPreparedClass {
+
+  abstract public int abstractMethod();
+}
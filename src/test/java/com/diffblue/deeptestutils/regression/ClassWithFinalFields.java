@@ -0,0 +1,34 @@
+package com.diffblue.deeptestutils.regression;
+
+public class ClassWithFinalFields {
+
+  private final int finalInt = Integer.parseInt("1");
+
+  private static final String staticFinal = new String("initial");
+
+  private static final String staticFinalReadFirst = new String("initial");
+
+  private static final long staticFinalLong = Long.parseLong("1");
+
+  private static final long staticFinalLongReadFirst = Long.parseLong("1");
+
+  public int getFinalInt() {
+    return finalInt;
+  }
+
+  public static String getStaticFinal() {
+    return staticFinal;
+  }
+
+  public static String getStaticFinalReadFirst() {
+    return staticFinalReadFirst;
+  }
+
+  public static long getStaticFinalLong() {
+    return staticFinalLong;
+  }
+
+  public static long getStaticFinalLongReadFirst() {
+    return staticFinalLongReadFirst;
+  }
+}
@@ -0,0 +1,16 @@
+package com.diffblue.deeptestutils.regression;
+
+public class ClassWithPrimitiveFields {
+
+  private boolean booleanField;
+  private byte byteField;
+  private char charField;
+  private short shortField;
+  private int intField;
+  private long longField;
+  private float floatField;
+  private double doubleField;
+
+  private Integer boxedField;
+  private Object objectField;
+}
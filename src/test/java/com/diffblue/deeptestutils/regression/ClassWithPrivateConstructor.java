@@ -0,0 +1,14 @@
+package com.diffblue.deeptestutils.regression;
+
+public class ClassWithPrivateConstructor {
+
+  private int field;
+
+  private ClassWithPrivateConstructor() {
+    field = 42;
+  }
+
+  public int getField() {
+    return field;
+  }
+}
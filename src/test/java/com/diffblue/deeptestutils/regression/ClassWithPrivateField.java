@@ -0,0 +1,14 @@
+package com.diffblue.deeptestutils.regression;
+
+public class ClassWithPrivateField {
+
+  private int superField;
+
+  public ClassWithPrivateField() {
+    superField = 1;
+  }
+
+  public int getSuperField() {
+    return superField;
+  }
+}
@@ -0,0 +1,28 @@
+package com.diffblue.deeptestutils.regression;
+
+public class ClassWithStaticFields extends SuperClassWithStaticFields {
+
+  private static int counter = 1;
+
+  private static String name = "initial";
+
+  private static final Object constant = new Object();
+
+  private int instanceField = 1;
+
+  public static int getCounter() {
+    return counter;
+  }
+
+  public static String getName() {
+    return name;
+  }
+
+  public static Object getConstant() {
+    return constant;
+  }
+
+  public int getInstanceField() {
+    return instanceField;
+  }
+}
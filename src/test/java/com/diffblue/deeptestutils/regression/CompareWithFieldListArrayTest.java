@@ -0,0 +1,61 @@
+package com.diffblue.deeptestutils.regression;
+
+import com.diffblue.deeptestutils.CompareWithFieldList;
+import com.diffblue.deeptestutils.CompiledExpectation;
+import com.diffblue.deeptestutils.UnexpectedValueException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+public class CompareWithFieldListArrayTest {
+
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  // Arrays of primitives are compared to arrays of the same type.
+  @Test
+  public void equalPrimitiveArrays() {
+    CompareWithFieldList.compare(new int[] {1, 2, 3 }, new int[] {1, 2, 3 });
+    CompareWithFieldList.compare(new double[] {Double.NaN },
+                                 new double[] {Double.NaN });
+    CompiledExpectation.compile(new byte[] {1, 2 })
+        .compare(new byte[] {1, 2 });
+  }
+
+  // The first element that differs is reported with its index.
+  @Test
+  public void differentPrimitiveArrays() {
+    thrown.expect(UnexpectedValueException.class);
+    thrown.expectMessage("Field [2]: Expected java.lang.Byte 3"
+                         + " got java.lang.Byte 4");
+    CompareWithFieldList.compare(new byte[] {1, 2, 3 },
+                                 new byte[] {1, 2, 4 });
+  }
+
+  // Arrays of boxed primitives are compared to arrays of primitives.
+  @Test
+  public void boxedAgainstPrimitiveArrays() {
+    CompareWithFieldList.compare(new Object[] {1L, 2L }, new long[] {1, 2 });
+    CompareWithFieldList.compare(new char[] {'a' }, new Character[] {'a' });
+    CompiledExpectation.compile(new Object[] {true, false })
+        .compare(new boolean[] {true, false });
+  }
+
+  // A boxed element of another type than the primitives differs.
+  @Test
+  public void boxedOfOtherType() {
+    thrown.expect(UnexpectedValueException.class);
+    thrown.expectMessage("Field [1]: Expected java.lang.Integer 2"
+                         + " got java.lang.Long 2");
+    CompiledExpectation.compile(new Object[] {1L, 2 })
+        .compare(new long[] {1, 2 });
+  }
+
+  // Arrays of different lengths or primitive types differ.
+  @Test
+  public void differentLengthOrType() {
+    thrown.expect(UnexpectedValueException.class);
+    thrown.expectMessage("Expected [I");
+    CompareWithFieldList.compare(new int[] {1 }, new long[] {1 });
+  }
+}
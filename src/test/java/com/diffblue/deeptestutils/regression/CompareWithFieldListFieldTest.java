@@ -0,0 +1,190 @@
+package com.diffblue.deeptestutils.regression;
+
+import com.diffblue.deeptestutils.CompareWithFieldList;
+import com.diffblue.deeptestutils.CompiledExpectation;
+import com.diffblue.deeptestutils.FieldList;
+import com.diffblue.deeptestutils.Reflector;
+import com.diffblue.deeptestutils.UnexpectedValueException;
+import java.util.HashMap;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+public class CompareWithFieldListFieldTest {
+
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  // Private fields declared in a superclass are compared, and a field hidden
+  // by the subclass is the one of the subclass.
+  @Test
+  public void inheritedAndShadowedFields() {
+    FieldList expected = new FieldList();
+    expected.add("inherited", 1);
+    expected.add("shadowed", "sub");
+    CompareWithFieldList.compare(expected, new SubClassWithFields());
+  }
+
+  // A field with a different value is reported.
+  @Test
+  public void differentFieldValue() {
+    FieldList expected = new FieldList();
+    expected.add("inherited", 2);
+    thrown.expect(UnexpectedValueException.class);
+    thrown.expectMessage("Field .inherited");
+    CompareWithFieldList.compare(expected, new SubClassWithFields());
+  }
+
+  // A field that is in none of the classes of the hierarchy is reported
+  // with its name.
+  @Test
+  public void missingField() {
+    FieldList expected = new FieldList();
+    expected.add("missing", 1);
+    thrown.expect(RuntimeException.class);
+    thrown.expectMessage("did not have expected field missing");
+    CompareWithFieldList.compare(expected, new SubClassWithFields());
+  }
+
+  // The path of a difference is reported from the prefix given, through
+  // array elements and fields.
+  @Test
+  public void differencePath() {
+    FieldList expected = new FieldList();
+    expected.add("inherited", 2);
+    thrown.expect(UnexpectedValueException.class);
+    thrown.expectMessage("Field root[1].inherited: Expected");
+    CompareWithFieldList.compare(
+        new Object[] {null, expected },
+        new Object[] {null, new SubClassWithFields() },
+        "root", new HashMap<Object, Object>());
+  }
+
+  // Paths deeper than the initial breadcrumb stack are reported in full.
+  @Test
+  public void deepDifferencePath() {
+    Object expected = 1;
+    Object real = 2;
+    StringBuilder path = new StringBuilder();
+    for (int i = 0; i < 20; ++i) {
+      expected = new Object[] {expected };
+      real = new Object[] {real };
+      path.append("[0]");
+    }
+    thrown.expect(UnexpectedValueException.class);
+    thrown.expectMessage("Field " + path + ": Expected");
+    CompareWithFieldList.compare(expected, real);
+  }
+
+  private static Object nested(int depth, Object leaf) {
+    Object value = leaf;
+    for (int i = 0; i < depth; ++i) {
+      value = new Object[] {value };
+    }
+    return value;
+  }
+
+  // Values far deeper than the native stack allows for recursion are
+  // compared.
+  @Test
+  public void deepValues() {
+    Object expected = nested(100000, 1);
+    CompareWithFieldList.compare(expected, nested(100000, 1));
+    CompiledExpectation.compile(expected).compare(nested(100000, 1));
+  }
+
+  // A difference at the bottom of a deep value is reported with its path.
+  @Test
+  public void deepValueDifference() {
+    thrown.expect(UnexpectedValueException.class);
+    thrown.expectMessage("[0][0]: Expected java.lang.Integer 1");
+    CompiledExpectation.compile(nested(100000, 1))
+        .compare(nested(100000, 2));
+  }
+
+  private static FieldList diamond(int depth) {
+    FieldList node = new FieldList();
+    node.add("depth", depth);
+    if (depth > 0) {
+      FieldList child = diamond(depth - 1);
+      node.add("left", child);
+      node.add("right", child);
+    }
+    return node;
+  }
+
+  // Sub-graphs shared by the expected value are compared once to the same
+  // real object, so that diamond shaped graphs are compared in linear time.
+  @Test(timeout = 10000)
+  public void sharedSubGraphs() throws Exception {
+    FieldList expected = diamond(40);
+    DiamondNode real = Reflector.instantiate(DiamondNode.class, expected);
+    CompareWithFieldList.compare(expected, real);
+    CompiledExpectation.compile(expected).compare(real);
+  }
+
+  // A shared expected sub-graph is still compared to each distinct real
+  // object it corresponds to.
+  @Test
+  public void sharedSubGraphDistinctObjects() throws Exception {
+    FieldList expected = diamond(2);
+    FieldList tree = new FieldList();
+    tree.add("depth", 2);
+    tree.add("left", diamond(1));
+    FieldList right = new FieldList();
+    right.add("depth", 0);
+    tree.add("right", right);
+    DiamondNode real = Reflector.instantiate(DiamondNode.class, tree);
+    thrown.expect(UnexpectedValueException.class);
+    thrown.expectMessage("Field .right.depth: Expected java.lang.Integer 1");
+    CompareWithFieldList.compare(expected, real);
+  }
+
+  // Expected root.left and root.right share X, whose child S points back to
+  // X. Real root.left and root.right are distinct objects sharing the child
+  // of X, which points back to root.left only.
+  private static FieldList diamondThroughCycleExpected() {
+    FieldList x = new FieldList();
+    FieldList s = new FieldList();
+    x.add("left", s);
+    s.add("left", x);
+    FieldList root = new FieldList();
+    root.add("left", x);
+    root.add("right", x);
+    return root;
+  }
+
+  private static DiamondNode diamondThroughCycleReal() throws Exception {
+    DiamondNode root = (DiamondNode) Reflector.getInstance(DiamondNode.class);
+    DiamondNode rx = (DiamondNode) Reflector.getInstance(DiamondNode.class);
+    DiamondNode rx2 = (DiamondNode) Reflector.getInstance(DiamondNode.class);
+    DiamondNode s = (DiamondNode) Reflector.getInstance(DiamondNode.class);
+    Reflector.setField(root, "left", rx);
+    Reflector.setField(root, "right", rx2);
+    Reflector.setField(rx, "left", s);
+    Reflector.setField(rx2, "left", s);
+    Reflector.setField(s, "left", rx);
+    return root;
+  }
+
+  // A pair found equal through a back-pointer to a node still being compared
+  // is not reused once that node is compared to another object: the second
+  // path through the shared cycle has the wrong shape.
+  @Test
+  public void diamondThroughCycle() throws Exception {
+    thrown.expect(UnexpectedValueException.class);
+    thrown.expectMessage("cyclic data structure has incorrect shape");
+    CompareWithFieldList.compare(diamondThroughCycleExpected(),
+                                 diamondThroughCycleReal());
+  }
+
+  // The same holds for compiled expectations.
+  @Test
+  public void compiledDiamondThroughCycle() throws Exception {
+    thrown.expect(UnexpectedValueException.class);
+    thrown.expectMessage("cyclic data structure has incorrect shape");
+    CompiledExpectation.compile(diamondThroughCycleExpected())
+        .compare(diamondThroughCycleReal());
+  }
+}
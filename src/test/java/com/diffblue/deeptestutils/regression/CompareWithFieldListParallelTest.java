@@ -0,0 +1,107 @@
+package com.diffblue.deeptestutils.regression;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.diffblue.deeptestutils.CompareWithFieldList;
+import com.diffblue.deeptestutils.FieldList;
+import com.diffblue.deeptestutils.UnexpectedValueException;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+public class CompareWithFieldListParallelTest {
+
+  private static final AtomicInteger calls = new AtomicInteger();
+
+  private static final AtomicInteger busy = new AtomicInteger();
+
+  // An object that takes a while to compare.
+  static class SlowEquals {
+    @Override
+    public boolean equals(Object o) {
+      calls.incrementAndGet();
+      busy.incrementAndGet();
+      try {
+        Thread.sleep(20);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } finally {
+        busy.decrementAndGet();
+      }
+      return false;
+    }
+
+    @Override
+    public int hashCode() {
+      return 0;
+    }
+  }
+
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  private static Object[] wide(int length) {
+    Object[] array = new Object[length];
+    for (int i = 0; i < length; ++i) {
+      array[i] = new Object[] {i, new Object[] {(long) i } };
+    }
+    return array;
+  }
+
+  // Wide arrays are compared in parallel.
+  @Test
+  public void wideArray() {
+    CompareWithFieldList.compareInParallel(wide(10000), wide(10000));
+  }
+
+  // The first difference in traversal order is reported, whichever chunk
+  // of a parallel comparison finds a difference first.
+  @Test
+  public void firstDifference() {
+    Object[] real = wide(10000);
+    ((Object[]) real[9000])[0] = -1;
+    ((Object[]) real[10])[0] = -1;
+    thrown.expect(UnexpectedValueException.class);
+    thrown.expectMessage("Field [10][0]: Expected java.lang.Integer 10");
+    CompareWithFieldList.compareInParallel(wide(10000), real);
+  }
+
+  // Elements compared in parallel may point back to the array that holds
+  // them.
+  @Test
+  public void cyclicElements() {
+    Object[] expected = new Object[5000];
+    Object[] real = new Object[5000];
+    for (int i = 0; i < expected.length; ++i) {
+      expected[i] = new Object[] {expected };
+      real[i] = new Object[] {real };
+    }
+    CompareWithFieldList.compareInParallel(expected, real);
+  }
+
+  // Once a parallel comparison fails, the chunks still running stop, rather
+  // than keep the workers busy comparing elements whose result is not used.
+  @Test
+  public void failureStopsChunks() throws InterruptedException {
+    Object[] expected = new Object[2048];
+    Object[] real = new Object[expected.length];
+    expected[0] = 1;
+    real[0] = 2;
+    for (int i = 1; i < expected.length; ++i) {
+      expected[i] = new FieldList();
+      real[i] = new SlowEquals();
+    }
+    try {
+      CompareWithFieldList.compareInParallel(expected, real);
+      Assert.fail();
+    } catch (UnexpectedValueException e) {
+      Assert.assertTrue(e.getMessage().startsWith("Field [0]"));
+    }
+    Thread.sleep(200);
+    int count = calls.get();
+    Thread.sleep(200);
+    Assert.assertEquals(count, calls.get());
+    Assert.assertEquals(0, busy.get());
+  }
+}
@@ -0,0 +1,50 @@
+package com.diffblue.deeptestutils.regression;
+
+import com.diffblue.deeptestutils.CompiledExpectation;
+import com.diffblue.deeptestutils.FieldList;
+import com.diffblue.deeptestutils.Reflector;
+import com.diffblue.deeptestutils.UnexpectedValueException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+public class CompiledExpectationTest {
+
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  // A compiled expectation can be compared to objects of different classes
+  // in turn, with the fields resolved in each class.
+  @Test
+  public void repeatedComparisons() {
+    FieldList expected = new FieldList();
+    expected.add("inherited", 1);
+    CompiledExpectation compiled = CompiledExpectation.compile(expected);
+    compiled.compare(new SubClassWithFields());
+    compiled.compare(new SuperClassWithFields());
+    compiled.compare(new SubClassWithFields());
+  }
+
+  // Differences are reported with the path of the field, as by
+  // CompareWithFieldList.
+  @Test
+  public void differentNestedValue() {
+    FieldList inner = new FieldList();
+    inner.add("inherited", 2);
+    CompiledExpectation compiled =
+        CompiledExpectation.compile(new Object[] {null, inner });
+    thrown.expect(UnexpectedValueException.class);
+    thrown.expectMessage("Field [1].inherited: Expected java.lang.Integer 2"
+                         + " got java.lang.Integer 1");
+    compiled.compare(new Object[] {null, new SubClassWithFields() });
+  }
+
+  // A cyclic expected value is compiled once and matches a cyclic object.
+  @Test
+  public void cyclicValue() throws Exception {
+    FieldList expected = new FieldList();
+    expected.add("next", expected);
+    GraphNode node = Reflector.instantiate(GraphNode.class, expected);
+    CompiledExpectation.compile(expected).compare(node);
+  }
+}
@@ -0,0 +1,10 @@
+package com.diffblue.deeptestutils.regression;
+
+public class DiamondNode {
+
+  private DiamondNode left;
+
+  private DiamondNode right;
+
+  private int depth;
+}
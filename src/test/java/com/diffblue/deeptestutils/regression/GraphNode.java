@@ -0,0 +1,44 @@
+package com.diffblue.deeptestutils.regression;
+
+public class GraphNode {
+
+  public GraphNode(String name) {
+    throw new IllegalStateException();
+  }
+
+  private String name;
+
+  private int weight;
+
+  private GraphNode next;
+
+  private GraphNode[] children;
+
+  private long[] counts;
+
+  private AbstractClass shape;
+
+  public String getName() {
+    return name;
+  }
+
+  public int getWeight() {
+    return weight;
+  }
+
+  public GraphNode getNext() {
+    return next;
+  }
+
+  public GraphNode[] getChildren() {
+    return children;
+  }
+
+  public long[] getCounts() {
+    return counts;
+  }
+
+  public AbstractClass getShape() {
+    return shape;
+  }
+}
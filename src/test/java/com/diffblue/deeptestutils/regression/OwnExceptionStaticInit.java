@@ -0,0 +1,13 @@
+package com.diffblue.deeptestutils.regression;
+
+public class OwnExceptionStaticInit {
+
+  public static class Failure extends RuntimeException {
+  }
+
+  static {
+    if (Boolean.TRUE) {
+      throw new Failure();
+    }
+  }
+}
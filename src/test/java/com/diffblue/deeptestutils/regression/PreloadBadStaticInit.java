@@ -0,0 +1,11 @@
+package com.diffblue.deeptestutils.regression;
+
+public class PreloadBadStaticInit {
+
+  static Integer i;
+  static int j;
+
+  static {
+    j = i.intValue();
+  }
+}
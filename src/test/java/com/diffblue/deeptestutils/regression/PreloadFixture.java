@@ -0,0 +1,32 @@
+package com.diffblue.deeptestutils.regression;
+
+import com.diffblue.deeptestutils.Reflector;
+
+public class PreloadFixture {
+
+  public Object referencedClass() {
+    return new PreloadedClass();
+  }
+
+  public Object referencedName() throws Exception {
+    return Reflector.getInstance(
+        "com.diffblue.deeptestutils.regression.PreloadBadStaticInit");
+  }
+
+  public Object referencedForName() {
+    return Reflector.forName(
+        "com.diffblue.deeptestutils.regression.PreloadForNameClass");
+  }
+
+  public Class<?> classLiteral() {
+    return PreloadLiteralClass.class;
+  }
+
+  public int inheritedStatic() {
+    return PreloadStaticSubclass.inherited;
+  }
+
+  public String mentionedName() {
+    return "com.diffblue.deeptestutils.regression.PreloadMentionedClass";
+  }
+}
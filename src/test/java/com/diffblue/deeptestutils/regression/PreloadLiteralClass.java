@@ -0,0 +1,8 @@
+package com.diffblue.deeptestutils.regression;
+
+public class PreloadLiteralClass {
+
+  static {
+    PreloadProbe.literalInitialized = true;
+  }
+}
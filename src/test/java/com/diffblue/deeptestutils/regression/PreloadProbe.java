@@ -0,0 +1,40 @@
+package com.diffblue.deeptestutils.regression;
+
+public class PreloadProbe {
+
+  static boolean initialized;
+
+  static boolean mentionedInitialized;
+
+  static boolean forNameInitialized;
+
+  static boolean literalInitialized;
+
+  static boolean staticSuperclassInitialized;
+
+  static boolean staticSubclassInitialized;
+
+  public static boolean isInitialized() {
+    return initialized;
+  }
+
+  public static boolean isMentionedInitialized() {
+    return mentionedInitialized;
+  }
+
+  public static boolean isForNameInitialized() {
+    return forNameInitialized;
+  }
+
+  public static boolean isLiteralInitialized() {
+    return literalInitialized;
+  }
+
+  public static boolean isStaticSuperclassInitialized() {
+    return staticSuperclassInitialized;
+  }
+
+  public static boolean isStaticSubclassInitialized() {
+    return staticSubclassInitialized;
+  }
+}
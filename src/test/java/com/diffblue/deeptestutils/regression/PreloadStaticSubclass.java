@@ -0,0 +1,8 @@
+package com.diffblue.deeptestutils.regression;
+
+public class PreloadStaticSubclass extends PreloadStaticSuperclass {
+
+  static {
+    PreloadProbe.staticSubclassInitialized = true;
+  }
+}
@@ -0,0 +1,10 @@
+package com.diffblue.deeptestutils.regression;
+
+public class PreloadStaticSuperclass {
+
+  public static int inherited;
+
+  static {
+    PreloadProbe.staticSuperclassInitialized = true;
+  }
+}
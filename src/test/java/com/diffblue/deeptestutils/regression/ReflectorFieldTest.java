@@ -0,0 +1,189 @@
+package com.diffblue.deeptestutils.regression;
+
+import com.diffblue.deeptestutils.DeeptestUtilsRuntimeException;
+import com.diffblue.deeptestutils.Reflector;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+public class ReflectorFieldTest {
+
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  // A private field declared in a superclass can be read and written through
+  // an instance of the subclass.
+  @Test
+  public void inheritedPrivateField() {
+    SubClassWithFields obj = new SubClassWithFields();
+    Reflector.setField(obj, "inherited", 5);
+    Assert.assertEquals(5, obj.getInherited());
+    Assert.assertEquals(5, Reflector.getInstanceField(obj, "inherited"));
+  }
+
+  // When a subclass declares a field with the same name as a field of its
+  // superclass, the field of the subclass is used.
+  @Test
+  public void shadowedField() {
+    SubClassWithFields obj = new SubClassWithFields();
+    Reflector.setField(obj, "shadowed", "changed");
+    Assert.assertEquals("changed", obj.getShadowed());
+    Assert.assertEquals("super", obj.getSuperShadowed());
+    Assert.assertEquals("changed",
+        Reflector.getInstanceField(obj, "shadowed"));
+  }
+
+  // The field of the superclass can still be reached by naming the
+  // superclass explicitly.
+  @Test
+  public void shadowedFieldOfSuperclass() {
+    SubClassWithFields obj = new SubClassWithFields();
+    Reflector.setField(SuperClassWithFields.class, obj, "shadowed", "changed");
+    Assert.assertEquals("sub", obj.getShadowed());
+    Assert.assertEquals("changed", obj.getSuperShadowed());
+  }
+
+  // Repeated lookups of the same field give consistent results.
+  @Test
+  public void repeatedAccess() {
+    SubClassWithFields obj = new SubClassWithFields();
+    for (int i = 0; i < 100; ++i) {
+      Reflector.setField(obj, "inherited", i);
+      Assert.assertEquals(i, Reflector.getInstanceField(obj, "inherited"));
+    }
+  }
+
+  // Reading a field that does not exist in the class hierarchy throws a
+  // DeeptestUtilsRuntimeException.
+  @Test
+  public void getMissingField() {
+    thrown.expect(DeeptestUtilsRuntimeException.class);
+    Reflector.getInstanceField(new SubClassWithFields(), "missing");
+  }
+
+  // Writing a field that does not exist in the class hierarchy throws a
+  // DeeptestUtilsRuntimeException.
+  @Test
+  public void setMissingField() {
+    thrown.expect(DeeptestUtilsRuntimeException.class);
+    Reflector.setField(new SubClassWithFields(), "missing", 1);
+  }
+
+  // Each primitive overload of setField writes the corresponding primitive
+  // field.
+  @Test
+  public void primitiveSetters() {
+    ClassWithPrimitiveFields obj = new ClassWithPrimitiveFields();
+    Reflector.setField(obj, "booleanField", true);
+    Reflector.setField(obj, "byteField", (byte) 1);
+    Reflector.setField(obj, "charField", 'c');
+    Reflector.setField(obj, "shortField", (short) 2);
+    Reflector.setField(obj, "intField", 3);
+    Reflector.setField(obj, "longField", 4L);
+    Reflector.setField(obj, "floatField", 5.0f);
+    Reflector.setField(obj, "doubleField", 6.0);
+    Assert.assertEquals(true, Reflector.getInstanceField(obj, "booleanField"));
+    Assert.assertEquals((byte) 1, Reflector.getInstanceField(obj, "byteField"));
+    Assert.assertEquals('c', Reflector.getInstanceField(obj, "charField"));
+    Assert.assertEquals((short) 2,
+        Reflector.getInstanceField(obj, "shortField"));
+    Assert.assertEquals(3, Reflector.getInstanceField(obj, "intField"));
+    Assert.assertEquals(4L, Reflector.getInstanceField(obj, "longField"));
+    Assert.assertEquals(5.0f, Reflector.getInstanceField(obj, "floatField"));
+    Assert.assertEquals(6.0, Reflector.getInstanceField(obj, "doubleField"));
+  }
+
+  // A primitive value is widened when the field has a wider primitive type.
+  @Test
+  public void primitiveSetterWidens() {
+    ClassWithPrimitiveFields obj = new ClassWithPrimitiveFields();
+    Reflector.setField(obj, "longField", 7);
+    Reflector.setField(obj, "doubleField", 8);
+    Assert.assertEquals(7L, Reflector.getInstanceField(obj, "longField"));
+    Assert.assertEquals(8.0, Reflector.getInstanceField(obj, "doubleField"));
+  }
+
+  // A primitive value written to a field of reference type is boxed, as it
+  // was before the primitive overloads existed.
+  @Test
+  public void primitiveSetterBoxesForReferenceFields() {
+    ClassWithPrimitiveFields obj = new ClassWithPrimitiveFields();
+    Reflector.setField(obj, "boxedField", 9);
+    Reflector.setField(obj, "objectField", 10L);
+    Assert.assertEquals(9, Reflector.getInstanceField(obj, "boxedField"));
+    Assert.assertEquals(10L, Reflector.getInstanceField(obj, "objectField"));
+  }
+
+  // A primitive value that cannot be converted to the type of the field
+  // throws a DeeptestUtilsRuntimeException.
+  @Test
+  public void primitiveSetterWrongType() {
+    thrown.expect(DeeptestUtilsRuntimeException.class);
+    Reflector.setField(new ClassWithPrimitiveFields(), "intField", 1L);
+  }
+
+  // A final instance field is written like any other field.
+  @Test
+  public void finalInstanceField() {
+    ClassWithFinalFields obj = new ClassWithFinalFields();
+    Reflector.setField(obj, "finalInt", 2);
+    Assert.assertEquals(2, obj.getFinalInt());
+    Reflector.setField(obj, "finalInt", (Object) 3);
+    Assert.assertEquals(3, obj.getFinalInt());
+  }
+
+  // A static final field can be written, repeatedly.
+  @Test
+  public void staticFinalField() {
+    Reflector.setStaticField(ClassWithFinalFields.class, "staticFinal", "one");
+    Assert.assertEquals("one", ClassWithFinalFields.getStaticFinal());
+    Reflector.setStaticField(ClassWithFinalFields.class, "staticFinal", "two");
+    Assert.assertEquals("two", ClassWithFinalFields.getStaticFinal());
+  }
+
+  // A static final field can be written after it has been read through
+  // reflection.
+  @Test
+  public void staticFinalFieldReadBeforeWrite() {
+    Assert.assertEquals("initial", Reflector.getInstanceField(
+        ClassWithFinalFields.class, null, "staticFinalReadFirst"));
+    Reflector.setStaticField(ClassWithFinalFields.class,
+        "staticFinalReadFirst", "changed");
+    Assert.assertEquals("changed",
+        ClassWithFinalFields.getStaticFinalReadFirst());
+  }
+
+  // A primitive static final field is written with the same widening
+  // conversions as other fields.
+  @Test
+  public void staticFinalPrimitiveField() {
+    Reflector.setStaticField(ClassWithFinalFields.class, "staticFinalLong", 5);
+    Assert.assertEquals(5L, ClassWithFinalFields.getStaticFinalLong());
+  }
+
+  // A primitive static final field read through reflection first, which is
+  // then written with Unsafe, accepts widened values but no others.
+  @Test
+  public void staticFinalPrimitiveFieldReadBeforeWrite() {
+    Assert.assertEquals(1L, Reflector.getInstanceField(
+        ClassWithFinalFields.class, null, "staticFinalLongReadFirst"));
+    Reflector.setStaticField(ClassWithFinalFields.class,
+        "staticFinalLongReadFirst", 'a');
+    Assert.assertEquals(97L, ClassWithFinalFields.getStaticFinalLongReadFirst());
+    Reflector.setStaticField(ClassWithFinalFields.class,
+        "staticFinalLongReadFirst", 5);
+    Assert.assertEquals(5L, ClassWithFinalFields.getStaticFinalLongReadFirst());
+    thrown.expect(DeeptestUtilsRuntimeException.class);
+    Reflector.setStaticField(ClassWithFinalFields.class,
+        "staticFinalLongReadFirst", 1.5);
+  }
+
+  // Writing a value of the wrong type to a static final field throws a
+  // DeeptestUtilsRuntimeException.
+  @Test
+  public void staticFinalFieldWrongType() {
+    thrown.expect(DeeptestUtilsRuntimeException.class);
+    Reflector.setStaticField(ClassWithFinalFields.class, "staticFinal", 1);
+  }
+}
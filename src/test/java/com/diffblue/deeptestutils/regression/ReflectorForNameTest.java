@@ -1,5 +1,6 @@
 package com.diffblue.deeptestutils.regression;
 
+import com.diffblue.deeptestutils.DeeptestUtilsRuntimeException;
 import com.diffblue.deeptestutils.Reflector;
 import org.junit.Assert;
 import org.junit.Rule;
@@ -46,4 +47,62 @@ public class ReflectorForNameTest {
     Method method = cl.getDeclaredMethod("privateMethod");
     method.invoke(obj);
   }
+
+  // Primitive types, array types and class names are resolved, with
+  // whitespace ignored.
+  @Test
+  public void typeNames() {
+    Assert.assertEquals(int.class, Reflector.forName("int"));
+    Assert.assertEquals(int[][].class, Reflector.forName("int [] [ ]"));
+    Assert.assertEquals(String[].class,
+        Reflector.forName("java.lang.String[]"));
+    Assert.assertEquals(String.class, Reflector.forName(" java.lang.String"));
+  }
+
+  // Repeated names resolve to the same class.
+  @Test
+  public void repeatedName() {
+    Class<?> cl = Reflector.forName(
+        "com.diffblue.deeptestutils.regression.ClassWithPrivateMethod[]");
+    Assert.assertSame(cl, Reflector.forName(
+        "com.diffblue.deeptestutils.regression.ClassWithPrivateMethod[]"));
+  }
+
+  // Classes can be loaded by an explicit class loader, null being the
+  // bootstrap class loader.
+  @Test
+  public void explicitClassLoader() {
+    Assert.assertEquals(String.class,
+        Reflector.forName("java.lang.String", null));
+    Assert.assertEquals(ClassWithPrivateMethod.class, Reflector.forName(
+        "com.diffblue.deeptestutils.regression.ClassWithPrivateMethod",
+        ClassWithPrivateMethod.class.getClassLoader()));
+  }
+
+  // A class the bootstrap class loader cannot see is not found.
+  @Test
+  public void classNotVisibleToClassLoader() {
+    thrown.expect(DeeptestUtilsRuntimeException.class);
+    Reflector.forName(
+        "com.diffblue.deeptestutils.regression.ClassWithPrivateMethod", null);
+  }
+
+  // A whole parameter list is resolved at once, including descriptors and
+  // binary names of nested classes.
+  @Test
+  public void forNames() {
+    Class<?>[] classes = Reflector.forNames("int", "[[I",
+        "Ljava/lang/String;", "[Ljava.lang.Object;", "java.util.Map$Entry",
+        "long[]");
+    Assert.assertArrayEquals(new Class<?>[] {int.class, int[][].class,
+        String.class, Object[].class, java.util.Map.Entry.class,
+        long[].class}, classes);
+  }
+
+  // A malformed descriptor is reported as a missing class.
+  @Test
+  public void malformedDescriptor() {
+    thrown.expect(DeeptestUtilsRuntimeException.class);
+    Reflector.forNames("[Q");
+  }
 }
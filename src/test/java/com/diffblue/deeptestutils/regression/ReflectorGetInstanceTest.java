@@ -5,6 +5,9 @@ import org.junit.Ignore;
 import org.junit.Rule;
 import org.junit.Test;
 import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import com.diffblue.deeptestutils.ClassPoolStatistics;
+import com.diffblue.deeptestutils.DeeptestUtilsRuntimeException;
 import com.diffblue.deeptestutils.Reflector;
 import org.junit.rules.ExpectedException;
 import org.mockito.internal.matchers.Null;
@@ -158,4 +161,143 @@ public class ReflectorGetInstanceTest {
       Assert.assertEquals(e.getCause().getClass(), NullPointerException.class);
     }
   }
+
+  // A class that cannot be found throws a DeeptestUtilsRuntimeException.
+  @Test
+  public void missingClass() throws InvocationTargetException {
+    thrown.expect(DeeptestUtilsRuntimeException.class);
+    Reflector.getInstance("com.diffblue.deeptestutils.regression.Missing");
+  }
+
+  // A concrete class whose static initialiser threw an exception keeps
+  // reporting that exception on later calls.
+  @Test
+  public void concreteClassWithBadStaticInitTwice() throws Throwable {
+    for (int i = 0; i < 2; ++i) {
+      try {
+        Reflector.getInstance(
+            "com.diffblue.deeptestutils.regression.BadStaticInit");
+        Assert.assertTrue(false);
+      } catch (InvocationTargetException e) {
+        Assert.assertEquals(NullPointerException.class,
+            e.getCause().getClass());
+      }
+    }
+  }
+
+  // Interfaces with the same simple name in different packages get distinct
+  // implementations.
+  @Test
+  public void interfacesWithSameSimpleName() throws InvocationTargetException {
+    Object first = Reflector.getInstance(
+        "com.diffblue.deeptestutils.regression.Interface");
+    Object second = Reflector.getInstance(
+        "com.diffblue.deeptestutils.regression.other.Interface");
+    Assert.assertTrue(first instanceof Interface);
+    Assert.assertTrue(
+        second instanceof com.diffblue.deeptestutils.regression.other.Interface);
+  }
+
+  // Threads asking for the implementation of the same abstract class at the
+  // same time all get instances of a single generated class.
+  @Test
+  public void concurrentImplementation() throws Throwable {
+    final Object[] instances = new Object[8];
+    final Throwable[] errors = new Throwable[instances.length];
+    Thread[] threads = new Thread[instances.length];
+    for (int i = 0; i < threads.length; ++i) {
+      final int index = i;
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            instances[index] = Reflector.getInstance(
+                "com.diffblue.deeptestutils.regression.AbstractConcurrentClass");
+          } catch (Throwable t) {
+            errors[index] = t;
+          }
+        }
+      };
+    }
+    for (Thread t : threads) {
+      t.start();
+    }
+    for (Thread t : threads) {
+      t.join();
+    }
+    for (int i = 0; i < instances.length; ++i) {
+      if (errors[i] != null) {
+        throw errors[i];
+      }
+      Assert.assertTrue(instances[i] instanceof AbstractConcurrentClass);
+      Assert.assertSame(instances[0].getClass(), instances[i].getClass());
+    }
+  }
+
+  // This test checks that generating an implementation goes through a
+  // bounded class pool, whose statistics are reported.
+  @Test
+  public void classPoolStatistics() throws InvocationTargetException {
+    Reflector.getInstance(
+        "com.diffblue.deeptestutils.regression.AbstractClass");
+    ClassPoolStatistics stats = Reflector.getClassPoolStatistics();
+    Assert.assertTrue(stats.getPoolCount() >= 1);
+    Assert.assertTrue(stats.getCapacity() > 0);
+    Assert.assertTrue(stats.getCachedClassCount() > 0);
+    Assert.assertTrue(stats.getCachedClassCount()
+                      <= stats.getPoolCount() * stats.getCapacity());
+  }
+
+  // This test checks that an implementation found on the class path, as
+  // written ahead of time by ImplementationGenerator, is used instead of
+  // generating one.
+  @Test
+  public void prebuiltImplementation() throws InvocationTargetException {
+    AbstractPrebuiltClass instance =
+        (AbstractPrebuiltClass) Reflector.getInstance(
+            "com.diffblue.deeptestutils.regression.AbstractPrebuiltClass");
+    Assert.assertEquals("com.diffblue.cover.com.diffblue.deeptestutils."
+                        + "regression.AbstractPrebuiltClassImpl",
+                        instance.getClass().getName());
+    Assert.assertEquals(42, instance.abstractMethod());
+  }
+
+  // Interfaces are implemented by proxies, whose methods of Object behave as
+  // if not overridden.
+  @Test
+  public void interfaceProxy() throws InvocationTargetException {
+    Interface in = (Interface) Reflector.getInstance(
+        "com.diffblue.deeptestutils.regression.Interface");
+    Interface other = (Interface) Reflector.getInstance(
+        "com.diffblue.deeptestutils.regression.Interface");
+    Assert.assertTrue(Proxy.isProxyClass(in.getClass()));
+    Assert.assertSame(in.getClass(), other.getClass());
+    Assert.assertTrue(in.equals(in));
+    Assert.assertFalse(in.equals(other));
+    Assert.assertEquals(System.identityHashCode(in), in.hashCode());
+    Assert.assertTrue(in.toString().startsWith(in.getClass().getName() + "@"));
+  }
+
+  // Reflector.prepareInstances generates the implementations of abstract
+  // classes ahead of time, skipping concrete and missing classes, so that
+  // getInstance no longer reads classes into a class pool.
+  @Test
+  public void prepareInstances() throws InvocationTargetException {
+    Reflector.prepareInstances(
+        "com.diffblue.deeptestutils.regression.AbstractPreparedClass",
+        "com.diffblue.deeptestutils.regression.other.AbstractPreparedClass",
+        "com.diffblue.deeptestutils.regression.Interface",
+        "com.diffblue.deeptestutils.regression.ClassWithConstructor",
+        "com.diffblue.deeptestutils.regression.NoSuchClass");
+    int cached = Reflector.getClassPoolStatistics().getCachedClassCount();
+    Object first = Reflector.getInstance(
+        "com.diffblue.deeptestutils.regression.AbstractPreparedClass");
+    Object second = Reflector.getInstance(
+        "com.diffblue.deeptestutils.regression.other.AbstractPreparedClass");
+    Assert.assertTrue(first instanceof AbstractPreparedClass);
+    Assert.assertTrue(second instanceof
+        com.diffblue.deeptestutils.regression.other.AbstractPreparedClass);
+    Assert.assertEquals(cached,
+        Reflector.getClassPoolStatistics().getCachedClassCount());
+  }
 }
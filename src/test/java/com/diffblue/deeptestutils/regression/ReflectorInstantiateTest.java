@@ -0,0 +1,100 @@
+package com.diffblue.deeptestutils.regression;
+
+import java.lang.reflect.InvocationTargetException;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import com.diffblue.deeptestutils.CompareWithFieldList;
+import com.diffblue.deeptestutils.DeeptestUtilsRuntimeException;
+import com.diffblue.deeptestutils.FieldList;
+import com.diffblue.deeptestutils.Reflector;
+
+public class ReflectorInstantiateTest {
+
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  // Reflector.instantiate builds nested objects from nested field lists,
+  // using the declared types of the fields, without calling constructors.
+  @Test
+  public void nestedObjects() throws InvocationTargetException {
+    FieldList shape = new FieldList();
+    shape.add("field", "square");
+    FieldList next = new FieldList();
+    next.add("name", "b");
+    FieldList root = new FieldList();
+    root.add("name", "a");
+    root.add("weight", 3);
+    root.add("next", next);
+    root.add("shape", shape);
+    GraphNode node = Reflector.instantiate(GraphNode.class, root);
+    Assert.assertEquals("a", node.getName());
+    Assert.assertEquals(3, node.getWeight());
+    Assert.assertEquals("b", node.getNext().getName());
+    Assert.assertNull(node.getNext().getNext());
+    Assert.assertEquals("square", node.getShape().getField());
+    CompareWithFieldList.compare(root, node);
+  }
+
+  // Arrays of values become arrays of the declared type, and a field list
+  // reached twice is built once, so shared references and cycles are kept.
+  @Test
+  public void arraysSharingAndCycles() throws InvocationTargetException {
+    FieldList shared = new FieldList();
+    shared.add("name", "shared");
+    FieldList root = new FieldList();
+    root.add("name", "root");
+    root.add("next", root);
+    root.add("children", new Object[] {shared, shared, null });
+    root.add("counts", new Object[] {1L, 2L });
+    GraphNode node = Reflector.instantiate(GraphNode.class, root);
+    Assert.assertSame(node, node.getNext());
+    Assert.assertEquals(3, node.getChildren().length);
+    Assert.assertEquals("shared", node.getChildren()[0].getName());
+    Assert.assertSame(node.getChildren()[0], node.getChildren()[1]);
+    Assert.assertNull(node.getChildren()[2]);
+    Assert.assertArrayEquals(new long[] {1L, 2L }, node.getCounts());
+  }
+
+  // An unknown field name is reported.
+  @Test
+  public void unknownField() throws InvocationTargetException {
+    FieldList root = new FieldList();
+    root.add("noSuchField", 1);
+    thrown.expect(DeeptestUtilsRuntimeException.class);
+    thrown.expectMessage("noSuchField is not a field in class "
+                         + "com.diffblue.deeptestutils.regression.GraphNode");
+    Reflector.instantiate(GraphNode.class, root);
+  }
+
+  // A field list held by a field of an abstract type is built as an
+  // implementation of that type, so it cannot set the fields of a subclass.
+  @Test
+  public void subclassFieldOfAbstractType() throws InvocationTargetException {
+    FieldList shape = new FieldList();
+    shape.add("radius", 2);
+    FieldList root = new FieldList();
+    root.add("shape", shape);
+    thrown.expect(DeeptestUtilsRuntimeException.class);
+    thrown.expectMessage("radius is not a field in class "
+                         + "com.diffblue.deeptestutils.regression."
+                         + "AbstractClass, the declared type");
+    Reflector.instantiate(GraphNode.class, root);
+  }
+
+  // The same holds for a field of a concrete superclass.
+  @Test
+  public void subclassFieldOfSuperclass() throws InvocationTargetException {
+    FieldList root = new FieldList();
+    root.add("inherited", 2);
+    root.add("subOnly", 3);
+    thrown.expect(DeeptestUtilsRuntimeException.class);
+    thrown.expectMessage("subOnly is not a field in class "
+                         + "com.diffblue.deeptestutils.regression."
+                         + "SuperClassWithFields, the declared type");
+    Reflector.instantiate(SuperClassWithFields.class, root);
+  }
+}
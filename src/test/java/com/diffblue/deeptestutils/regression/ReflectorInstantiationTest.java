@@ -0,0 +1,84 @@
+package com.diffblue.deeptestutils.regression;
+
+import com.diffblue.deeptestutils.InstantiationStrategy;
+import com.diffblue.deeptestutils.Reflector;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.lang.reflect.InvocationTargetException;
+
+public class ReflectorInstantiationTest {
+
+  @After
+  public void resetStrategies() {
+    Reflector.setInstantiationStrategy(InstantiationStrategy.STD);
+    Reflector.setInstantiationStrategy(ClassWithPrivateConstructor.class,
+        null);
+    Reflector.setInstantiationStrategy(ClassWithConstructor.class, null);
+  }
+
+  // Repeated calls create distinct objects, without calling constructors.
+  @Test
+  public void repeatedInstantiation() throws InvocationTargetException {
+    ClassWithPrivateConstructor first =
+        Reflector.getInstance(ClassWithPrivateConstructor.class);
+    ClassWithPrivateConstructor second =
+        Reflector.getInstance(ClassWithPrivateConstructor.class);
+    Assert.assertNotSame(first, second);
+    Assert.assertEquals(0, first.getField());
+    Assert.assertEquals(0, second.getField());
+  }
+
+  // The constructor strategy calls the no-argument constructor, even if it
+  // is private, and can be chosen for a single class.
+  @Test
+  public void constructorStrategy() throws InvocationTargetException {
+    Reflector.getInstance(ClassWithPrivateConstructor.class);
+    Reflector.setInstantiationStrategy(ClassWithPrivateConstructor.class,
+        InstantiationStrategy.CONSTRUCTOR);
+    Assert.assertEquals(42,
+        Reflector.getInstance(ClassWithPrivateConstructor.class).getField());
+    Assert.assertEquals(0, Reflector.getInstance(
+        SerializableSubClass.class).getSubField());
+  }
+
+  // An exception thrown by the constructor is wrapped in an
+  // InvocationTargetException.
+  @Test
+  public void constructorStrategyThrows() {
+    Reflector.setInstantiationStrategy(ClassWithConstructor.class,
+        InstantiationStrategy.CONSTRUCTOR);
+    try {
+      Reflector.getInstance(ClassWithConstructor.class);
+      Assert.assertTrue(false);
+    } catch (InvocationTargetException e) {
+      Assert.assertEquals(NullPointerException.class, e.getCause().getClass());
+    }
+  }
+
+  // The serializing strategy calls the constructor of the first superclass
+  // that is not serializable only.
+  @Test
+  public void serializingStrategy() throws InvocationTargetException {
+    Reflector.setInstantiationStrategy(InstantiationStrategy.SERIALIZING);
+    SerializableSubClass obj =
+        Reflector.getInstance(SerializableSubClass.class);
+    Assert.assertEquals(1, obj.getSuperField());
+    Assert.assertEquals(0, obj.getSubField());
+  }
+
+  // An instantiator chosen before the default strategy changes is not
+  // reused afterwards.
+  @Test
+  public void defaultStrategyChange() throws InvocationTargetException {
+    Assert.assertEquals(0, Reflector.getInstance(
+        SerializableSubClass.class).getSuperField());
+    Reflector.setInstantiationStrategy(InstantiationStrategy.SERIALIZING);
+    Assert.assertEquals(1, Reflector.getInstance(
+        SerializableSubClass.class).getSuperField());
+    Reflector.setInstantiationStrategy(InstantiationStrategy.STD);
+    Assert.assertEquals(0, Reflector.getInstance(
+        SerializableSubClass.class).getSuperField());
+  }
+}
@@ -0,0 +1,55 @@
+package com.diffblue.deeptestutils.regression;
+
+import com.diffblue.deeptestutils.Reflector;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.Map;
+
+public class ReflectorPreloadTest {
+
+  // Preloading a test class initializes the classes it refers to, and
+  // reports the exceptions thrown by static initializers of classes named in
+  // string constants. getInstance then reports the same exception, although
+  // the JVM would only throw a NoClassDefFoundError for the class.
+  @Test
+  public void preloadReferencedClasses() throws Throwable {
+    Map<String, InvocationTargetException> failures =
+        Reflector.preload(PreloadFixture.class);
+    Assert.assertTrue(PreloadProbe.isInitialized());
+    Assert.assertTrue(PreloadProbe.isForNameInitialized());
+    InvocationTargetException failure = failures.get(
+        "com.diffblue.deeptestutils.regression.PreloadBadStaticInit");
+    Assert.assertNotNull(failure);
+    Assert.assertEquals(NullPointerException.class,
+        failure.getCause().getClass());
+    Assert.assertEquals(1, failures.size());
+    try {
+      Reflector.getInstance(
+          "com.diffblue.deeptestutils.regression.PreloadBadStaticInit");
+      Assert.assertTrue(false);
+    } catch (InvocationTargetException e) {
+      Assert.assertEquals(NullPointerException.class, e.getCause().getClass());
+    }
+  }
+
+  // String constants that look like class names, but that the test class
+  // does not pass to forName or getInstance, are not initialized.
+  @Test
+  public void mentionedClassesNotInitialized() {
+    Reflector.preload(PreloadFixture.class);
+    Assert.assertFalse(PreloadProbe.isMentionedInitialized());
+  }
+
+  // Classes the test class only names in class literals are loaded but not
+  // initialized, and a static field used through a subclass initializes
+  // only the superclass declaring it, as the JVM would.
+  @Test
+  public void onlyInitializingReferencesInitialize() {
+    Reflector.preload(PreloadFixture.class);
+    Assert.assertFalse(PreloadProbe.isLiteralInitialized());
+    Assert.assertTrue(PreloadProbe.isStaticSuperclassInitialized());
+    Assert.assertFalse(PreloadProbe.isStaticSubclassInitialized());
+  }
+}
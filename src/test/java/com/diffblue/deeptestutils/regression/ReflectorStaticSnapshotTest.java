@@ -0,0 +1,84 @@
+package com.diffblue.deeptestutils.regression;
+
+import com.diffblue.deeptestutils.DeeptestUtilsRuntimeException;
+import com.diffblue.deeptestutils.Reflector;
+import com.diffblue.deeptestutils.StaticSnapshot;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+public class ReflectorStaticSnapshotTest {
+
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  // Static fields changed after a snapshot, final and inherited fields
+  // included, get their values back on restore.
+  @Test
+  public void restoreChangedStatics() {
+    Object constant = ClassWithStaticFields.getConstant();
+    StaticSnapshot snapshot =
+        Reflector.snapshotStatics(ClassWithStaticFields.class);
+    Reflector.setStaticField(ClassWithStaticFields.class, "counter", 42);
+    Reflector.setStaticField(ClassWithStaticFields.class, "name", null);
+    Reflector.setStaticField(ClassWithStaticFields.class, "constant", "other");
+    Reflector.setStaticField(ClassWithStaticFields.class, "inheritedStatic",
+        7);
+    Reflector.restore(snapshot);
+    Assert.assertEquals(1, ClassWithStaticFields.getCounter());
+    Assert.assertEquals("initial", ClassWithStaticFields.getName());
+    Assert.assertSame(constant, ClassWithStaticFields.getConstant());
+    Assert.assertEquals(1, SuperClassWithStaticFields.getInheritedStatic());
+  }
+
+  // A snapshot can be restored several times, and leaves instance fields
+  // alone.
+  @Test
+  public void restoreTwice() {
+    ClassWithStaticFields obj = new ClassWithStaticFields();
+    StaticSnapshot snapshot = Reflector.snapshotStatics(
+        ClassWithStaticFields.class, SuperClassWithStaticFields.class);
+    for (int i = 2; i < 4; ++i) {
+      Reflector.setStaticField(ClassWithStaticFields.class, "counter", i);
+      Reflector.setField(obj, "instanceField", i);
+      Reflector.restore(snapshot);
+      Assert.assertEquals(1, ClassWithStaticFields.getCounter());
+      Assert.assertEquals(i, obj.getInstanceField());
+    }
+  }
+
+  // Static final fields inherited from a superclass that is not listed are
+  // part of the snapshot too.
+  @Test
+  public void restoreInheritedFinalStatic() {
+    Object constant = SuperClassWithStaticFields.getInheritedConstant();
+    StaticSnapshot snapshot =
+        Reflector.snapshotStatics(ClassWithStaticFields.class);
+    Reflector.setStaticField(ClassWithStaticFields.class,
+        "inheritedConstant", "other");
+    Assert.assertEquals("other",
+        SuperClassWithStaticFields.getInheritedConstant());
+    Reflector.restore(snapshot);
+    Assert.assertSame(constant,
+        SuperClassWithStaticFields.getInheritedConstant());
+  }
+
+  // The static fields of JDK superclasses, some of which cannot be made
+  // accessible, are left out of the snapshot.
+  @Test
+  public void snapshotSkipsJdkSuperclass() {
+    StaticSnapshot snapshot =
+        Reflector.snapshotStatics(ThreadWithStaticFields.class);
+    Reflector.setStaticField(ThreadWithStaticFields.class, "started", 3);
+    Reflector.restore(snapshot);
+    Assert.assertEquals(0, ThreadWithStaticFields.getStarted());
+  }
+
+  // Taking a snapshot of a null class throws a DeeptestUtilsRuntimeException.
+  @Test
+  public void snapshotNullClass() {
+    thrown.expect(DeeptestUtilsRuntimeException.class);
+    Reflector.snapshotStatics(ClassWithStaticFields.class, null);
+  }
+}
@@ -0,0 +1,17 @@
+package com.diffblue.deeptestutils.regression;
+
+import java.io.Serializable;
+
+public class SerializableSubClass extends ClassWithPrivateField
+    implements Serializable {
+
+  private int subField;
+
+  public SerializableSubClass() {
+    subField = 2;
+  }
+
+  public int getSubField() {
+    return subField;
+  }
+}
@@ -0,0 +1,10 @@
+package com.diffblue.deeptestutils.regression;
+
+public class SubClassWithFields extends SuperClassWithFields {
+
+  private String shadowed = "sub";
+
+  public String getShadowed() {
+    return shadowed;
+  }
+}
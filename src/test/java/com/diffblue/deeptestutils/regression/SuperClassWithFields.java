@@ -0,0 +1,16 @@
+package com.diffblue.deeptestutils.regression;
+
+public class SuperClassWithFields {
+
+  private int inherited = 1;
+
+  private String shadowed = "super";
+
+  public int getInherited() {
+    return inherited;
+  }
+
+  public String getSuperShadowed() {
+    return shadowed;
+  }
+}
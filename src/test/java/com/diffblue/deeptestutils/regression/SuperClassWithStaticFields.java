@@ -0,0 +1,16 @@
+package com.diffblue.deeptestutils.regression;
+
+public class SuperClassWithStaticFields {
+
+  private static int inheritedStatic = 1;
+
+  private static final Object inheritedConstant = new Object();
+
+  public static int getInheritedStatic() {
+    return inheritedStatic;
+  }
+
+  public static Object getInheritedConstant() {
+    return inheritedConstant;
+  }
+}
@@ -0,0 +1,10 @@
+package com.diffblue.deeptestutils.regression;
+
+public class ThreadWithStaticFields extends Thread {
+
+  private static int started = 0;
+
+  public static int getStarted() {
+    return started;
+  }
+}
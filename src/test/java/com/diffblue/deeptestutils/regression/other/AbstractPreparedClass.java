@@ -0,0 +1,4 @@
+package com.diffblue.deeptestutils.regression.other;
+
+public abstract class AbstractPreparedClass {
+}
@@ -0,0 +1,6 @@
+package com.diffblue.deeptestutils.regression.other;
+
+public interface Interface {
+
+  String otherMethod();
+}